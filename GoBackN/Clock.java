@@ -0,0 +1,16 @@
+/** Source of time.
+ *
+ *  An Rdt, and the SrcSnk and congestion window that go with it,
+ *  read the time from the clock of the link they run over, rather
+ *  than from System.nanoTime() directly, so that a simulation (see
+ *  Simulator) can run them in virtual time.
+ */
+public interface Clock {
+	/** The system's clock. */
+	Clock SYSTEM = System::nanoTime;
+
+	/** Get the current time.
+	 *  @return the time in ns, from an arbitrary fixed origin
+	 */
+	long nanoTime();
+}
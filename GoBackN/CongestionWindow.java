@@ -0,0 +1,117 @@
+/** Congestion window.
+ *
+ *  Limits the number of packets a sender keeps in flight, as TCP
+ *  does (RFC 5681), counting in packets rather than bytes.
+ *
+ *  The window starts at INIT_WINDOW packets. While it is below the
+ *  slow start threshold it grows by one packet per acked packet,
+ *  doubling every round trip; above the threshold it grows by about
+ *  one packet per round trip (additive increase).
+ *
+ *  A third duplicate ack halves the window (multiplicative decrease)
+ *  and starts fast recovery: the threshold is set to half the packets
+ *  in flight and the window to the threshold plus the three packets
+ *  that have left the network. Every further duplicate ack inflates
+ *  the window by one packet, and the ack that ends recovery deflates
+ *  it back to the threshold. A timeout also halves the threshold, but
+ *  drops the window to one packet, so the sender slow starts again.
+ *
+ *  The window never exceeds the protocol's window size, since it
+ *  could not be used and would only take longer to shrink.
+ *
+ *  If a trace stream is set, every change is written to it as a line
+ *  with the time in seconds, the window, the threshold and the event
+ *  that caused the change (ack, dup, fast, recover or timeout).
+ */
+
+import java.io.*;
+
+public class CongestionWindow {
+	public static final int INIT_WINDOW = 10;	// initial window (packets)
+
+	private int maxWindow;		// protocol window size
+	private volatile double cwnd;	// congestion window (packets)
+	private double ssthresh;	// slow start threshold
+	private boolean inRecovery = false; // true during fast recovery
+
+	private PrintStream trace;	// where to write changes, or null
+	private Clock clock;		// for the times written to trace
+	private long t0;
+
+	/** Initialize a new congestion window.
+	 *  @param maxWindow is the protocol window size; the congestion
+	 *  window never grows beyond it
+	 *  @param clock is the clock to read the time from
+	 */
+	CongestionWindow(int maxWindow, Clock clock) {
+		this.maxWindow = maxWindow;
+		this.clock = clock; t0 = clock.nanoTime();
+		cwnd = Math.min(INIT_WINDOW, maxWindow);
+		ssthresh = maxWindow;
+	}
+
+	/** Write every change of the window to a stream.
+	 *  @param trace is the stream, or null to stop tracing
+	 */
+	public void setTrace(PrintStream trace) {
+		this.trace = trace; log("init");
+	}
+
+	/** Get the number of packets that may be in flight. */
+	public int window() { return Math.max(1, (int) cwnd); }
+
+	/** Get the slow start threshold. */
+	public int threshold() { return (int) ssthresh; }
+
+	/** Test if the sender is in fast recovery. */
+	public boolean inRecovery() { return inRecovery; }
+
+	/** Grow the window, after an ack for new packets.
+	 *  @param n is the number of packets newly acked
+	 */
+	public void ack(int n) {
+		if (inRecovery) {
+			// first new ack after a fast retransmit ends recovery
+			inRecovery = false; cwnd = ssthresh;
+			log("recover"); return;
+		}
+		for (int i = 0; i < n; i++) {
+			if (cwnd < ssthresh) cwnd += 1;
+			else cwnd += 1 / cwnd;
+		}
+		cwnd = Math.min(cwnd, maxWindow);
+		log("ack");
+	}
+
+	/** Shrink the window, after a third duplicate ack.
+	 *  @param inFlight is the number of packets in flight
+	 */
+	public void fastRetransmit(int inFlight) {
+		ssthresh = Math.max(inFlight / 2, 2);
+		cwnd = Math.min(ssthresh + 3, maxWindow);
+		inRecovery = true;
+		log("fast");
+	}
+
+	/** Inflate the window, after a duplicate ack during fast recovery. */
+	public void dupAck() {
+		if (!inRecovery || cwnd >= maxWindow) return;
+		cwnd += 1;
+		log("dup");
+	}
+
+	/** Collapse the window, after a retransmission timeout.
+	 *  @param inFlight is the number of packets in flight
+	 */
+	public void timeout(int inFlight) {
+		ssthresh = Math.max(inFlight / 2, 2);
+		cwnd = 1; inRecovery = false;
+		log("timeout");
+	}
+
+	private void log(String event) {
+		if (trace == null) return;
+		trace.printf("%.6f %.2f %d %s\n", (clock.nanoTime() - t0) / 1e9,
+			     cwnd, (int) ssthresh, event);
+	}
+}
@@ -0,0 +1,103 @@
+/** One connection of an Endpoint.
+ *
+ *  A connection is the link (see Link) its Rdt runs over. Packets
+ *  for it are put in its inbound queue by the endpoint's receive
+ *  thread, and taken from there by its event loop, which also runs
+ *  the Rdt and sends its packets on the endpoint's socket.
+ *
+ *  The connection's wakeup, instead of waking a thread of the Rdt's
+ *  own, schedules the connection on its event loop. It is signalled
+ *  when a packet arrives for the connection, and by the application
+ *  when it sends or receives a message.
+ */
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class Connection implements Link {
+	private Endpoint ep;		// endpoint the connection belongs to
+	private EventLoop loop;		// event loop that runs it
+	final Endpoint.ConnKey key;	// peer address, port and connection ID
+	private boolean initiator;	// true if opened by connect()
+	Rdt rdt;			// the connection's protocol state
+
+	private SpscQueue<Packet> inbound; // packets from the endpoint
+	private Wakeup wakeup;		// schedules the connection on loop
+
+	// used by the event loop
+	AtomicBoolean queued = new AtomicBoolean(false); // true if scheduled
+	boolean listed = false;		// true once in the loop's list
+	long deadline = 0;		// time Rdt.service() is next due
+
+	/** Initialize a new connection.
+	 *  @param ep is the endpoint it belongs to
+	 *  @param loop is the event loop that runs it
+	 *  @param key identifies it
+	 *  @param initiator is true if this end opens the connection,
+	 *  false if the peer did
+	 */
+	Connection(Endpoint ep, EventLoop loop, Endpoint.ConnKey key,
+		   boolean initiator) {
+		this.ep = ep; this.loop = loop; this.key = key;
+		this.initiator = initiator;
+		inbound = new SpscQueue<Packet>(256);
+		wakeup = new Wakeup() {
+			public void signal() { schedule(); }
+		};
+	}
+
+	/** Have the event loop run the connection's Rdt soon. */
+	void schedule() {
+		if (!queued.getAndSet(true)) loop.schedule(this);
+	}
+
+	/** Pass a packet that arrived for the connection to its Rdt
+	 *  (called by the endpoint's receive thread only).
+	 *  @param p is the packet; it is released if the inbound
+	 *  queue is full
+	 */
+	void deliver(Packet p) {
+		if (!inbound.offer(p)) { p.release(); return; }
+		schedule();
+	}
+
+	/** Get the connection ID. */
+	public int getId() { return key.id; }
+
+	/** Get the peer's address and port. */
+	public InetSocketAddress getPeer() {
+		return new InetSocketAddress(key.addr, key.port);
+	}
+
+	public PacketPool getPool() { return ep.getPool(); }
+
+	public Wakeup wakeup() { return wakeup; }
+
+	public Clock clock() { return Clock.SYSTEM; }
+
+	public Random random() { return ThreadLocalRandom.current(); }
+
+	public boolean isAlive() { return ep.isOpen(); }
+
+	public boolean initiator() { return initiator; }
+
+	/** The endpoint answers FINs for connections it has dropped. */
+	public boolean answersFin() { return true; }
+
+	/** Send a packet, right away, on the endpoint's socket. */
+	public void send(Packet p) {
+		p.connId = key.id;
+		loop.send(p, key.addr, key.port);
+	}
+
+	/** Test if ready to send; since packets are sent right away, the
+	 *  connection always is.
+	 */
+	public boolean ready() { return true; }
+
+	public int receive(Packet[] dst) { return inbound.drain(dst); }
+
+	public boolean incoming() { return !inbound.isEmpty(); }
+}
@@ -0,0 +1,298 @@
+/** Endpoint for many Rdt connections over one UDP socket.
+ *
+ *  A Substrate serves a single peer, and its Rdt has a thread of its
+ *  own. An Endpoint instead serves any number of connections, to any
+ *  number of peers, on one socket. A connection is identified by
+ *  the peer's address and port, and by the connection ID its packets
+ *  carry (see Packet), so one peer can have many connections.
+ *
+ *  One thread receives every packet that arrives on the socket, and
+ *  passes it to its connection. connect() opens a connection to a
+ *  peer, with a new random connection ID, and its Rdt sends the
+ *  peer a SYN (see Rdt). A SYN for an unknown connection opens a
+ *  new one, which the application gets from accept(). A FIN for an
+ *  unknown connection is for one that has already been closed, and
+ *  dropped, so it is answered with a FIN-ACK, in case the peer
+ *  missed the one it was sent; other packets for unknown
+ *  connections are dropped. Since an Rdt does not linger once its
+ *  connection is closed, close() keeps the endpoint open for two
+ *  timeouts after the last connection was dropped, to answer the
+ *  FINs of peers that missed their FIN-ACK.
+ *
+ *  Each connection has an Rdt of its own, with its own windows and
+ *  timers, but no thread. The connections are divided among a small
+ *  pool of event loops (see EventLoop), each with a thread that runs
+ *  the Rdts of its connections as packets arrive and timers expire.
+ *  So an endpoint can hold thousands of connections with a handful
+ *  of threads. The application uses each Rdt as usual, except that
+ *  it must not call start(); stop() (or close()) closes the
+ *  connection, and once the peer has closed its end too, the
+ *  connection is dropped.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Endpoint implements Runnable {
+	private DatagramSocket sock;
+	private PacketPool pool;
+	private EventLoop[] loops;
+	private int nextLoop = 0;	// loop for the next new connection
+	private Thread myThread;	// thread that receives packets
+	private volatile boolean open = true;
+	private volatile long lingerUntil = 0; // System.nanoTime() to stay open
+
+	// parameters of new connections' Rdts
+	private int wSize;
+	private double timeout;
+	private boolean selRepeat;
+	private double flushDelay = -1;
+	private int ackEvery = 1;
+	private double ackDelay = 0;
+	private int fecGroup = 0;
+
+	private ConcurrentHashMap<ConnKey,Connection> conns =
+		new ConcurrentHashMap<ConnKey,Connection>();
+	private ArrayBlockingQueue<Rdt> accepted =
+		new ArrayBlockingQueue<Rdt>(1000);
+	private volatile long rcvCount = 0, dropCount = 0;
+
+	/** Peer address, port and connection ID of a connection. */
+	static class ConnKey {
+		InetAddress addr; int port; int id;
+
+		ConnKey() { }
+		ConnKey(InetAddress addr, int port, int id) { set(addr,port,id); }
+
+		void set(InetAddress addr, int port, int id) {
+			this.addr = addr; this.port = port; this.id = id;
+		}
+
+		public int hashCode() {
+			return (addr.hashCode() * 31 + port) * 31 + id;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof ConnKey)) return false;
+			ConnKey k = (ConnKey) o;
+			return id == k.id && port == k.port && addr.equals(k.addr);
+		}
+	}
+
+	/** Initialize a new Endpoint.
+	 *  @param myIp is the IP address to bind to the socket
+	 *  @param port is the port number to bind to the socket (may be 0)
+	 *  @param loopCount is the number of event loops
+	 *  @param wSize is the window size used by every connection
+	 *  @param timeout is every connection's initial timeout
+	 *  @param selRepeat is true to use selective repeat, false to use
+	 *  go-back-N
+	 *  @param discProb is a discard probability used to randomly
+	 *  discard packets sent, to test the protocol
+	 */
+	Endpoint(InetAddress myIp, int port, int loopCount, int wSize,
+		 double timeout, boolean selRepeat, double discProb) {
+		this.wSize = wSize; this.timeout = timeout;
+		this.selRepeat = selRepeat;
+
+		sock = null;
+		try {
+			sock = new DatagramSocket(port,myIp);
+			sock.setSoTimeout(100);
+			sock.setReceiveBufferSize(4000000);
+		} catch(Exception e) {
+			System.out.println("unable to create socket");
+			System.exit(1);
+		}
+		pool = new PacketPool(8192);
+		loops = new EventLoop[Math.max(loopCount, 1)];
+		for (int i = 0; i < loops.length; i++)
+			loops[i] = new EventLoop(this, sock, discProb);
+	}
+
+	/** Coalesce messages in new connections (see Rdt.setCoalescing()). */
+	public void setCoalescing(double delay) { flushDelay = delay; }
+
+	/** Delay acks in new connections (see Rdt.setDelayedAcks()). */
+	public void setDelayedAcks(int every, double delay) {
+		ackEvery = every; ackDelay = delay;
+	}
+
+	/** Use forward error correction in new connections (see
+	 *  Rdt.setFec()).
+	 */
+	public void setFec(int k) { fecGroup = k; }
+
+	/** Start the receive thread and the event loops. */
+	public void start() {
+		for (EventLoop l : loops) l.start();
+		myThread = new Thread(this); myThread.start();
+	}
+
+	/** Close the endpoint, stopping all of its connections, and wait
+	 *  for its threads to quit. Waits first, if need be, until two
+	 *  timeouts have passed since a connection was last dropped.
+	 */
+	public void close() throws Exception {
+		long wait;
+		while ((wait = lingerUntil - System.nanoTime()) > 0)
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+		open = false;
+		myThread.join();
+		for (EventLoop l : loops) l.join();
+		sock.close();
+	}
+
+	/** Test if the endpoint is open. */
+	public boolean isOpen() { return open; }
+
+	/** Get the pool that packets are taken from. */
+	public PacketPool getPool() { return pool; }
+
+	/** Get the port number bound to the socket. */
+	public int getLocalPort() { return sock.getLocalPort(); }
+
+	/** Get the number of open connections. */
+	public int connections() { return conns.size(); }
+
+	/** Open a connection to a peer.
+	 *  @param peer is the peer's address and port
+	 *  @return the connection's Rdt
+	 */
+	public Rdt connect(InetSocketAddress peer) {
+		Random rand = ThreadLocalRandom.current();
+		while (true) {
+			int id = rand.nextInt();
+			if (id == 0) continue;
+			ConnKey key = new ConnKey(peer.getAddress(),
+						  peer.getPort(), id);
+			Connection c = open(key, true);
+			if (c != null) return c.rdt;
+		}
+	}
+
+	/** Get the next connection opened by a peer, waiting for one
+	 *  if need be.
+	 *  @return the connection's Rdt
+	 */
+	public Rdt accept() throws InterruptedException {
+		return accepted.take();
+	}
+
+	/** Test for the presence of connections waiting to be accepted. */
+	public boolean connecting() { return !accepted.isEmpty(); }
+
+	/** Create a connection, with its Rdt, and add it to an event loop.
+	 *  @param key identifies the connection
+	 *  @param initiator is true if this end opens the connection
+	 *  @return the connection, or null if there already is one
+	 *  with the same key
+	 */
+	private synchronized Connection open(ConnKey key, boolean initiator) {
+		if (conns.containsKey(key)) return null;
+		Connection c = new Connection(this, loops[nextLoop], key,
+					      initiator);
+		nextLoop = (nextLoop + 1) % loops.length;
+		Rdt rdt = new Rdt(wSize, timeout, c, selRepeat);
+		rdt.setCoalescing(flushDelay);
+		rdt.setDelayedAcks(ackEvery, ackDelay);
+		rdt.setFec(fecGroup);
+		c.rdt = rdt;
+		conns.put(key, c);
+		c.schedule();
+		return c;
+	}
+
+	/** Drop a connection whose Rdt has finished (called by its
+	 *  event loop). Packets that arrive for it later are treated as
+	 *  packets for an unknown connection.
+	 */
+	synchronized void remove(Connection c) {
+		conns.remove(c.key);
+		long until = System.nanoTime() + (long) (2e9 * c.rdt.getRto());
+		if (until - lingerUntil > 0) lingerUntil = until;
+	}
+
+	/** Receive thread passes incoming packets to their connections.
+	 *  This method is run by a separate thread. Packets that cannot
+	 *  be unpacked, or that are not SYNs and are for unknown
+	 *  connections, are discarded (FINs after being answered), as
+	 *  are SYNs that would open a new connection when the accept
+	 *  queue is full.
+	 */
+	public void run() {
+		byte[] buf = new byte[2000];
+		DatagramPacket dg = new DatagramPacket(buf, buf.length);
+		ConnKey probe = new ConnKey();	// reused for every lookup
+		byte[] rbuf = new byte[Packet.HEADER + 8]; // for FIN-ACKs
+		DatagramPacket reply = new DatagramPacket(rbuf, rbuf.length);
+
+		while (open) {
+			try {
+				sock.receive(dg);
+			} catch(SocketTimeoutException e) {
+				continue; // check for termination, then retry
+			} catch(Exception e) {
+				System.err.println("Endpoint: receive "
+						   + "exception: " + e);
+				System.exit(1);
+			}
+			rcvCount++;
+			Packet p = pool.get();
+			if (!p.unpack(dg.getData(), dg.getLength())) {
+				p.release(); dropCount++; continue;
+			}
+			probe.set(dg.getAddress(), dg.getPort(), p.connId);
+			Connection c = conns.get(probe);
+			if (c == null) {
+				if (p.type == 6) {
+					// FIN for a closed connection
+					p.type = 7; p.options = Packet.OPT_DONE;
+					p.window = 0; p.length = 0;
+					reply.setLength(p.pack(rbuf));
+					reply.setAddress(dg.getAddress());
+					reply.setPort(dg.getPort());
+					try {
+						sock.send(reply);
+					} catch(Exception e) {
+						if (!open) break;
+						System.err.println("Endpoint: send "
+								   + "error " + e);
+						System.exit(1);
+					}
+				}
+				if (p.type != 4 || accepted.remainingCapacity() == 0
+				    || (c = open(new ConnKey(dg.getAddress(),
+						dg.getPort(), p.connId), false)) == null) {
+					p.release(); dropCount++; continue;
+				}
+				accepted.offer(c.rdt);
+			}
+			c.deliver(p);
+		}
+	}
+
+	/** Get the number of packets sent by the event loops. */
+	public long sendCount() {
+		long n = 0;
+		for (EventLoop l : loops) n += l.sendCount();
+		return n;
+	}
+
+	/** Get the number of packets discarded, on purpose, when sent. */
+	public long discCount() {
+		long n = 0;
+		for (EventLoop l : loops) n += l.discCount();
+		return n;
+	}
+
+	/** Get the number of packets received. */
+	public long rcvCount() { return rcvCount; }
+
+	/** Get the number of packets received but dropped, because they
+	 *  were malformed or for no connection.
+	 */
+	public long dropCount() { return dropCount; }
+}
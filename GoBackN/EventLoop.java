@@ -0,0 +1,138 @@
+/** Event loop that runs the connections of an Endpoint.
+ *
+ *  Each loop has a thread that runs any number of connections. A
+ *  connection is run (that is, its Rdt's service() method is called)
+ *  whenever it is scheduled, because a packet arrived for it or its
+ *  application sent or received a message, and whenever the deadline
+ *  its last run returned has passed. The loop keeps the earliest of
+ *  these deadlines, and only scans its connections for the ones that
+ *  are due once that time is reached; between scans, the deadlines
+ *  can only change when a connection is run, and the loop then
+ *  updates its earliest deadline, so none is missed.
+ *
+ *  Packets are sent straight from the loop's thread, packed into a
+ *  datagram buffer of the loop's own.
+ */
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class EventLoop implements Runnable {
+	private static final long IDLE_WAIT = 100000000; // max wait in ns
+
+	private Endpoint ep;		// endpoint the loop belongs to
+	private DatagramSocket sock;	// endpoint's socket
+	private double discProb;	// probability of discarding a packet
+	private Thread myThread;	// thread that executes run() method
+	private Wakeup wakeup = new Wakeup(); // signalled by schedule()
+
+	// connections scheduled to run, from any thread
+	private ConcurrentLinkedQueue<Connection> ready =
+		new ConcurrentLinkedQueue<Connection>();
+	// connections run by the loop (used by the loop's thread only)
+	private ArrayList<Connection> conns = new ArrayList<Connection>();
+	private long earliest = 0;	// earliest deadline in conns
+
+	// packets are packed straight into the datagram's buffer
+	private byte[] buf = new byte[Packet.HEADER + Packet.MAX_PAYLOAD];
+	private DatagramPacket dg = new DatagramPacket(buf, buf.length);
+	private volatile long sendCount = 0, discCount = 0;
+
+	/** Initialize a new event loop.
+	 *  @param ep is the endpoint the loop belongs to
+	 *  @param sock is the endpoint's socket
+	 *  @param discProb is the probability that a packet sent is
+	 *  discarded, to test the protocol's recovery
+	 */
+	EventLoop(Endpoint ep, DatagramSocket sock, double discProb) {
+		this.ep = ep; this.sock = sock; this.discProb = discProb;
+	}
+
+	/** Instantiate run() thread and start it running. */
+	public void start() {
+		myThread = new Thread(this); myThread.start();
+	}
+
+	/** Wait for thread to quit. */
+	public void join() throws Exception { myThread.join(); }
+
+	/** Schedule a connection to run (see Connection.schedule()). */
+	void schedule(Connection c) {
+		ready.offer(c); wakeup.signal();
+	}
+
+	/** Get the number of packets sent, and the number discarded. */
+	public long sendCount() { return sendCount; }
+	public long discCount() { return discCount; }
+
+	/** Run the loop until the endpoint is closed. */
+	public void run() {
+		while (ep.isOpen()) {
+			wakeup.clear();
+			long now = System.nanoTime();
+			Connection c;
+			while ((c = ready.poll()) != null) {
+				c.queued.set(false);
+				// a finished connection may still be scheduled
+				// by its application; it must not run again
+				if (c.deadline < 0) continue;
+				if (!c.listed) { conns.add(c); c.listed = true; }
+				service(c, now);
+			}
+			if (now >= earliest) {
+				// run the connections whose deadline has passed,
+				// and drop the ones that have finished
+				earliest = Long.MAX_VALUE;
+				for (int i = conns.size() - 1; i >= 0; i--) {
+					c = conns.get(i);
+					if (c.deadline <= now) service(c, now);
+					if (c.deadline < 0) {
+						Connection last =
+							conns.remove(conns.size() - 1);
+						if (i < conns.size()) conns.set(i, last);
+						c.listed = false; c.queued.set(false);
+						ep.remove(c);
+					} else if (c.deadline < earliest)
+						earliest = c.deadline;
+				}
+			}
+			wakeup.await(Math.min(earliest, now + IDLE_WAIT));
+		}
+	}
+
+	/** Run a connection, and note when it must run next.
+	 *  A connection that has finished is left with a negative
+	 *  deadline, and due now, so the next scan drops it.
+	 */
+	private void service(Connection c, long now) {
+		c.deadline = c.rdt.service();
+		if (c.deadline < 0) earliest = now;
+		else if (c.deadline < earliest) earliest = c.deadline;
+	}
+
+	/** Send a packet on the endpoint's socket.
+	 *  @param p is the packet
+	 *  @param addr is the peer's address
+	 *  @param port is the peer's port
+	 */
+	void send(Packet p, InetAddress addr, int port) {
+		sendCount++;
+		if (discProb > 0 && Math.random() < discProb) {
+			discCount++; return;
+		}
+		int len = p.pack(buf);
+		if (len < 0) {
+			System.err.println("EventLoop: packing error " + p);
+			System.exit(1);
+		}
+		dg.setLength(len); dg.setAddress(addr); dg.setPort(port);
+		try {
+			sock.send(dg);
+		} catch(Exception e) {
+			if (!ep.isOpen()) return;
+			System.err.println("EventLoop: send error " + e);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/** Forward error correction, as a link below an Rdt.
+ *
+ *  A Fec wraps the link an Rdt would otherwise use (see
+ *  Rdt.setFec()), and passes every packet through to it. Once enabled,
+ *  it also follows each group of up to k data packets with consecutive
+ *  sequence numbers by a parity packet (see Packet), which holds the
+ *  XOR of their types, lengths and payloads (padded with zeros to the
+ *  longest). A receiver that gets all of a group but one rebuilds the
+ *  missing packet from the parity packet and the others, and hands it
+ *  to the Rdt as if it had arrived, so a lost packet costs no
+ *  retransmission, and no timeout or round of duplicate acks.
+ *
+ *  A group ends when it has k packets, when a packet that does not
+ *  follow the last one is sent (as when go-back-N goes back, or
+ *  selective repeat resends a packet), and when the Rdt flushes it
+ *  because it has been open for a while (see flush()), so the last
+ *  packets of a burst are protected too. Only packets of up to
+ *  MAX_PROTECTED bytes are protected, since a parity packet carries
+ *  OVERHEAD bytes more than its payload, and must fit in 1400 bytes;
+ *  longer packets are sent as they are.
+ *
+ *  The receiver keeps the last RING data packets, to rebuild lost
+ *  packets from, and counts the packets missing from the groups it
+ *  gets parity for. Once the groups cover REPORT_EVERY packets, it
+ *  folds the share missing into a moving average of the loss rate,
+ *  and sends that in a report (see Packet). The sender sets k from
+ *  it: about 0.1 divided by the loss rate, so that few groups lose
+ *  more than one packet, between MIN_GROUP and MAX_GROUP.
+ *
+ *  The other methods pass straight through to the wrapped link.
+ */
+
+import java.util.*;
+
+public class Fec implements Link {
+	public static final int OVERHEAD = 4;	// parity bytes beyond the payload
+	public static final int MAX_PROTECTED = Packet.MAX_PAYLOAD - OVERHEAD;
+	public static final int MIN_GROUP = 2;	// smallest group size
+	public static final int MAX_GROUP = 32;	// largest group size
+	private static final int RING = 256;	// data packets kept, a power of 2
+	private static final int REPORT_EVERY = 128; // packets per loss report
+
+	private Link link;		// the link wrapped
+	private PacketPool pool;
+	private boolean enabled = false; // true once the peer does FEC too
+	private int k;			// group size
+
+	// group being sent
+	private Packet parity = null;	// parity so far, or null if none
+	private int first;		// seq# of the group's first packet
+	private int count = 0;		// packets in the group
+	private int xorType, xorLen;	// XOR of their types and lengths
+	private long since;		// time the group was started
+
+	// receiving
+	private Packet[] ring = new Packet[RING]; // recent data packets
+	private Packet[] in = new Packet[64];	// packets from link
+	private ArrayDeque<Packet> ready = new ArrayDeque<Packet>();
+	private long covered = 0, missing = 0; // packets in groups since the
+					// last report, and missing from them
+	private double seen = -1;	// average loss rate, -1 before the first
+
+	private long paritySent = 0, rebuilt = 0;
+	private double loss = 0;	// loss rate last reported by the peer
+
+	/** Initialize a new Fec.
+	 *  @param link is the link to wrap
+	 *  @param k is the initial group size, from MIN_GROUP to MAX_GROUP
+	 */
+	Fec(Link link, int k) {
+		this.link = link;
+		this.k = Math.max(MIN_GROUP, Math.min(k, MAX_GROUP));
+		pool = link.getPool();
+	}
+
+	/** Start or stop sending parity packets. Parity packets that
+	 *  arrive are used either way.
+	 */
+	public void setEnabled(boolean enabled) {
+		if (!enabled) cut();
+		this.enabled = enabled;
+	}
+
+	/** Test if a group has been started, but not yet ended. */
+	public boolean grouped() { return count > 0; }
+
+	/** Get the time (on the link's clock) the open group was started. */
+	public long since() { return since; }
+
+	/** End the open group, if any, sending its parity packet, even if
+	 *  the group has just one packet.
+	 */
+	public void flush() {
+		if (count == 0) return;
+		parity.seqNum = first;
+		parity.window = (count << 24) | ((xorType & 0xff) << 16)
+				| (xorLen & 0xffff);
+		link.send(parity); paritySent++;
+		parity.release(); parity = null;
+		count = 0;
+	}
+
+	/** End the open group because the next packet does not belong
+	 *  to it; a group of one is not worth a parity packet.
+	 */
+	private void cut() {
+		if (count >= 2) { flush(); return; }
+		if (parity != null) { parity.release(); parity = null; }
+		count = 0;
+	}
+
+	/** Print a short status report. */
+	void report() {
+		System.out.println("     Fec: group " + k + ", " + paritySent
+				+ " parity packets sent, " + rebuilt
+				+ " packets rebuilt, peer's loss rate " + loss);
+	}
+
+	public PacketPool getPool() { return pool; }
+
+	public Wakeup wakeup() { return link.wakeup(); }
+
+	public Clock clock() { return link.clock(); }
+
+	public Random random() { return link.random(); }
+
+	public boolean isAlive() { return link.isAlive(); }
+
+	public boolean initiator() { return link.initiator(); }
+
+	public boolean answersFin() { return link.answersFin(); }
+
+	public boolean ready() { return link.ready(); }
+
+	/** Send a packet, adding it to the open group if it is a data
+	 *  packet that can be protected.
+	 */
+	public void send(Packet p) {
+		link.send(p);
+		if (!enabled || !p.isData()) return;
+		if (p.length > MAX_PROTECTED) { cut(); return; }
+		if (count > 0 && p.seqNum != first + count) cut();
+		if (count == 0) {
+			parity = pool.get(); parity.type = 8; parity.length = 0;
+			first = p.seqNum; xorType = xorLen = 0;
+			since = link.clock().nanoTime();
+		}
+		if (p.length > parity.length) {
+			Arrays.fill(parity.payload, parity.length, p.length, (byte) 0);
+			parity.length = p.length;
+		}
+		for (int i = 0; i < p.length; i++) parity.payload[i] ^= p.payload[i];
+		xorType ^= p.type; xorLen ^= p.length;
+		if (++count >= k) flush();
+	}
+
+	public int receive(Packet[] dst) {
+		int n = link.receive(in);
+		for (int i = 0; i < n; i++) {
+			Packet p = in[i]; in[i] = null;
+			if (p.type == 8) {
+				parity(p); p.release();
+			} else if (p.type == 9) {
+				adapt(p.window / 1e6); p.release();
+			} else {
+				if (p.isData()) remember(p);
+				ready.add(p);
+			}
+		}
+		n = 0;
+		while (n < dst.length && !ready.isEmpty()) dst[n++] = ready.poll();
+		return n;
+	}
+
+	public boolean incoming() { return !ready.isEmpty() || link.incoming(); }
+
+	/** Keep a data packet, to rebuild others from. */
+	private void remember(Packet p) {
+		int i = p.seqNum & (RING - 1);
+		if (ring[i] != null) {
+			if (ring[i].seqNum == p.seqNum) return;
+			ring[i].release();
+		}
+		p.retain(); ring[i] = p;
+	}
+
+	/** Process a parity packet, rebuilding the one packet missing from
+	 *  its group, if just one is, and reporting the loss rate when due.
+	 */
+	private void parity(Packet q) {
+		int size = q.window >>> 24;
+		if (size == 0 || size > MAX_GROUP) return;
+		int lost = 0, hole = 0;
+		for (int i = 0; i < size; i++) {
+			Packet p = ring[(q.seqNum + i) & (RING - 1)];
+			if (p == null || p.seqNum != q.seqNum + i) {
+				lost++; hole = q.seqNum + i;
+			}
+		}
+		covered += size; missing += lost;
+		if (lost == 1) rebuild(q, hole);
+		if (covered >= REPORT_EVERY) {
+			double rate = (double) missing / covered;
+			seen = (seen < 0 ? rate : 0.75 * seen + 0.25 * rate);
+			Packet r = pool.get();
+			r.type = 9; r.seqNum = 0; r.window = (int) (1e6 * seen);
+			link.send(r); r.release();
+			covered = missing = 0;
+		}
+	}
+
+	/** Rebuild a packet from its group's parity packet and the rest
+	 *  of the group, and queue it as if it had arrived.
+	 *  @param q is the parity packet
+	 *  @param seqNum is the sequence number of the missing packet
+	 */
+	private void rebuild(Packet q, int seqNum) {
+		int type = (q.window >> 16) & 0xff, len = q.window & 0xffff;
+		Packet r = pool.get();
+		System.arraycopy(q.payload, 0, r.payload, 0, q.length);
+		int size = q.window >>> 24;
+		for (int i = 0; i < size; i++) {
+			Packet p = ring[(q.seqNum + i) & (RING - 1)];
+			if (q.seqNum + i == seqNum) continue;
+			type ^= p.type; len ^= p.length;
+			for (int j = 0; j < p.length; j++) r.payload[j] ^= p.payload[j];
+		}
+		if ((type != 0 && type != 2) || len > q.length) {
+			r.release(); return;	// not a group we sent
+		}
+		r.type = (byte) type; r.length = len;
+		r.seqNum = seqNum; r.connId = q.connId;
+		remember(r); ready.add(r); rebuilt++;
+	}
+
+	/** Set the group size from the loss rate the peer has seen. */
+	private void adapt(double rate) {
+		loss = rate;
+		k = (rate <= 0 ? MAX_GROUP : (int) Math.min(0.1 / rate, MAX_GROUP));
+		k = Math.max(k, MIN_GROUP);
+	}
+}
@@ -0,0 +1,249 @@
+/** Transfer a file over an Rdt connection.
+ *  usage: FileTransfer send myIp myPort wSize timeout [ options ]
+ *  		file peerIp peerPort
+ *  	   FileTransfer receive myIp myPort wSize timeout [ options ] file
+ *
+ *  The receiver should be started first; it waits for a sender to
+ *  connect, and writes the file it sends to file, replacing whatever
+ *  was there. Both print the number of bytes transferred, the time
+ *  it took and the throughput, and the CRC-32 of the file; the
+ *  receiver checks it against the sender's, and exits with status 1
+ *  if they differ.
+ *
+ *  The file is not read or written through streams, but mapped into
+ *  memory (see FileChannel.map()), REGION bytes at a time. Each
+ *  message the sender sends is the offset of a piece of the file,
+ *  followed by the piece, which Rdt.send() copies straight from the
+ *  mapping into a packet. The receiver sets the output file to its
+ *  full size first, and Rdt.receive() copies each piece straight from
+ *  the packet into the mapping of the output file, at its offset.
+ *  Pieces never straddle regions. The first message holds the size
+ *  of the file, and the last its CRC-32.
+ *
+ *  myIp, myPort, wSize and timeout are as for TestRdt. The options
+ *  are any of these, in this order:
+ *
+ *  sr, sack, fec[=k], pace	as for TestRdt
+ *  netem=spec	as for TestRdt
+ *  loss=p	is the probability that a packet sent is discarded,
+ *  		before the impairments in netem
+ *
+ *  With fec, the pieces are kept short enough for their packets to be
+ *  protected (see Fec).
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+public class FileTransfer {
+	private static final long REGION = 1 << 26;	// bytes mapped at a time
+
+	public static void main(String[] args) throws Exception {
+		// process command line arguments
+		if (args.length < 6 || !(args[0].equals("send")
+					 || args[0].equals("receive"))) usage();
+		boolean sending = args[0].equals("send");
+		InetAddress myIp = InetAddress.getByName(args[1]);
+		int myPort = Integer.parseInt(args[2]);
+		int wSize = Integer.parseInt(args[3]);
+		double timeout = Double.parseDouble(args[4]);
+
+		int nextArg = 5;
+		boolean selRepeat = false;
+		if (args[nextArg].equals("sr")) {
+			selRepeat = true; nextArg++;
+		}
+		boolean sack = false;
+		if (args[nextArg].equals("sack")) {
+			sack = true; nextArg++;
+		}
+		int fecGroup = 0;
+		if (args[nextArg].startsWith("fec")) {
+			fecGroup = 8;
+			if (args[nextArg].startsWith("fec="))
+				fecGroup = Integer.parseInt(args[nextArg].substring(4));
+			nextArg++;
+		}
+		boolean pace = false;
+		if (args[nextArg].equals("pace")) {
+			pace = true; nextArg++;
+		}
+		String netemSpec = null;
+		if (args[nextArg].startsWith("netem=")) {
+			netemSpec = args[nextArg].substring(6); nextArg++;
+		}
+		double discProb = 0;
+		if (args[nextArg].startsWith("loss=")) {
+			discProb = Double.parseDouble(args[nextArg].substring(5));
+			nextArg++;
+		}
+		if (args.length != nextArg + (sending ? 3 : 1)) usage();
+		String file = args[nextArg++];
+		InetSocketAddress peerAdr = null;
+		if (sending)
+			peerAdr = new InetSocketAddress(args[nextArg],
+					Integer.parseInt(args[nextArg+1]));
+
+		Substrate sub = new Substrate(myIp, myPort, peerAdr, discProb,
+					      false);
+		if (netemSpec != null) {
+			try {
+				sub.impairments().parse(netemSpec);
+			} catch(IllegalArgumentException e) {
+				System.out.println("FileTransfer: " + e.getMessage());
+				System.exit(1);
+			}
+		}
+		sub.start();
+		Rdt rdt = new Rdt(wSize, timeout, sub, selRepeat);
+		rdt.setSack(sack);
+		rdt.setFec(fecGroup);
+		rdt.setPacing(pace);
+		rdt.start();
+		boolean ok = true;
+		if (sending)
+			send(rdt, file, (fecGroup > 0 ? Fec.MAX_PROTECTED
+						      : Packet.MAX_PAYLOAD) - 8);
+		else {
+			ok = receive(rdt, file); rdt.stop();
+		}
+		sub.stop();
+		if (!ok) System.exit(1);
+	}
+
+	private static void usage() {
+		System.out.println("usage: FileTransfer send myIp myPort "
+			+ "wSize timeout [ options ] file peerIp peerPort\n"
+			+ "       FileTransfer receive myIp myPort wSize timeout "
+			+ "[ options ] file\n"
+			+ "options: [ sr ] [ sack ] [ fec[=k] ] [ pace ] "
+			+ "[ netem=spec ] [ loss=p ]");
+		System.exit(1);
+	}
+
+	/** Send a file: its size, then its pieces, then its CRC-32.
+	 *  @param piece is the most bytes of the file sent in a message
+	 */
+	private static void send(Rdt rdt, String file, int piece)
+				 throws Exception {
+		FileChannel in = FileChannel.open(new File(file).toPath());
+		long size = in.size();
+		ByteBuffer head = ByteBuffer.allocate(8);
+		ByteBuffer[] msg = { head, null };
+		CRC32 crc = new CRC32();
+
+		long t0 = System.nanoTime();
+		head.putLong(0, size);
+		rdt.send(head);
+		for (long base = 0; base < size; base += REGION) {
+			MappedByteBuffer region = in.map(
+				FileChannel.MapMode.READ_ONLY, base,
+				Math.min(REGION, size - base));
+			ByteBuffer body = region.duplicate();
+			for (int off = 0; off < region.limit(); off += piece) {
+				int end = Math.min(off + piece, region.limit());
+				body.limit(end); body.position(off);
+				crc.update(body);
+				body.position(off);
+				head.clear(); head.putLong(0, base + off);
+				msg[1] = body;
+				rdt.send(msg);
+			}
+		}
+		head.clear(); head.putLong(0, crc.getValue());
+		rdt.send(head);
+		in.close();
+		// stopping waits for everything to be acked
+		rdt.stop();
+		report("sent", size, System.nanoTime() - t0, crc.getValue());
+	}
+
+	/** Receive a file into a mapping of the output file.
+	 *  @return true if it arrived whole, with the sender's CRC-32
+	 */
+	private static boolean receive(Rdt rdt, String file)
+				       throws IOException {
+		ByteBuffer head = ByteBuffer.allocate(8);
+		ByteBuffer[] msg = { head, null };
+		if (!await(rdt)) return false;
+		rdt.receive(head);
+		long t0 = System.nanoTime();
+		long size = head.getLong(0);
+
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		out.setLength(size);
+		FileChannel ch = out.getChannel();
+		CRC32 crc = new CRC32();
+		MappedByteBuffer region = null;
+		long base = 0;		// offset of the region in the file
+		long got = 0;		// bytes received so far
+		while (got < size) {
+			if (region == null || got == base + region.limit()) {
+				if (region != null) {
+					crc.update(region.duplicate().clear());
+					region.force();
+				}
+				base = got;
+				region = ch.map(FileChannel.MapMode.READ_WRITE,
+						base, Math.min(REGION, size - base));
+			}
+			if (!await(rdt)) return false;
+			head.clear();
+			ByteBuffer body = region.duplicate();
+			body.position((int) (got - base));
+			msg[1] = body;
+			int len = rdt.receive(msg) - 8;
+			if (len < 0 || head.getLong(0) != got
+			    || len > body.position() - (got - base)) {
+				System.out.println("FileTransfer: bad piece at "
+					+ head.getLong(0) + " when expecting " + got);
+				return false;
+			}
+			got += len;
+		}
+		if (region != null) {
+			crc.update(region.duplicate().clear());
+			region.force();
+		}
+		ch.close(); out.close();
+		long t = System.nanoTime() - t0;
+
+		if (!await(rdt)) return false;
+		head.clear();
+		rdt.receive(head);
+		report("received", size, t, crc.getValue());
+		if (head.getLong(0) != crc.getValue()) {
+			System.out.printf("FileTransfer: checksum mismatch, "
+				+ "sender's CRC-32 %08x\n", head.getLong(0));
+			return false;
+		}
+		System.out.println("FileTransfer: checksum ok");
+		return true;
+	}
+
+	/** Wait for a message.
+	 *  @return false if the sender closed the connection instead
+	 */
+	private static boolean await(Rdt rdt) {
+		while (!rdt.incoming()) {
+			if (rdt.eof()) {
+				System.out.println("FileTransfer: connection "
+						   + "closed early");
+				return false;
+			}
+			LockSupport.parkNanos(100000);
+		}
+		return true;
+	}
+
+	private static void report(String what, long size, long ns, long crc) {
+		double secs = ns / 1e9;
+		System.out.printf("FileTransfer: %s %d bytes in %.3f s, "
+			+ "%.2f MB/s, CRC-32 %08x\n", what, size, secs,
+			(secs > 0 ? size / secs / 1e6 : 0), crc);
+	}
+}
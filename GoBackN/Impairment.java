@@ -0,0 +1,21 @@
+/** Stage of a network impairment pipeline (see Netem).
+ *
+ *  A stage is given the times at which the copies of a packet reach
+ *  it (there is one copy, unless an earlier stage has duplicated the
+ *  packet), and replaces them with the times at which its own copies
+ *  leave it: later to delay them, none to lose the packet, or more
+ *  to duplicate it. Stages are called by one thread, in the order
+ *  the packets are sent.
+ */
+public interface Impairment {
+	/** Pass a packet through the stage.
+	 *  @param at holds, in at[0..n-1], the times (in ns) at which the
+	 *  copies of the packet reach the stage; they are replaced by the
+	 *  times at which its copies leave it
+	 *  @param n is the number of copies
+	 *  @param len is the length of the packet in bytes
+	 *  @return the number of copies that leave the stage, which must
+	 *  be at most at.length
+	 */
+	int apply(long[] at, int n, int len);
+}
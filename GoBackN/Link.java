@@ -0,0 +1,62 @@
+/** Packet service used by an Rdt.
+ *
+ *  A Substrate is a link to the one peer its socket talks to. An
+ *  Endpoint gives each of its connections a link of its own, over
+ *  the endpoint's shared socket.
+ *
+ *  The send methods are only called by the thread running the Rdt,
+ *  and so are the receive methods.
+ */
+
+import java.util.*;
+
+public interface Link {
+	/** Get the pool that received packets are taken from. */
+	PacketPool getPool();
+
+	/** Get the wakeup for the Rdt that uses the link. The link
+	 *  signals it after every arrival and departure, and so does
+	 *  the Rdt's application when it sends or receives a message.
+	 */
+	Wakeup wakeup();
+
+	/** Get the clock the Rdt reads the time from. */
+	Clock clock();
+
+	/** Get the random number generator the Rdt draws its initial
+	 *  sequence number from.
+	 */
+	Random random();
+
+	/** Test if the link can still send packets. */
+	boolean isAlive();
+
+	/** Test if this end opens the connection, by sending the first
+	 *  SYN (see Rdt); the other end waits for it.
+	 */
+	boolean initiator();
+
+	/** Test if FINs that arrive once the Rdt has finished are still
+	 *  answered (see Endpoint), so the Rdt need not linger after the
+	 *  connection is closed.
+	 */
+	boolean answersFin();
+
+	/** Send a packet. The link keeps its own reference to p until
+	 *  it has been sent, so the caller may release p at any time.
+	 */
+	void send(Packet p);
+
+	/** Test if the link is ready to send more packets. */
+	boolean ready();
+
+	/** Retrieve all waiting packets, up to the length of an array.
+	 *  @param dst is the array to put them in; the caller must
+	 *  release each packet when done with it
+	 *  @return the number of packets retrieved
+	 */
+	int receive(Packet[] dst);
+
+	/** Test for the presence of incoming packets. */
+	boolean incoming();
+}
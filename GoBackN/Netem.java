@@ -0,0 +1,316 @@
+/** Network impairment emulator.
+ *
+ *  A Netem is a pipeline of stages (see Impairment) that every
+ *  packet a Sender sends goes through, to emulate a network that
+ *  loses, delays, reorders, duplicates and queues packets, much as
+ *  the Linux netem queueing discipline does. The stages come in the
+ *  order they are added, and any class that implements Impairment
+ *  can be added; those provided are
+ *
+ *	Loss		loses each packet with a fixed probability
+ *	GilbertElliott	loses packets in bursts, with a two state
+ *			Markov chain (see below)
+ *	Duplicate	duplicates each packet with a fixed probability
+ *	Delay		delays each packet by a fixed time plus a random
+ *			jitter, which may reorder packets
+ *	Reorder		holds back some packets, so that later packets
+ *			overtake them
+ *	Rate		limits the bandwidth with a token bucket, queueing
+ *			packets that exceed it, up to a limit
+ *
+ *  The pipeline only works out when each copy of a packet is to be
+ *  sent; the Sender holds the copies in a timing wheel (see
+ *  TimingWheel) until then.
+ *
+ *  A pipeline can be built from a specification, a comma separated
+ *  list of stages, each a name and its parameters separated by
+ *  colons; times are in seconds, rates in bytes per second, and
+ *  sizes in bytes.
+ *
+ *	loss:p			Loss, with probability p
+ *	ge:p:r[:h[:k]]		GilbertElliott, moving from the good state
+ *				to the bad with probability p and back with
+ *				probability r, and losing packets with
+ *				probability h in the bad state (default 1)
+ *				and k in the good one (default 0)
+ *	dup:p			Duplicate, with probability p
+ *	delay:d[:j]		Delay, by d plus a uniform jitter in [-j,j]
+ *	reorder:p[:gap]		Reorder, holding back packets with
+ *				probability p by gap (default 0.001)
+ *	rate:r[:burst[:limit]]	Rate, of r with a bucket of burst bytes
+ *				(default 1500), dropping packets once limit
+ *				bytes are queued (default: no limit)
+ *
+ *  For example, "ge:0.01:0.3,delay:0.02:0.005,rate:1250000:15000:60000"
+ *  gives bursty loss, 20 ms +/- 5 ms of delay and a 10 Mb/s bottleneck
+ *  with a 60 KB queue. All the stages of a pipeline share one random
+ *  number generator, so a pipeline given a seeded one behaves the same
+ *  on every run.
+ */
+
+import java.util.*;
+
+public class Netem {
+	static final int MAX_COPIES = 64; // most copies of a packet
+
+	private Random rand;		// shared by the stages
+	private ArrayList<Impairment> stages = new ArrayList<Impairment>();
+	private long[] at = new long[MAX_COPIES]; // times of a packet's copies
+	private long lost = 0, extra = 0; // copies lost, and duplicates made
+
+	/** Initialize a new, empty pipeline, which passes every packet on
+	 *  at once.
+	 *  @param rand is the random number generator for the stages
+	 */
+	Netem(Random rand) { this.rand = rand; }
+
+	/** Get the pipeline's random number generator, for new stages. */
+	public Random random() { return rand; }
+
+	/** Add a stage at the end of the pipeline. */
+	public void add(Impairment stage) { stages.add(stage); }
+
+	/** Test if the pipeline has any stages. */
+	public boolean isEmpty() { return stages.isEmpty(); }
+
+	/** Add the stages of a specification (see above) to the end of
+	 *  the pipeline.
+	 *  @param spec is the specification
+	 *  @throws IllegalArgumentException if spec is malformed
+	 */
+	public void parse(String spec) {
+		for (String s : spec.split(",")) {
+			String[] f = s.trim().split(":");
+			double[] v = new double[f.length - 1];
+			try {
+				for (int i = 1; i < f.length; i++)
+					v[i-1] = Double.parseDouble(f[i]);
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException(
+					"Netem: bad number in " + s);
+			}
+			if (f[0].equals("loss") && v.length == 1)
+				add(new Loss(v[0], rand));
+			else if (f[0].equals("ge") && v.length >= 2 && v.length <= 4)
+				add(new GilbertElliott(v[0], v[1],
+					v.length > 2 ? v[2] : 1, v.length > 3 ? v[3] : 0,
+					rand));
+			else if (f[0].equals("dup") && v.length == 1)
+				add(new Duplicate(v[0], rand));
+			else if (f[0].equals("delay") && v.length >= 1 && v.length <= 2)
+				add(new Delay(v[0], v.length > 1 ? v[1] : 0, rand));
+			else if (f[0].equals("reorder") && v.length >= 1
+				 && v.length <= 2)
+				add(new Reorder(v[0], v.length > 1 ? v[1] : 0.001, rand));
+			else if (f[0].equals("rate") && v.length >= 1 && v.length <= 3)
+				add(new Rate(v[0], v.length > 1 ? (int) v[1] : 1500,
+					     v.length > 2 ? (long) v[2] : -1));
+			else
+				throw new IllegalArgumentException(
+					"Netem: bad stage " + s);
+		}
+	}
+
+	/** Pass a packet through the pipeline.
+	 *  @param now is the time it is sent, in ns
+	 *  @param len is its length in bytes
+	 *  @param times is an array of at least MAX_COPIES entries in
+	 *  which to put the times at which its copies are to be sent
+	 *  @return the number of copies, 0 if the packet is lost
+	 */
+	public int apply(long now, int len, long[] times) {
+		at[0] = now;
+		int n = 1;
+		for (int i = 0; i < stages.size() && n > 0; i++)
+			n = stages.get(i).apply(at, n, len);
+		if (n == 0) lost++;
+		else extra += n - 1;
+		System.arraycopy(at, 0, times, 0, n);
+		return n;
+	}
+
+	/** Get the number of packets lost (including those dropped by
+	 *  a full queue), and the number of duplicates made.
+	 */
+	public long lost() { return lost; }
+	public long duplicates() { return extra; }
+
+	/** Describe the pipeline's stages. */
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		for (Impairment s : stages) {
+			if (b.length() > 0) b.append(",");
+			b.append(s);
+		}
+		return b.toString();
+	}
+
+	/** Independent loss: each packet is lost with probability p. */
+	public static class Loss implements Impairment {
+		private double p; private Random rand;
+
+		Loss(double p, Random rand) { this.p = p; this.rand = rand; }
+
+		public int apply(long[] at, int n, int len) {
+			int m = 0;
+			for (int i = 0; i < n; i++)
+				if (rand.nextDouble() >= p) at[m++] = at[i];
+			return m;
+		}
+
+		public String toString() { return "loss:" + p; }
+	}
+
+	/** Bursty loss, with the Gilbert-Elliott model. The channel is
+	 *  in a good state or a bad one. Before each packet, it moves
+	 *  from good to bad with probability p, and from bad to good
+	 *  with probability r, so bursts of the bad state last 1/r
+	 *  packets on average, and the channel spends p/(p+r) of the
+	 *  time in it. A packet is lost with probability k in the good
+	 *  state and h in the bad one.
+	 */
+	public static class GilbertElliott implements Impairment {
+		private double p, r, h, k; private Random rand;
+		private boolean bad = false;	// state of the channel
+
+		GilbertElliott(double p, double r, double h, double k,
+			       Random rand) {
+			this.p = p; this.r = r; this.h = h; this.k = k;
+			this.rand = rand;
+		}
+
+		public int apply(long[] at, int n, int len) {
+			int m = 0;
+			for (int i = 0; i < n; i++) {
+				if (rand.nextDouble() < (bad ? r : p)) bad = !bad;
+				if (rand.nextDouble() >= (bad ? h : k))
+					at[m++] = at[i];
+			}
+			return m;
+		}
+
+		public String toString() {
+			return "ge:" + p + ":" + r + ":" + h + ":" + k;
+		}
+	}
+
+	/** Duplication: each copy of a packet is doubled with
+	 *  probability p, the duplicate following right behind it.
+	 */
+	public static class Duplicate implements Impairment {
+		private double p; private Random rand;
+
+		Duplicate(double p, Random rand) { this.p = p; this.rand = rand; }
+
+		public int apply(long[] at, int n, int len) {
+			int m = n;
+			for (int i = 0; i < n && m < at.length; i++)
+				if (rand.nextDouble() < p) at[m++] = at[i];
+			return m;
+		}
+
+		public String toString() { return "dup:" + p; }
+	}
+
+	/** Delay: each copy is delayed by a fixed time plus a jitter
+	 *  drawn uniformly from [-jitter,jitter] (but never by less than
+	 *  nothing). Since each copy gets its own jitter, a jitter larger
+	 *  than the time between packets reorders them.
+	 */
+	public static class Delay implements Impairment {
+		private long delay, jitter; private Random rand;
+
+		/** @param delay is the fixed delay, in seconds
+		 *  @param jitter is the largest jitter, in seconds
+		 */
+		Delay(double delay, double jitter, Random rand) {
+			this.delay = (long) (delay * 1000000000);
+			this.jitter = (long) (jitter * 1000000000);
+			this.rand = rand;
+		}
+
+		public int apply(long[] at, int n, int len) {
+			for (int i = 0; i < n; i++) {
+				long d = delay;
+				if (jitter > 0)
+					d += (long) ((2 * rand.nextDouble() - 1) * jitter);
+				at[i] += Math.max(d, 0);
+			}
+			return n;
+		}
+
+		public String toString() {
+			return "delay:" + delay / 1e9 + ":" + jitter / 1e9;
+		}
+	}
+
+	/** Reordering: each copy is held back by an extra gap with
+	 *  probability p, so that the packets sent during the gap
+	 *  overtake it.
+	 */
+	public static class Reorder implements Impairment {
+		private double p; private long gap; private Random rand;
+
+		/** @param gap is the time a packet is held back, in seconds */
+		Reorder(double p, double gap, Random rand) {
+			this.p = p; this.gap = (long) (gap * 1000000000);
+			this.rand = rand;
+		}
+
+		public int apply(long[] at, int n, int len) {
+			for (int i = 0; i < n; i++)
+				if (rand.nextDouble() < p) at[i] += gap;
+			return n;
+		}
+
+		public String toString() { return "reorder:" + p + ":" + gap / 1e9; }
+	}
+
+	/** Bandwidth limit, with a token bucket. Tokens (bytes) are added
+	 *  at the given rate, up to the bucket size, and a packet takes
+	 *  as many as its length; one that finds too few waits until
+	 *  there are enough, behind those already waiting. So bursts of
+	 *  up to the bucket size pass at once, and the rest is sent at
+	 *  the rate, as through a bottleneck link with a FIFO queue. A
+	 *  packet that finds more than the limit already queued is dropped.
+	 */
+	public static class Rate implements Impairment {
+		private double rate;		// bytes per ns
+		private long burst;		// bucket size in bytes
+		private long limit;		// most bytes queued, -1 for no limit
+		private double tokens;		// bytes in the bucket, less those
+						// owed by queued packets
+		private long last = 0;		// time tokens was computed for
+
+		/** @param rate is the rate in bytes per second
+		 *  @param burst is the bucket size in bytes
+		 *  @param limit is the most bytes queued, or -1 for no limit
+		 */
+		Rate(double rate, int burst, long limit) {
+			this.rate = rate / 1e9;
+			this.burst = Math.max(burst, 1);
+			this.limit = limit;
+			this.tokens = this.burst;
+		}
+
+		public int apply(long[] at, int n, int len) {
+			int m = 0;
+			for (int i = 0; i < n; i++) {
+				// copies pass in order, so one that arrives
+				// before the last is taken to arrive with it
+				long t = Math.max(at[i], last);
+				tokens = Math.min(burst, tokens + (t - last) * rate);
+				last = t;
+				if (limit >= 0 && -tokens > limit) continue; // queue full
+				tokens -= len;
+				if (tokens < 0) t += (long) Math.ceil(-tokens / rate);
+				at[m++] = t;
+			}
+			return m;
+		}
+
+		public String toString() {
+			return "rate:" + (long) (rate * 1e9) + ":" + burst + ":" + limit;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/** Send pacing.
+ *
+ *  Spaces out the data packets a sender sends, rather than letting
+ *  it send a whole window back to back whenever acks open one: such
+ *  bursts overflow the socket buffers and receive queues on the way,
+ *  and the losses look like congestion.
+ *
+ *  A token bucket holds up to BURST packets' worth of tokens, and is
+ *  refilled at the pacing rate, GAIN times the window per smoothed
+ *  round-trip time, so that a full window is spread over most of a
+ *  round trip, with some room for the window to grow. Each packet
+ *  sent takes a token, and a packet may only be sent while there is
+ *  at least one. Until the first round-trip time is measured, packets
+ *  are not paced.
+ *
+ *  If a trace stream is set, the rate is written to it whenever it
+ *  changes by more than a tenth, as a line with the time in seconds,
+ *  the rate in packets per second, the window and the round-trip
+ *  time in seconds.
+ */
+
+import java.io.*;
+
+public class Pacer {
+	public static final double GAIN = 1.25;	// rate per window per rtt
+	public static final int BURST = 4;	// bucket size (packets)
+
+	private volatile double rate = 0; // packets per ns, 0 if not paced
+	private double tokens = BURST;	// packets that may be sent now
+	private long last = 0;		// time tokens was computed for
+	private boolean waited = false;	// true if the next packet had to wait
+	private long sent = 0, paced = 0; // packets sent, and those that waited
+
+	private PrintStream trace;	// where to write changes, or null
+	private double logged = 0;	// rate last written to trace
+
+	/** Write changes of the rate to a stream.
+	 *  @param trace is the stream, or null to stop tracing
+	 */
+	public void setTrace(PrintStream trace) { this.trace = trace; }
+
+	/** Set the pacing rate.
+	 *  @param now is the current time in ns
+	 *  @param window is the number of packets that may be in flight
+	 *  @param srtt is the smoothed round-trip time in ns, or 0 if
+	 *  none has been measured yet
+	 */
+	public void setRate(long now, int window, long srtt) {
+		double r = (srtt > 0 ? GAIN * window / srtt : 0);
+		if (r == rate) return;
+		refill(now);
+		rate = r;
+		if (trace != null && Math.abs(rate - logged) > logged / 10) {
+			logged = rate;
+			trace.printf("%.6f %.1f %d %.6f\n", now / 1e9, rate * 1e9,
+				     window, srtt / 1e9);
+		}
+	}
+
+	/** Test if a packet may be sent now.
+	 *  @param now is the current time in ns
+	 */
+	public boolean ready(long now) {
+		refill(now);
+		if (rate == 0 || tokens >= 1) return true;
+		waited = true;
+		return false;
+	}
+
+	/** Take a token for a packet sent.
+	 *  @param now is the current time in ns
+	 */
+	public void sent(long now) {
+		refill(now);
+		if (rate > 0) tokens -= 1;
+		sent++;
+		if (waited) { paced++; waited = false; }
+	}
+
+	/** Get the time at which the next packet may be sent.
+	 *  @return the time in ns, no earlier than the last time given
+	 */
+	public long nextSend() {
+		if (rate == 0 || tokens >= 1) return last;
+		return last + (long) Math.ceil((1 - tokens) / rate);
+	}
+
+	/** Get the pacing rate in packets per second, 0 if not paced. */
+	public double rate() { return rate * 1e9; }
+
+	/** Get the number of packets sent, and the number of those that
+	 *  had to wait for a token.
+	 */
+	public long sentCount() { return sent; }
+	public long pacedCount() { return paced; }
+
+	private void refill(long now) {
+		if (now > last) {
+			tokens = Math.min(BURST, tokens + (now - last) * rate);
+			last = now;
+		}
+	}
+}
@@ -1,58 +1,329 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
-import java.nio.*;
+import java.nio.charset.*;
+import java.util.concurrent.atomic.*;
 
-/** Class for working with studio3 packets. */
+/** Class for working with studio3 packets.
+ *  A packet's type is 0 for a data packet carrying one application
+ *  message, 1 for an ack, 2 for a batch: a data packet carrying
+ *  several messages, each preceded by its length in decimal and a
+ *  colon, or 3 for a cumulative ack that acknowledges every packet
+ *  up to and including seqNum (used by selective repeat, whose
+ *  ordinary acks are for single packets).
+ *
+ *  Types 4 to 7 are control packets, which open and close a
+ *  connection (see Rdt): 4 is a SYN and 5 a SYN-ACK, whose seqNum is
+ *  the sender's initial sequence number, and 6 is a FIN and 7 a
+ *  FIN-ACK, whose seqNum is the sequence number after the last data
+ *  packet of the end that sent the FIN. Type 10 is a FORWARD, also a
+ *  control packet, whose seqNum is the first packet its sender has
+ *  not abandoned: the receiver stops waiting for those before it.
+ *
+ *  Acks and control packets carry the receiver's advertised window
+ *  after the sequence number, in place of a payload (SYN and SYN-ACK
+ *  packets carry the window size offered instead). Control packets
+ *  follow it with 32 bits of options: OPT_SR in a SYN or SYN-ACK asks
+ *  for selective repeat, OPT_SACK for selective acks and OPT_FEC for
+ *  forward error correction, OPT_ACK in a FIN says that it also acks
+ *  the receiver's FIN, and OPT_DONE in a FIN-ACK says that the
+ *  sender's own FIN has been acked.
+ *
+ *  Acks may follow the window with up to MAX_SACK selective ack
+ *  blocks (see addSack()), each a pair of 32 bit sequence numbers:
+ *  the first packet of a run that has arrived out of order after
+ *  the acked one, and the packet after the run. They are kept in the
+ *  payload, so length is 8 times the number of blocks.
+ *
+ *  Types 8 and 9 belong to forward error correction (see Fec). A
+ *  parity packet, type 8, has the sequence number of the first data
+ *  packet of its group, and in place of the window, the group's size
+ *  in its high 8 bits, the XOR of the packets' types in the next 8,
+ *  and the XOR of their lengths in the low 16; its payload, the XOR
+ *  of their payloads, follows. A loss report, type 9, carries the
+ *  loss rate the receiver has seen, in parts per million, in place
+ *  of the window.
+ *
+ *  The first byte of a packet holds the wire format version in its
+ *  high four bits and the type in its low four. Version 2 packets
+ *  follow it with a 32 bit connection ID, which an Endpoint uses to
+ *  tell apart connections from the same peer (a Substrate always
+ *  uses 0), and then a 32 bit sequence number. Version 1 packets
+ *  have no connection ID, and version 0 packets have 16 bit sequence
+ *  numbers and windows; both can still be unpacked (with connection
+ *  ID 0), but are no longer produced.
+ *
+ *  The payload is kept in a byte array of MAX_PAYLOAD bytes that
+ *  belongs to the packet, and packets are packed into and unpacked
+ *  from datagram buffers supplied by the caller, so a packet can be
+ *  reused without allocating anything. Packets taken from a
+ *  PacketPool are reference counted: each holder of a packet calls
+ *  retain() when it keeps it, and release() when done with it, and
+ *  the last release() returns it to the pool.
+ */
 public class Packet {
+	public static final int VERSION = 2;		// wire format version
+	public static final int HEADER = 9;		// header length (version 2)
+	public static final int MAX_PAYLOAD = 1400 - HEADER; // max payload length
+
+	public static final int OPT_SR = 1;	// SYN: use selective repeat
+	public static final int OPT_SACK = 2;	// SYN: use selective acks
+	public static final int OPT_FEC = 4;	// SYN: send parity packets
+	public static final int OPT_ACK = 1;	// FIN: acks the peer's FIN too
+	public static final int OPT_DONE = 1;	// FIN-ACK: sender's FIN acked
+	public static final int MAX_SACK = 4;	// most blocks in an ack
+
 	// packet fields - note: all are public
 	public byte type;		// packet type
-	public short seqNum;		// sequence number in [0,2^15)
-	public String payload;		// application payload
+	public int connId;		// connection ID
+	public int seqNum;		// sequence number (wraps around)
+	public byte[] payload = new byte[MAX_PAYLOAD]; // application payload
+	public int length;		// number of payload bytes in use
+	public int window;		// advertised window (acks only), -1 if none
+	public int options;		// option bits (control packets only)
+	public long expiry;		// time (on the sender's clock) after which
+					// it is not worth delivering, 0 if never;
+					// not sent
+
+	private PacketPool pool;	// pool to return to, or null
+	AtomicInteger refs = new AtomicInteger(1); // references held
+
+	// position of the current message in a batch, see nextMessage()
+	public int msgOffset, msgLength;
+	private int nextMsg = 0;	// offset of the next length prefix
 
 	/** Constructor, initializes fields to default values. */
 	public Packet() { clear(); }
 
+	/** Constructor for a packet that belongs to a pool. */
+	Packet(PacketPool pool) { this.pool = pool; clear(); }
+
 	/** Initialize all packet fields.
 	 *  Initializes all fields to an undefined value.
  	 */
 	public void clear() {
-		type = 0; seqNum = 0; payload = "";
+		type = 0; connId = 0; seqNum = 0; length = 0; window = -1;
+		options = 0; expiry = 0;
+		nextMsg = 0;
+	}
+
+	/** Add a reference to the packet. */
+	public void retain() { refs.incrementAndGet(); }
+
+	/** Drop a reference to the packet, returning it to its pool
+	 *  once no references are left.
+	 */
+	public void release() {
+		int n = refs.decrementAndGet();
+		if (n == 0 && pool != null) pool.put(this);
+		else if (n < 0) {
+			System.err.println("Packet: released too often " + this);
+			System.exit(1);
+		}
+	}
+
+	/** Set the payload to a copy of some bytes.
+	 *  @param buf is an array holding the bytes
+	 *  @param off is the offset of the first byte in buf
+	 *  @param len is the number of bytes, at most MAX_PAYLOAD
+	 */
+	public void setPayload(byte[] buf, int off, int len) {
+		System.arraycopy(buf, off, payload, 0, len); length = len;
 	}
 
 	/** Pack attributes defining packet fields into buffer.
-	 *  Fails if the packet type is undefined or if the resulting
-	 *  buffer exceeds the allowed length of 1400 bytes.
-	 *  @return null on failure, otherwise a byte array
-	 *  containing the packet payload.
+	 *  Fails if the payload exceeds MAX_PAYLOAD bytes, so that the
+	 *  packet would exceed the allowed length of 1400 bytes.
+	 *  @param buf is the buffer to pack into, which must have room
+	 *  for HEADER + MAX_PAYLOAD bytes
+	 *  @return the number of bytes written to buf, or -1 on failure
 	 */
-	public byte[] pack() {
-		byte[] pbuf;
-		try { pbuf = payload.getBytes("US-ASCII");
-		} catch(Exception e) { return null; }
-		if (pbuf.length > 1400 - 3) return null;
-		ByteBuffer bbuf = ByteBuffer.allocate(3 + pbuf.length);
-		bbuf.order(ByteOrder.BIG_ENDIAN);
-		bbuf.put(type); bbuf.putShort(seqNum);
-		bbuf.put(pbuf);
-		return bbuf.array();
+	public int pack(byte[] buf) {
+		if (length > MAX_PAYLOAD) return -1;
+		buf[0] = (byte) ((VERSION << 4) | type);
+		putInt(buf, 1, connId);
+		putInt(buf, 5, seqNum);
+		if (!isData()) {
+			putInt(buf, HEADER, window);
+			if (!isControl()) {
+				// selective ack blocks or parity, if any
+				System.arraycopy(payload, 0, buf, HEADER + 4, length);
+				return HEADER + 4 + length;
+			}
+			putInt(buf, HEADER + 4, options);
+			return HEADER + 8;
+		}
+		System.arraycopy(payload, 0, buf, HEADER, length);
+		return HEADER + length;
 	}
 
 	/** Unpack attributes defining packet fields from buffer.
+	 *  The payload is copied, so buf may be reused afterwards.
 	 *  @param buf is a byte array containing the packet
 	 *  (or if you like, the payload of a UDP packet).
 	 *  @param bufLen is the number of valid bytes in buf
 	 */
 	public boolean unpack(byte[] buf, int bufLen) {
-		if (bufLen < 3) return false;
-		ByteBuffer bbuf = ByteBuffer.wrap(buf);
-		bbuf.order(ByteOrder.BIG_ENDIAN);
-		type = bbuf.get(); seqNum = bbuf.getShort();
-		try { payload = new String(buf,3,bufLen-3,"US-ASCII");
-		} catch(Exception e) { return false; }
+		if (bufLen < 1) return false;
+		int version = (buf[0] >> 4) & 0xf;
+		if (version > VERSION) return false;
+		int hdr = (version == 0 ? 3 : version == 1 ? 5 : HEADER);
+		if (bufLen < hdr) return false;
+		type = (byte) (buf[0] & 0xf);
+		connId = (version == 2 ? getInt(buf, 1) : 0);
+		seqNum = (version == 0 ? getShort(buf, 1) : getInt(buf, hdr - 4));
+		nextMsg = 0;
+		if (!isData()) {
+			length = 0;
+			window = -1; options = 0;
+			if (version == 0 && bufLen >= hdr + 2)
+				window = getShort(buf, hdr);
+			else if (version > 0 && bufLen >= hdr + 4)
+				window = getInt(buf, hdr);
+			if (isControl()) {
+				if (version > 0 && bufLen >= hdr + 8)
+					options = getInt(buf, hdr + 4);
+			} else if (type == 8 && bufLen > hdr + 4) {
+				if (bufLen - hdr - 4 > MAX_PAYLOAD) return false;
+				setPayload(buf, hdr + 4, bufLen - hdr - 4);
+			} else if (version > 0 && bufLen > hdr + 4) {
+				int n = Math.min((bufLen - hdr - 4) / 8, MAX_SACK);
+				setPayload(buf, hdr + 4, 8 * n);
+			}
+			return true;
+		}
+		window = -1; options = 0;
+		if (bufLen - hdr > MAX_PAYLOAD) return false;
+		setPayload(buf, hdr, bufLen - hdr);
 		return true;
 	}
 
+	private static void putInt(byte[] buf, int i, int x) {
+		buf[i] = (byte) (x >> 24); buf[i+1] = (byte) (x >> 16);
+		buf[i+2] = (byte) (x >> 8); buf[i+3] = (byte) x;
+	}
+
+	private static int getInt(byte[] buf, int i) {
+		return (buf[i] << 24) | ((buf[i+1] & 0xff) << 16)
+		       | ((buf[i+2] & 0xff) << 8) | (buf[i+3] & 0xff);
+	}
+
+	private static short getShort(byte[] buf, int i) {
+		return (short) ((buf[i] << 8) | (buf[i+1] & 0xff));
+	}
+
+	/** Add a selective ack block to an ack.
+	 *  @param first is the first packet of a run received out of order
+	 *  @param end is the packet after the run
+	 *  @return false if the ack already holds MAX_SACK blocks
+	 */
+	public boolean addSack(int first, int end) {
+		if (length >= 8 * MAX_SACK) return false;
+		putInt(payload, length, first); putInt(payload, length + 4, end);
+		length += 8;
+		return true;
+	}
+
+	/** Get the number of selective ack blocks in an ack. */
+	public int sackCount() { return type == 1 ? length / 8 : 0; }
+
+	/** Get the first packet of selective ack block i. */
+	public int sackFirst(int i) { return getInt(payload, 8 * i); }
+
+	/** Get the packet after selective ack block i. */
+	public int sackEnd(int i) { return getInt(payload, 8 * i + 4); }
+
+	/** Test if this is a data packet (including a batch). */
+	public boolean isData() { return type == 0 || type == 2; }
+
+	/** Test if this is a control packet (SYN, SYN-ACK, FIN, FIN-ACK
+	 *  or FORWARD).
+	 */
+	public boolean isControl() {
+		return (type >= 4 && type <= 7) || type == 10;
+	}
+
+	/** Get the number of payload bytes a message takes in a batch.
+	 *  @param n is the length of an application message
+	 *  @return the length of the message and its length prefix
+	 */
+	public static int batchedLength(int n) {
+		return n + digits(n) + 1;
+	}
+
+	private static int digits(int n) {
+		int d = 1;
+		while (n >= 10) { n /= 10; d++; }
+		return d;
+	}
+
+	/** Append a message to a batch, preceded by its length prefix.
+	 *  The caller must check that it fits (see batchedLength()).
+	 *  @param buf is an array holding the message
+	 *  @param off is the offset of the message in buf
+	 *  @param len is the length of the message
+	 */
+	public void addMessage(byte[] buf, int off, int len) {
+		int i = length + digits(len);
+		for (int n = len; i > length; n /= 10)
+			payload[--i] = (byte) ('0' + n % 10);
+		length += digits(len);
+		payload[length++] = ':';
+		System.arraycopy(buf, off, payload, length, len);
+		length += len;
+	}
+
+	/** Step to the next application message carried by a data
+	 *  packet, setting msgOffset and msgLength to its place in the
+	 *  payload. A type 0 packet carries one message, its whole
+	 *  payload. The first call after clear() or unpack() (or
+	 *  rewind()) finds the first message.
+	 *  @return false if there are no more messages, or if a batch
+	 *  payload is malformed
+	 */
+	public boolean nextMessage() {
+		if (type != 2) {
+			if (nextMsg != 0) return false;
+			msgOffset = 0; msgLength = length;
+			nextMsg = Integer.MAX_VALUE;
+			return true;
+		}
+		if (nextMsg < 0 || nextMsg >= length) return false;
+		int i = nextMsg, n = 0;
+		while (i < length && payload[i] >= '0' && payload[i] <= '9'
+		       && n < MAX_PAYLOAD)
+			n = 10 * n + (payload[i++] - '0');
+		if (i == nextMsg || i >= length || payload[i] != ':'
+		    || n > length - i - 1) {
+			nextMsg = -1; return false;
+		}
+		msgOffset = i + 1; msgLength = n;
+		nextMsg = msgOffset + n;
+		return true;
+	}
+
+	/** Go back to the first message, for nextMessage(). */
+	public void rewind() { nextMsg = 0; }
+
+	/** Count the application messages carried by a data packet.
+	 *  Leaves the packet rewound.
+	 *  @return the number of messages, or -1 if a batch payload
+	 *  is malformed
+	 */
+	public int messageCount() {
+		int n = 0;
+		rewind();
+		while (nextMessage()) n++;
+		boolean ok = (nextMsg >= 0);
+		rewind();
+		return ok ? n : -1;
+	}
+
+	/** Get the payload as a string, for printing. */
+	public String payloadString() {
+		return new String(payload, 0, length, StandardCharsets.US_ASCII);
+	}
+
 	/** Create String representation of packet.
 	 *  The resulting String is produced using the defined
 	 *  attributes and is formatted with one field per line,
@@ -60,8 +331,25 @@ public class Packet {
 	 */
 	public String toString() {
 		if (type == 0)
-			return "data[" + seqNum + "] " + payload;
-		else
-			return "ack[" + seqNum + "]";
+			return "data[" + seqNum + "] " + payloadString();
+		else if (type == 2)
+			return "batch[" + seqNum + "] " + payloadString();
+		else if (type == 3)
+			return "cumack[" + seqNum + "] win " + window;
+		else if (type == 8)
+			return "parity[" + seqNum + "] group " + (window >>> 24);
+		else if (type == 9)
+			return "lossreport " + window / 1e6;
+		else if (isControl())
+			return (type == 4 ? "syn[" : type == 5 ? "synack["
+				: type == 6 ? "fin[" : type == 7 ? "finack["
+				: "forward[") + seqNum
+				+ "] win " + window + " opt " + options;
+		else {
+			String str = "ack[" + seqNum + "] win " + window;
+			for (int i = 0; i < sackCount(); i++)
+				str += " sack " + sackFirst(i) + "-" + sackEnd(i);
+			return str;
+		}
 	}
 }
@@ -0,0 +1,45 @@
+/** Pool of reusable packets.
+ *
+ *  Packets are taken from the pool with get() and go back to it when
+ *  their last reference is released (see Packet.release()), so a
+ *  steady stream of packets reuses the same few objects and payload
+ *  arrays instead of allocating new ones. When the pool is empty, a
+ *  new packet is created; when it is full, a released packet is left
+ *  for the garbage collector, so the pool never holds more than its
+ *  capacity.
+ *
+ *  The pool may be used from any thread.
+ */
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class PacketPool {
+	private ArrayBlockingQueue<Packet> free; // packets ready for reuse
+	private AtomicInteger created = new AtomicInteger(); // packets made
+
+	/** Initialize a new, empty pool.
+	 *  @param capacity is the largest number of free packets kept
+	 */
+	PacketPool(int capacity) {
+		free = new ArrayBlockingQueue<Packet>(capacity);
+	}
+
+	/** Get a packet.
+	 *  @return a cleared packet, holding one reference for the caller
+	 */
+	public Packet get() {
+		Packet p = free.poll();
+		if (p == null) {
+			p = new Packet(this); created.incrementAndGet();
+		}
+		p.clear(); p.refs.set(1);
+		return p;
+	}
+
+	/** Return a packet whose last reference has been released. */
+	void put(Packet p) { free.offer(p); }
+
+	/** Get the number of packets the pool has created. */
+	public int created() { return created.get(); }
+}
@@ -0,0 +1,134 @@
+/** Ring buffer of packets, indexed by sequence number.
+ *
+ *  Holds the packets with sequence numbers from lo() up to (but not
+ *  including) some limit, in arrays whose length is a power of two,
+ *  so a sequence number is mapped to its slot by masking off its low
+ *  bits. Sequence numbers are 32 bit values that wrap around, so all
+ *  comparisons are made on differences from lo().
+ *
+ *  The ring starts small and doubles whenever a packet is put beyond
+ *  its end, and halves again once the packets it holds take up less
+ *  than a quarter of it, so its memory stays proportional to the
+ *  number of packets in flight rather than to the window size.
+ *
+ *  Along with each packet, the ring keeps the times it was sent and
+ *  is due to be resent, and whether it has been sent more than once,
+ *  for use by a sender.
+ *
+ *  The ring owns one reference to each packet it holds: put() takes
+ *  over the caller's reference, and the packet is released when it
+ *  is removed or the ring advances past it.
+ */
+public class PacketRing {
+	private static final int MIN_SIZE = 16;
+
+	private Packet[] pkts;
+	private long[] sentAt;		// time each packet was first sent
+	private long[] resendTime;	// time each packet is due to be resent
+	private boolean[] resent;	// true if packet was sent more than once
+	private int mask;		// array length - 1
+	private int lo = 0;		// seq# of first slot in use
+	private int hi = 0;		// seq# after last packet put
+
+	/** Initialize a new, empty ring. */
+	PacketRing() { alloc(MIN_SIZE); }
+
+	private void alloc(int n) {
+		pkts = new Packet[n]; sentAt = new long[n];
+		resendTime = new long[n]; resent = new boolean[n];
+		mask = n - 1;
+	}
+
+	/** Get the sequence number of the first slot in use. */
+	public int lo() { return lo; }
+
+	/** Get the sequence number after the last packet put. */
+	public int hi() { return hi; }
+
+	/** Get the number of slots, for monitoring memory use. */
+	public int capacity() { return mask + 1; }
+
+	/** Get a packet.
+	 *  @param seq is a sequence number
+	 *  @return the packet with sequence number seq, or null if there
+	 *  is none (or seq is outside the ring)
+	 */
+	public Packet get(int seq) {
+		if (Integer.compareUnsigned(seq - lo, mask + 1) >= 0) return null;
+		return pkts[seq & mask];
+	}
+
+	/** Add a packet, growing the ring if necessary.
+	 *  Any packet already held for seq is released.
+	 *  @param seq is the packet's sequence number, which must not
+	 *  be before lo(), nor 2^30 or more after it
+	 *  @param p is the packet
+	 */
+	public void put(int seq, Packet p) {
+		int off = seq - lo;
+		if (off > mask) resize(Integer.highestOneBit(off) << 1);
+		int i = seq & mask;
+		if (pkts[i] != null) pkts[i].release();
+		pkts[i] = p; sentAt[i] = resendTime[i] = 0; resent[i] = false;
+		if (off >= hi - lo) hi = seq + 1;
+	}
+
+	/** Remove a packet, leaving its slot empty.
+	 *  @param seq is the packet's sequence number
+	 */
+	public void remove(int seq) {
+		if (Integer.compareUnsigned(seq - lo, mask + 1) < 0
+		    && pkts[seq & mask] != null) {
+			pkts[seq & mask].release(); pkts[seq & mask] = null;
+		}
+	}
+
+	/** Remove all packets before a sequence number, and shrink the
+	 *  ring if it is mostly empty.
+	 *  @param newLo is the new value of lo(); it must not be before
+	 *  the current one
+	 */
+	public void advance(int newLo) {
+		for (int s = lo; s != newLo && s != hi; s++) {
+			if (pkts[s & mask] != null) pkts[s & mask].release();
+			pkts[s & mask] = null;
+		}
+		if (Integer.compareUnsigned(newLo - lo, hi - lo) >= 0) hi = newLo;
+		lo = newLo;
+		int n = mask + 1;
+		if (n > MIN_SIZE && hi - lo < n / 4) resize(n / 2);
+	}
+
+	/** Move the packets to arrays of a new size.
+	 *  @param n is the new size, a power of two larger than hi - lo
+	 */
+	private void resize(int n) {
+		Packet[] oPkts = pkts; long[] oSent = sentAt;
+		long[] oResend = resendTime; boolean[] oResent = resent;
+		int oMask = mask;
+		alloc(n);
+		for (int s = lo; s != hi; s++) {
+			int i = s & mask, j = s & oMask;
+			pkts[i] = oPkts[j]; sentAt[i] = oSent[j];
+			resendTime[i] = oResend[j]; resent[i] = oResent[j];
+		}
+	}
+
+	/** Get the time a packet was first sent. */
+	public long sentAt(int seq) { return sentAt[seq & mask]; }
+
+	/** Record the time a packet was first sent. */
+	public void setSentAt(int seq, long t) { sentAt[seq & mask] = t; }
+
+	/** Get the time a packet is due to be resent. */
+	public long resendTime(int seq) { return resendTime[seq & mask]; }
+
+	/** Set the time a packet is due to be resent. */
+	public void setResendTime(int seq, long t) { resendTime[seq & mask] = t; }
+
+	/** Test if a packet has been sent more than once. */
+	public boolean resent(int seq) { return resent[seq & mask]; }
+
+	/** Record whether a packet has been sent more than once. */
+	public void setResent(int seq, boolean b) { resent[seq & mask] = b; }
+}
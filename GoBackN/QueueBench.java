@@ -0,0 +1,113 @@
+/** Benchmark the queues used to hand packets between threads.
+ *  usage: QueueBench [ items [ trials ] ]
+ *
+ *  A producer thread passes items packets to a consumer thread
+ *  through each kind of queue in turn, and the time per packet is
+ *  printed for each, as the median over trials runs (after one run
+ *  to warm up):
+ *
+ *  abq		ArrayBlockingQueue(1000,true), with put() and take(),
+ *  		as used before SpscQueue
+ *  spsc	SpscQueue(1000), with offer() and poll()
+ *  spsc-drain	SpscQueue(1000), with offer() and drain() of up to
+ *  		64 packets at a time, as Sender and Rdt use it
+ *
+ *  Both SpscQueue variants yield the processor when the queue is
+ *  full or empty (rather than spinning, which on a single core would
+ *  only delay the other thread), so this measures the handoff itself,
+ *  not the cost of parking and waking a thread. The packets are
+ *  allocated once, up front.
+ *
+ *  items	is the number of packets to pass per run; default 10000000
+ *  trials	is the number of runs per queue; default 5
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class QueueBench {
+	private static Packet[] pkts;	// packets passed, reused cyclically
+
+	public static void main(String[] args) throws Exception {
+		int items = 10000000, trials = 5;
+		if (args.length > 0) items = Integer.parseInt(args[0]);
+		if (args.length > 1) trials = Integer.parseInt(args[1]);
+		pkts = new Packet[4096];
+		for (int i = 0; i < pkts.length; i++) pkts[i] = new Packet();
+
+		System.out.println("queue ns/packet");
+		for (String q : new String[] { "abq", "spsc", "spsc-drain" }) {
+			run(q, items);	// warm up
+			double[] t = new double[trials];
+			for (int i = 0; i < trials; i++) t[i] = run(q, items);
+			Arrays.sort(t);
+			System.out.printf("%s %.1f\n", q, t[trials / 2]);
+		}
+	}
+
+	/** Pass packets through a queue from one thread to another.
+	 *  @param q is the kind of queue
+	 *  @param items is the number of packets to pass
+	 *  @return the time per packet in ns
+	 */
+	private static double run(String q, int items) throws Exception {
+		Runnable producer, consumer;
+		if (q.equals("abq")) {
+			ArrayBlockingQueue<Packet> abq =
+				new ArrayBlockingQueue<Packet>(1000,true);
+			producer = () -> {
+				try {
+					for (int i = 0; i < items; i++)
+						abq.put(pkts[i & 4095]);
+				} catch(InterruptedException e) { }
+			};
+			consumer = () -> {
+				try {
+					for (int i = 0; i < items; i++)
+						check(abq.take(), i);
+				} catch(InterruptedException e) { }
+			};
+		} else {
+			SpscQueue<Packet> sq = new SpscQueue<Packet>(1000);
+			producer = () -> {
+				for (int i = 0; i < items; i++)
+					while (!sq.offer(pkts[i & 4095]))
+						Thread.yield();
+			};
+			if (q.equals("spsc")) {
+				consumer = () -> {
+					for (int i = 0; i < items; i++) {
+						Packet p;
+						while ((p = sq.poll()) == null)
+							Thread.yield();
+						check(p, i);
+					}
+				};
+			} else {
+				consumer = () -> {
+					Packet[] batch = new Packet[64];
+					for (int i = 0; i < items; ) {
+						int n = sq.drain(batch);
+						if (n == 0) Thread.yield();
+						for (int k = 0; k < n; k++, i++)
+							check(batch[k], i);
+					}
+				};
+			}
+		}
+		Thread c = new Thread(consumer), p = new Thread(producer);
+		long t0 = System.nanoTime();
+		c.start(); p.start();
+		p.join(); c.join();
+		return (double) (System.nanoTime() - t0) / items;
+	}
+
+	/** Check that packets arrive in the order they were sent. */
+	private static void check(Packet p, int i) {
+		if (p != pkts[i & 4095]) {
+			System.err.println("QueueBench: packet " + i
+					   + " out of order");
+			System.exit(1);
+		}
+	}
+}
@@ -1,290 +1,1445 @@
-/** Reliable Data Transport class.
- *
- *  This class implements a reliable data transport service.
- *  It uses a go-back-N sliding window protocol on a packet basis.
- *
- *  An application layer thread provides new packet payloads to be
- *  sent using the provided send() method, and retrieves newly arrived
- *  payloads with the receive() method. Each application layer payload
- *  is sent as a separate UDP packet, along with a sequence number and
- *  a type flag that identifies a packet as a data packet or an
- *  acknowledgment. The sequence numbers are 15 bits.
- */
-
-import java.io.*;
-import java.net.*;
-import java.util.*;
-import java.util.concurrent.*;
-
-public class Rdt implements Runnable {
-	private int wSize;	// protocol window size
-	private long timeout;	// retransmission timeout in ns
-	private Substrate sub;	// Substrate object for packet IO
-
-	private ArrayBlockingQueue<String> fromSrc;
-	private ArrayBlockingQueue<String> toSnk;
-
-	// Sending structures and necessary information
-	private Packet[] sendBuf; // not yet acked packets
-	private short sendBase = 0;	// seq# of first packet in send window
-	private short sendSeqNum = 0;	// next seq# after send window
-	private short dupAcks = 0; // should only happen for sendBase-1 packet
-
-	// Receiving structures and necessary information
-	private Packet[] recvBuf; // undelivered packets
-	private short recvBase = 0;  // seq# of oldest undelivered packet (to application)
-	private short expSeqNum = 0;	// seq# of packet we expect to receive (from substrate)
-	private short lastRcvd = -1; // last packet received properly
-
-	// Time keeping variabels
-	private long now = 0;		// current time (relative to t0)
-	private long sendAgain = 0;	// time when we send all unacked packets
-
-	private Thread myThread;
-	private boolean quit;
-    //boolean tag for stopping timer
-	private boolean ifTimerStopped;
-	/** Initialize a new Rdt object.
-	 *  @param wSize is the window size used by protocol; the sequence #
-	 *  space is twice the window size
-	 *  @param timeout is the time to wait before retransmitting
-	 *  @param sub is a reference to the Substrate object that this object
-	 *  uses to handle the socket IO
-	 */
-	Rdt(int wSize, double timeout, Substrate sub) 
-	{
-		this.wSize = Math.min(wSize,(1 << 14) - 1);
-		this.timeout = ((long) (timeout * 1000000000)); // sec to ns
-		this.sub = sub;
-
-		// create queues for application layer interface
-		fromSrc = new ArrayBlockingQueue<String>(1000,true);
-		toSnk = new ArrayBlockingQueue<String>(1000,true);
-		quit = false;
-
-		sendBuf = new Packet[2*wSize];
-		recvBuf = new Packet[2*wSize];
-		ifTimerStopped= false;
-	}
-
-	/** Start the Rdt running. */
-	public void start() throws Exception {
-		myThread = new Thread(this); myThread.start();
-	}
-
-	/** Stop the Rdt.  */
-	public void stop() throws Exception { quit = true; myThread.join(); }
-
-	/** Increment sequence number, handling wrap-around.
-	 *  @param x is a sequence number
-	 *  @return next sequence number after x
-	 */
-	private short incr(short x) {
-		x++; return (x < 2*wSize ? x : 0);
-	}
-
-    /** Decrement sequence number, handling wrap-around.
-     *  @param x is a sequence number
-     *  @return previous sequence number before x
-     */
-	private short drc(short x) {
-		x--; return (short) (x >= (short)0  ? x : (x + 2 * wSize));
-	}
-	/** Compute the difference between two sequence numbers,
-	 *  accounting for "wrap-around"
-	 *  @param x is a sequence number
-	 *  @param y is another sequence number
-	 *  @return difference, assuming x is "clockwise" from y
-	 */
-	private int diff(short x, short y) {
-		return (x >= y ? x-y : (x + 2*wSize) - y);
-	}
-
-	/** Main thread for the Rdt object.
-	 *
-	 *  Inserts payloads received from the application layer into
-	 *  packets, and sends them to the substrate. The packets include
-	 *  the number of packets and chars sent so far (including the
-	 *  current packet). It also takes packets received from
-	 *  the substrate and sends the extracted payloads
-	 *  up to the application layer. To ensure that packets are
-	 *  delivered reliably and in-order, using a sliding
-	 *  window protocol with the go-back-N feature.
-	 */
-	public void run() {
-		long t0 = System.nanoTime();
-		now = 0;		// current time (relative to t0)
-        /* we still have un-acked packets */
-		while (!quit || sendBuf[sendBase]!=null) {
-			now = System.nanoTime() - t0;
-			// if receive buffer has a packet that can be
-			//    delivered, deliver it to sink
-
-			// else if the substrate has an incoming packet
-			//      get the packet from the substrate and process it
-			// 	if it's a data packet, ack it and add it
-			//	   to receive buffer as appropriate
-			//	if it's an ack, update the send buffer and
-			//	   related data as appropriate
-			//	   reset the timer if necessary
-
-			// else if the resend timer has expired, re-send all
-			//      packets in the window and reset the timer
-
-			// else if there is a message from the source waiting
-			//      to be sent and the send window is not full
-			//	and the substrate can accept a packet
-			//      create a packet containing the message,
-			//	and send it, after updating the send buffer
-			//	and related data
-
-			// else nothing to do, so sleep for 1 ms
-
-            //still have unprocessed payload.
-			if(recvBuf[recvBase]!=null){
-				String load = recvBuf[recvBase].payload;
-				if(toSnk.remainingCapacity()>0){
-					toSnk.add(load);
-					recvBase=incr(recvBase);
-				}
-				recvBuf[recvBase]=null;
-			}
-			else if (sub.incoming()){
-				Packet p = sub.receive();
-				//check if the packet is a payload loaded p or just an ack.
-				if (p.type == 0){
-					//check if the receive buffer is full, then update the receive buffer.
-					//send back an ack.
-					Packet ackSub = new Packet();
-					ackSub.type=1;
-					
-					if(expSeqNum==p.seqNum && recvBuf[p.seqNum] == null){
-						recvBuf[p.seqNum]=p;
-						lastRcvd=p.seqNum;
-						ackSub.seqNum= p.seqNum;
-						expSeqNum = incr(expSeqNum);
-					}
-					else{
-						if (lastRcvd!= -1){
-							ackSub.seqNum=lastRcvd;
-						}
-					}
-					if (lastRcvd !=-1){
-						sub.send(ackSub);
-					}
-				}
-				else if (p.type == 1){
-					//receive an ack, check for duplicate, then update the sendBuffer.
-					short base =sendBase;
-					if(p.seqNum == drc(base)){
-						dupAcks++;
-						if(dupAcks==3){
-							//resend all
-							short index = sendBase;
-							while (index != incr(sendSeqNum)
-                                    && sendBuf[index]!=null){
-								sub.send(sendBuf[index]);
-								index=incr(index);
-							}
-							sendAgain= System.nanoTime()+timeout-t0;
-							dupAcks=0;
-						}
-					}
-					if(diff(p.seqNum,sendBase)<diff(sendSeqNum,sendBase)
-                            && sendBuf[p.seqNum]!= null ){
-						//cumulative acks. Clear out all the packets in the buffer before the ack.
-						short curSeq=sendBase;
-						sendBuf[p.seqNum]=null;
-						while(curSeq!=p.seqNum){
-							sendBuf[curSeq]=null;
-							curSeq= incr(curSeq);
-						}
-						//reset the sendbase and timer.
-						sendBase= incr(p.seqNum);
-						
-					    sendAgain= System.nanoTime()+timeout-t0;
-					    dupAcks=0;
-					    if (sendBuf[sendBase] == null){
-					    	ifTimerStopped=true;
-					    }
-
-					}
-				}			
-			}
-			//the timer expires.
-
-			else if (now > sendAgain && sendAgain!=0 && !ifTimerStopped){
-				//resend all the packets from sendBase up to the one before sendSeqNum.
-				short index = sendBase;
-				while (index != incr(sendSeqNum) && sendBuf[index]!=null){
-					sub.send(sendBuf[index]);
-					index = incr(index);
-				}
-				//reset timer.
-				sendAgain= System.nanoTime()+timeout-t0;
-				dupAcks=0;
-			}
-			
-			else if (!fromSrc.isEmpty() &&
-                    diff(sendSeqNum, sendBase) <=wSize && sub.ready() ){
-				//create a new packet to be sent.
-				Packet p = new Packet ();
-				p.payload = fromSrc.poll();
-				p.type =0;
-				
-				p.seqNum=sendSeqNum;
-				//update the send buffer
-				sendBuf[sendSeqNum]=p;
-				sub.send(p);
-				//update the next seq to be sent.
-                sendSeqNum=incr(sendSeqNum);
-				sendAgain= System.nanoTime()+timeout-t0;
-				ifTimerStopped = false;
-			}
-			else{
-				try{
-				Thread.sleep(1);
-				}
-				catch (Exception e){
-					System.err.println(e.toString());
-				}
-			}
-		}
-	}
-
-	/** Send a message to peer.
-	 *  @param message is a string to be sent to the peer
-	 */
-	public void send(String message) {
-		try {
-			fromSrc.put(message);
-		} catch(Exception e) {
-			System.err.println("Rdt:send: put exception" + e);
-			System.exit(1);
-		}
-	}
-		
-	/** Test if Rdt is ready to send a message.
-	 *  @return true if Rdt is ready
-	 */
-	public boolean ready() { return fromSrc.remainingCapacity() > 0; }
-
-	/** Get an incoming message.
-	 *  @return next message
-	 */
-	public String receive() {
-		String s = null;
-		try {
-			s = toSnk.take();
-		} catch(Exception e) {
-			System.err.println("Rdt:send: take exception" + e);
-			System.exit(1);
-		}
-		return s;
-	}
-	
-	/** Test for the presence of an incoming message.
-	 *  @return true if there is an incoming message
-	 */
-	public boolean incoming() { return toSnk.size() > 0; }
-}
+/** Reliable Data Transport class.
+ *
+ *  This class implements a reliable data transport service.
+ *  It uses a sliding window protocol on a packet basis, either
+ *  go-back-N (the default) or selective repeat.
+ *
+ *  An application layer thread provides new packet payloads to be
+ *  sent using the provided send() method, and retrieves newly arrived
+ *  payloads with the receive() method. Each payload is sent in a UDP
+ *  packet, along with a sequence number and a type flag that identifies
+ *  it as data, an ack or a control packet (see Packet); with batching
+ *  (see setCoalescing()), several small payloads may be combined into
+ *  one packet. The sequence numbers are 32 bits and wrap around, so
+ *  windows of up to MAX_WINDOW packets can be used; the packets in
+ *  flight are kept in ring buffers (see PacketRing).
+ *
+ *  With go-back-N, the receiver only accepts packets in order and
+ *  acks are cumulative; on a timeout the sender resends the whole
+ *  window. With selective repeat, the receiver buffers packets that
+ *  arrive out of order and acks each packet individually, and the
+ *  sender resends only the packets whose own timers expire.
+ *
+ *  A connection is opened with a SYN and SYN-ACK, which settle the
+ *  window size and the options both ends asked for (selective repeat,
+ *  selective acks, forward error correction), and closed with a FIN
+ *  and FIN-ACK from each end once every message has been acked. If
+ *  MAX_RETRIES timeouts in a row pass without word from the peer,
+ *  the connection is abandoned.
+ *
+ *  The retransmission timeout adapts to the measured round-trip times
+ *  (see RttEstimator), and the packets in flight are limited by a
+ *  congestion window (see CongestionWindow) and by the window the
+ *  peer advertises in its acks, which shrinks when its application
+ *  falls behind. The set...() methods turn on the optional features:
+ *  selective acks, forward error correction (see Fec), pacing (see
+ *  Pacer), coalescing of small messages and delayed acks. Messages
+ *  may also be given a lifetime, after which they are abandoned
+ *  rather than delivered late (see send()).
+ *
+ *  Each message is copied once, into a packet taken from the
+ *  substrate's PacketPool, which is then queued, sent and resent as it
+ *  is, and released once acked, delivered or dropped. The application
+ *  and the run() thread hand packets to each other through lock-free
+ *  single-producer, single-consumer queues (see SpscQueue), so the
+ *  send methods must only be used by one application thread, and the
+ *  receive methods by one (possibly the same) thread.
+ */
+
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Rdt implements Runnable {
+	private static final long IDLE_WAIT = 100000000; // max wait in ns
+	private static final int MAX_STEPS = 256; // steps per call of service()
+	private static final int MAX_RETRIES = 8; // timeouts in a row before giving up
+	// largest window size; a receiver holds up to 2*wSize-1 packets,
+	// so its ring must still fit well within an int
+	public static final int MAX_WINDOW = 1 << 24;
+	private int wSize;	// protocol window size
+	private boolean selRepeat; // true for selective repeat
+	private RttEstimator rtt; // round-trip times and retransmission timeout
+	private CongestionWindow cwnd; // limit on packets in flight
+	private Pacer pacer = null;	// spaces out data packets, or null if off
+	private Link sub;	// Substrate (or Endpoint connection) for packet IO
+	private PacketPool pool; // where packets are taken from
+
+	// messages from and to the application, each in a type 0 packet
+	private SpscQueue<Packet> fromSrc;
+	private SpscQueue<Packet> toSnk;
+	private Packet[] arrivals = new Packet[64]; // packets from sub
+
+	// Coalescing of messages into batch packets
+	private long flushDelay = -1;	// max time a message is held, -1 if off
+	private Packet batch = null;	// messages held, or null if none
+	private long batchSince = 0;	// time the oldest held message was taken
+	private int batchMax = Packet.MAX_PAYLOAD; // longest batch payload
+
+	private Fec fec = null;		// forward error correction, or null if off
+
+	// Sending structures and necessary information
+	private PacketRing sendBuf; // not yet acked packets, with send times
+	private int sendBase = 0;	// seq# of first packet in send window
+	private int sendSeqNum = 0;	// next seq# after send window
+	private int resendNext = 0;	// next seq# to send (go-back-N)
+	private short dupAcks = 0; // should only happen for sendBase-1 packet
+	private boolean recovering = false; // window resent, sendBase not yet advanced
+	private int rwnd;		// window advertised by the peer
+	private int probes = 0;		// timeouts while rwnd was zero
+
+	// Selective acks (go-back-N only)
+	private boolean sack = false;	// true to use selective acks
+	private int sacked = 0;		// packets after sendBase selectively acked
+	private int sackHigh;		// packet after the highest one sacked
+	private boolean sackRecovery = false; // resending the holes below sackHigh
+	private int holeNext;		// next packet to check for a hole
+	private int recoverUntil;	// sendSeqNum when the recovery started
+
+	// Message lifetimes
+	private int fwdSeq;		// seq# in our last FORWARD
+	private long fwdAgain = 0;	// time to resend it, 0 if none due
+	private long abandoned = 0;	// messages and packets dropped as expired
+	private long skipped = 0;	// packets the peer told us not to wait for
+
+	// Receiving structures and necessary information
+	private PacketRing recvBuf; // undelivered packets
+	private int recvBase = 0;  // seq# of oldest undelivered packet (to application)
+	private int expSeqNum = 0;	// seq# of packet we expect to receive (from substrate)
+	private boolean rcvdAny = false; // true once a packet has been received in order
+	private int advertised;	// window advertised in our last ack
+
+	// Delayed acks
+	private int ackEvery = 1;	// ack at least every ackEvery packets
+	private long ackDelay = 0;	// max time a packet goes unacked
+	private int unacked = 0;	// in-order packets not yet acked
+	private long ackDue = 0;	// time by which they must be acked
+	private long dataRcvd = 0;	// data packets received
+	private long acksSent = 0;	// acks sent
+	private long dataSent = 0;	// data packets sent for the first time
+	private long dataResent = 0;	// data packets sent again
+
+	// Connection setup and close
+	private boolean active;		// true if we send the first SYN
+	private boolean open = false;	// true once the handshake is done
+	private int isn;		// our initial sequence number
+	private int peerIsn;		// peer's initial sequence number
+	private long ctlAgain = 0;	// time to resend our SYN or FIN, 0 if none due
+	private long ctlSentAt = 0;	// time our SYN or FIN was first sent
+	private boolean ctlResent = false; // true if it was sent more than once
+	private boolean finSent = false; // true once our FIN has been sent
+	private boolean finAcked = false; // true once it has been acked
+	private boolean peerFin = false; // true once the peer's FIN has arrived
+	private boolean peerAcked = false; // true once the peer's FIN is known acked
+	private volatile boolean peerDone = false; // peerFin, and all delivered
+	private long lingerUntil = 0;	// time to wait for after our last FIN-ACK
+	private int retries = 0;	// timeouts since the peer was last heard
+
+	// Time keeping variabels
+	private Clock clock;		// the link's clock
+	private long t0 = 0;		// time when run() started
+	private long now = 0;		// current time (relative to t0)
+	private long sendAgain = 0;	// time when we send all unacked packets
+
+	private Thread myThread;	// null if run by an Endpoint
+	private volatile boolean quit;
+	private volatile boolean finished = false; // true once done, with service()
+	// signalled by the substrate and the application when there is
+	// something new for the run() thread to do
+	private Wakeup wakeup;
+	// signalled by the run() thread when fromSrc has room, for an
+	// application waiting in send() (or stop()), and when toSnk has
+	// a message, for one waiting in receive(); the two may be
+	// different threads, each waiting on its own wakeup
+	private Wakeup sendWakeup;
+	private Wakeup recvWakeup;
+    //boolean tag for stopping timer
+	private boolean ifTimerStopped;
+	/** Initialize a new Rdt object.
+	 *  @param wSize is the window size used by protocol
+	 *  @param timeout is the time to wait before retransmitting
+	 *  @param sub is a reference to the Substrate object that this object
+	 *  uses to handle the socket IO
+	 */
+	Rdt(int wSize, double timeout, Link sub) {
+		this(wSize, timeout, sub, false);
+	}
+
+	/** Initialize a new Rdt object.
+	 *  @param wSize is the window size used by protocol, up to MAX_WINDOW
+	 *  @param timeout is the initial time to wait before retransmitting;
+	 *  once round-trip times have been measured, the timeout adapts
+	 *  to them
+	 *  @param sub is a reference to the Substrate object that this object
+	 *  uses to handle the socket IO, or to an Endpoint connection's
+	 *  link; in that case, the endpoint runs the Rdt, and start()
+	 *  must not be called
+	 *  @param selRepeat is true to use selective repeat, false to use
+	 *  go-back-N
+	 */
+	Rdt(int wSize, double timeout, Link sub, boolean selRepeat) 
+	{
+		this.wSize = Math.min(wSize,MAX_WINDOW);
+		this.selRepeat = selRepeat;
+		rtt = new RttEstimator((long) (timeout * 1000000000)); // sec to ns
+		this.sub = sub;
+		clock = sub.clock();
+		cwnd = new CongestionWindow(this.wSize, clock);
+		rwnd = advertised = this.wSize;
+		pool = sub.getPool();
+		active = sub.initiator();
+		isn = sub.random().nextInt();
+		sendBase = sendSeqNum = resendNext = isn;
+		sackHigh = holeNext = recoverUntil = isn;
+
+		// create queues for application layer interface
+		fromSrc = new SpscQueue<Packet>(1000);
+		toSnk = new SpscQueue<Packet>(1000);
+		sendWakeup = new Wakeup();
+		recvWakeup = new Wakeup();
+		quit = false;
+		wakeup = sub.wakeup();
+		t0 = clock.nanoTime();
+
+		sendBuf = new PacketRing();
+		sendBuf.advance(isn);
+		recvBuf = new PacketRing();
+		ifTimerStopped= true;
+	}
+
+	/** Start the Rdt running. */
+	public void start() throws Exception {
+		myThread = new Thread(this); myThread.start();
+	}
+
+	/** Close the connection, without waiting for it to be closed.
+	 *  No more messages may be sent; those already sent are still
+	 *  delivered, and then a FIN is sent (see stop()).
+	 */
+	public void close() { quit = true; wakeup.signal(); }
+
+	/** Stop the Rdt. Closes the connection, and waits until every
+	 *  packet sent has been acked, and the peer has closed its end
+	 *  too, unless the substrate has stopped, since then no acks
+	 *  can come, or the peer has stopped answering.
+	 */
+	public void stop() throws Exception {
+		close();
+		if (myThread != null) { myThread.join(); return; }
+		while (true) {
+			sendWakeup.clear();
+			if (finished) break;
+			sendWakeup.await(System.nanoTime() + IDLE_WAIT);
+		}
+	}
+
+	/** Increment sequence number, handling wrap-around.
+	 *  @param x is a sequence number
+	 *  @return next sequence number after x
+	 */
+	private int incr(int x) { return x + 1; }
+
+    /** Decrement sequence number, handling wrap-around.
+     *  @param x is a sequence number
+     *  @return previous sequence number before x
+     */
+	private int drc(int x) { return x - 1; }
+
+	/** Compute the difference between two sequence numbers,
+	 *  accounting for "wrap-around"
+	 *  @param x is a sequence number
+	 *  @param y is another sequence number
+	 *  @return difference, assuming x is "clockwise" from y; if x is
+	 *  before y, the result is 2^32 less the distance, which is
+	 *  larger than any window
+	 */
+	private long diff(int x, int y) { return (x - y) & 0xffffffffL; }
+
+	/** Main thread for the Rdt object.
+	 *
+	 *  Inserts payloads received from the application layer into
+	 *  packets, and sends them to the substrate. The packets include
+	 *  the number of packets and chars sent so far (including the
+	 *  current packet). It also takes packets received from
+	 *  the substrate and sends the extracted payloads
+	 *  up to the application layer. To ensure that packets are
+	 *  delivered reliably and in-order, using a sliding
+	 *  window protocol with either the go-back-N or the
+	 *  selective-repeat feature.
+	 */
+	public void run() {
+		t0 = clock.nanoTime();
+		now = 0;		// current time (relative to t0)
+		while (!done()) {
+			wakeup.clear();
+			// if there is nothing to do, wait until the substrate
+			// or the application signal new work, or until the
+			// next timer expires
+			if (!step()) wakeup.await(t0 + deadline());
+		}
+		report();
+	}
+
+	/** Print a short status report. */
+	void report() {
+		System.out.println("     Rdt: rtt " + getRtt() + " rttvar "
+				+ (rtt.rttvar() / 1e9) + " rto " + getRto()
+				+ " cwnd " + getCwnd() + " acks " + acksSent
+				+ " for " + dataRcvd + " data packets, rwnd " + rwnd
+				+ " probes " + probes + ", "
+				+ pool.created() + " packets allocated");
+		if (abandoned > 0 || skipped > 0)
+			System.out.println("  Expiry: " + abandoned
+				+ " expired messages and packets abandoned, "
+				+ skipped + " packets skipped");
+		if (fec != null) fec.report();
+		if (pacer != null)
+			System.out.println("   Pacer: rate " + pacer.rate()
+				+ " packets/s, " + pacer.pacedCount() + " of "
+				+ pacer.sentCount() + " packets waited");
+	}
+
+	/** Do all the work there is to do for now. An Endpoint's event
+	 *  loop calls this, instead of the Rdt having a thread of its own,
+	 *  whenever the Rdt's wakeup is signalled or the time it returned
+	 *  has passed. At most MAX_STEPS steps are taken per call, so one
+	 *  busy Rdt cannot starve the others sharing its event loop.
+	 *  @return the time (on the link's clock) by which service() must be
+	 *  called again, or -1 once the Rdt has finished (see stop())
+	 */
+	long service() {
+		for (int i = 0; i < MAX_STEPS; i++) {
+			if (done()) {
+				finished = true;
+				sendWakeup.signal(); recvWakeup.signal();
+				return -1;
+			}
+			if (!step()) return t0 + deadline();
+		}
+		return clock.nanoTime();	// more to do; come back soon
+	}
+
+	/** Test if the Rdt has finished: it has been stopped, our FIN
+	 *  has been acked (so every message the application sent has
+	 *  been acked too), the peer's FIN has arrived after all of its
+	 *  messages, and the peer is known to have our FIN-ACK, or we have
+	 *  lingered long enough for it to have asked again. Or else the
+	 *  substrate has stopped, or the peer has stopped answering, so
+	 *  no acks can come.
+	 */
+	private boolean done() {
+		if (!quit) return false;
+		if (!sub.isAlive() || retries > MAX_RETRIES) return true;
+		return finAcked && peerDone && (peerAcked || sub.answersFin()
+						|| now >= lingerUntil);
+	}
+
+	/** Do the most urgent piece of work there is to do, if any.
+	 *  @return false if there was nothing to do
+	 */
+	private boolean step() {
+		now = clock.nanoTime() - t0;
+		// if receive buffer has a packet that can be
+		//    delivered, deliver it to sink
+
+		// else if the substrate has an incoming packet
+		//      get the packet from the substrate and process it
+		// 	if it's a data packet, ack it and add it
+		//	   to receive buffer as appropriate
+		//	if it's an ack, update the send buffer and
+		//	   related data as appropriate
+		//	   reset the timer if necessary
+
+		// else if the resend timer has expired, re-send
+		//      the packets that need it and reset the timer
+
+		// else if there is a message from the source waiting
+		//      to be sent and the send window is not full
+		//	and the substrate can accept a packet
+		//      create a packet containing the message,
+		//	and send it, after updating the send buffer
+		//	and related data
+
+		// else there is nothing to do (for now)
+
+            //still have undelivered payload.
+		if (recvBase != expSeqNum && toSnk.remainingCapacity() > 0
+		    && (recvBuf.get(recvBase) == null	// skipped
+			|| deliver(recvBuf.get(recvBase)))) {
+			recvBase = incr(recvBase);
+			recvBuf.advance(recvBase);
+			// tell the peer if the window has reopened
+			int half = Math.max(wSize / 2, 1);
+			if (advertised < half && rcvWindow() >= half)
+				sendCumAck();
+		}
+		else if (peerFin && !peerDone && recvBase == expSeqNum) {
+			// the peer's last message has been delivered
+			peerDone = true;
+			sendWakeup.signal(); recvWakeup.signal();
+		}
+		else if (sub.incoming()){
+			// take every waiting packet at once
+			int n = sub.receive(arrivals);
+			for (int i = 0; i < n; i++) {
+				Packet p = arrivals[i]; arrivals[i] = null;
+				receive(p);
+			}
+		}
+		else if (unacked > 0 && now >= ackDue) {
+			// delayed ack is due
+			sendCumAck();
+		}
+		else if (active && !open && ctlAgain == 0) {
+			// open the connection
+			sendControl((byte) 4, isn, synOptions());
+			ctlSentAt = now; ctlResent = false;
+			ctlAgain = now + rtt.rto();
+		}
+		else if (ctlAgain != 0 && now >= ctlAgain) {
+			// our SYN or FIN has not been acked; send it again
+			rtt.backoff(); retries++;
+			if (!open)
+				sendControl((byte) 4, isn, synOptions());
+			else sendControl((byte) 6, sendSeqNum,
+					 peerFin ? Packet.OPT_ACK : 0);
+			ctlResent = true;
+			ctlAgain = now + rtt.rto();
+		}
+		else if (sendBase != sendSeqNum && expired(sendBuf.get(sendBase))) {
+			// the oldest packet in flight is no longer worth
+			// delivering; give up on it
+			abandon();
+		}
+		else if (fwdAgain != 0 && now >= fwdAgain) {
+			// our FORWARD has not been acked; send it again
+			sendControl((byte) 10, fwdSeq, 0);
+			fwdAgain = now + rtt.rto();
+		}
+		//the timer expires.
+		else if (!selRepeat && now > sendAgain && sendAgain!=0
+			 && !ifTimerStopped) {
+			//resend all the packets from sendBase up to the one before sendSeqNum.
+			rtt.backoff();
+			// an unanswered zero window probe says
+			// nothing about congestion
+			if (rwnd > 0) {
+				cwnd.timeout((int) diff(resendNext, sendBase));
+				retries++;
+			} else probes++;
+			resendAll();
+		}
+		else if (selRepeat && now > sendAgain && !ifTimerStopped) {
+			//resend only the packets whose own timer expired
+			resendExpired();
+		}
+		else if (sackRecovery && sub.ready() && paced()
+			 && diff(holeNext, sendBase) < diff(sackHigh, sendBase)) {
+			// resend the next hole below the highest packet
+			// selectively acked
+			if (sendBuf.get(holeNext) != null) {
+				sub.send(sendBuf.get(holeNext)); dataResent++;
+				if (pacer != null) pacer.sent(now);
+				sendBuf.setResent(holeNext, true);
+				sendAgain = now + rtt.rto();
+			}
+			holeNext = incr(holeNext);
+		}
+		else if (!selRepeat && resendNext != sendSeqNum
+			 && diff(resendNext, sendBase) < window()
+			 && sub.ready() && paced()) {
+			// resend the next packet after going back, unless
+			// it has been selectively acked
+			if (sendBuf.get(resendNext) != null) {
+				sub.send(sendBuf.get(resendNext)); dataResent++;
+				sendBuf.setResent(resendNext, true);
+				if (pacer != null) pacer.sent(now);
+			}
+			resendNext = incr(resendNext);
+		}
+		else if (flushDelay >= 0 && !fromSrc.isEmpty() &&
+			 (batch == null ? 0 : batch.length)
+			 + Packet.batchedLength(fromSrc.peek().length)
+			 <= batchMax) {
+			// add a message to the batch being built
+			Packet m = fromSrc.poll();
+			sendWakeup.signal();	// fromSrc has room
+			if (expired(m)) {
+				m.release(); abandoned++;
+				return true;
+			}
+			if (batch == null) {
+				batch = pool.get(); batch.type = 2;
+				batchSince = now; batch.expiry = m.expiry;
+			} else if (batch.expiry != 0) {
+				batch.expiry = (m.expiry == 0 ? 0
+						: Math.max(batch.expiry, m.expiry));
+			}
+			batch.addMessage(m.payload, 0, m.length);
+			m.release();
+		}
+		else if (open && packetReady() && resendNext == sendSeqNum &&
+                    diff(sendSeqNum, sendBase) - sacked < window() && sub.ready()
+			 && paced()) {
+			//take the next packet to be sent; a message too
+			//long to be batched goes in a packet of its own
+			Packet p;
+			if (batch == null) {
+				p = fromSrc.poll();
+				sendWakeup.signal();
+			} else {
+				p = batch; batch = null;
+			}
+			if (expired(p)) {
+				p.release(); abandoned++;
+				return true;
+			}
+
+			p.seqNum=sendSeqNum;
+			//update the send buffer
+			sendBuf.put(sendSeqNum,p);
+			sub.send(p); dataSent++;
+			if (pacer != null) pacer.sent(now);
+			sendBuf.setSentAt(sendSeqNum, now);
+			sendBuf.setResendTime(sendSeqNum, now + rtt.rto());
+			if (ifTimerStopped || !selRepeat) sendAgain = now + rtt.rto();
+			//update the next seq to be sent.
+                sendSeqNum=incr(sendSeqNum);
+			resendNext = sendSeqNum;
+			ifTimerStopped = false;
+		}
+		else if (fec != null && fec.grouped() && now >= fecFlushAt()
+			 && sub.ready()) {
+			// protect the packets of a group left open
+			fec.flush();
+		}
+		else if (quit && open && !finSent && sendBase == sendSeqNum
+			 && fromSrc.isEmpty() && batch == null && fwdAgain == 0) {
+			// every message has been acked; close our end
+			sendControl((byte) 6, sendSeqNum,
+				    peerFin ? Packet.OPT_ACK : 0);
+			finSent = true;
+			ctlSentAt = now; ctlResent = false;
+			ctlAgain = now + rtt.rto();
+		}
+		else return false;
+		return true;
+	}
+
+	/** Get the time by which step() must be called again, even if
+	 *  nothing is signalled: the earliest timer, or IDLE_WAIT from now.
+	 *  @return the time in ns, relative to t0
+	 */
+	private long deadline() {
+		long deadline = now + IDLE_WAIT;
+		if (!ifTimerStopped && sendAgain < deadline)
+			deadline = sendAgain;
+		if (unacked > 0 && ackDue < deadline)
+			deadline = ackDue;
+		long flushAt = batchSince + flushDelay;
+		if (batch != null && flushAt > now && flushAt < deadline)
+			deadline = flushAt;
+		if (fec != null && fec.grouped() && fecFlushAt() < deadline)
+			deadline = Math.max(fecFlushAt(), now);
+		if (pacer != null && pacer.nextSend() > now
+		    && pacer.nextSend() < deadline)
+			deadline = pacer.nextSend();
+		if (ctlAgain != 0 && ctlAgain < deadline)
+			deadline = ctlAgain;
+		if (fwdAgain != 0 && fwdAgain < deadline)
+			deadline = fwdAgain;
+		Packet head = (sendBase != sendSeqNum ? sendBuf.get(sendBase) : null);
+		if (head != null && head.expiry != 0 && head.expiry - t0 < deadline)
+			deadline = head.expiry - t0;
+		if (finAcked && peerDone && lingerUntil < deadline)
+			deadline = lingerUntil;
+		return deadline;
+	}
+
+	/** Test if a message or packet has outlived its lifetime.
+	 *  @param p is the packet, or null
+	 */
+	private boolean expired(Packet p) {
+		return p != null && p.expiry != 0 && now >= p.expiry - t0;
+	}
+
+	/** Abandon the expired packets at the start of the send window,
+	 *  along with any packets already acked among them, and tell the
+	 *  peer not to wait for them with a FORWARD (see Packet), which is
+	 *  resent with the usual timeout until an ack shows the peer has
+	 *  got that far. Expired packets behind one that has not expired
+	 *  wait until they reach the start of the window.
+	 */
+	private void abandon() {
+		int oldBase = sendBase;
+		while (sendBase != sendSeqNum) {
+			Packet p = sendBuf.get(sendBase);
+			if (p == null) {
+				if (sack) sacked--;	// no longer after sendBase
+			} else if (expired(p)) abandoned++;
+			else break;
+			sendBase = incr(sendBase);
+		}
+		sendBuf.advance(sendBase);
+		long gone = diff(sendBase, oldBase);
+		if (diff(resendNext, oldBase) < gone) resendNext = sendBase;
+		if (diff(holeNext, oldBase) < gone) holeNext = sendBase;
+		if (diff(sackHigh, oldBase) < gone) sackHigh = sendBase;
+		if (sackRecovery && diff(sendBase, recoverUntil)
+				    <= diff(sendSeqNum, recoverUntil))
+			sackRecovery = false; // every hole it was for is gone
+		dupAcks = 0;
+		if (sendBase == sendSeqNum) ifTimerStopped = true;
+		fwdSeq = sendBase;
+		sendControl((byte) 10, fwdSeq, 0);
+		fwdAgain = now + rtt.rto();
+	}
+
+	/** Test if the pacer lets a data packet be sent now, after
+	 *  bringing its rate up to date; always true without pacing.
+	 */
+	private boolean paced() {
+		if (pacer == null) return true;
+		pacer.setRate(now, window(), rtt.srtt());
+		return pacer.ready(now);
+	}
+
+	/** Get the time at which the open FEC group is ended, a quarter
+	 *  of the round-trip time (or the timeout, before it is measured)
+	 *  after it was started.
+	 *  @return the time in ns, relative to t0
+	 */
+	private long fecFlushAt() {
+		long r = (rtt.srtt() > 0 ? rtt.srtt() : rtt.rto());
+		return fec.since() - t0 + r / 4;
+	}
+
+	/** Process a packet from the substrate.
+	 *  @param p is the packet, which is released (or buffered)
+	 */
+	private void receive(Packet p) {
+		if (!p.isControl() && !p.isData() && p.type != 1
+		    && (p.type != 3 || !selRepeat)) {
+			// not a packet we understand (such as a cumulative
+			// ack with go-back-N); it must not touch any state
+			p.release(); return;
+		}
+		retries = 0;	// the peer is still there
+		if (p.isControl()) {
+			control(p); p.release(); return;
+		}
+		if (!open) {
+			// nothing can be sent before the handshake is done
+			p.release(); return;
+		}
+		//check if the packet is a payload loaded p or just an ack.
+		if (p.isData()) {
+			dataRcvd++;
+			if (selRepeat) receiveSR(p);
+			else receiveGBN(p);
+		} else {
+			if (p.window >= 0) rwnd = p.window;
+			if (fwdAgain != 0 && p.type == (selRepeat ? 3 : 1)
+			    && diff(incr(p.seqNum), fwdSeq)
+			       <= diff(sendSeqNum, fwdSeq))
+				fwdAgain = 0;	// the peer has our FORWARD
+			if (p.type == 3) cumAckSR(p);
+			else if (selRepeat) ackSR(p);
+			else ackGBN(p);
+			p.release();
+		}
+	}
+
+
+	/** Process a control packet (see Packet). */
+	private void control(Packet p) {
+		if (p.type == 4) {
+			// SYN; if we have already answered it, our SYN-ACK
+			// may have been lost
+			if (!open) {
+				negotiate(p);
+				open = true; ctlAgain = 0;
+			} else if (p.seqNum != peerIsn) return;
+			sendControl((byte) 5, isn, synOptions());
+		} else if (p.type == 5) {
+			// SYN-ACK
+			if (open || !active) return;
+			if (!ctlResent) rtt.sample(now - ctlSentAt);
+			negotiate(p);
+			open = true; ctlAgain = 0;
+			rtt.resume();
+		} else if (p.type == 6) {
+			// FIN; only accepted once every packet before it has
+			// arrived (as it must have, since the peer only sends
+			// it once they have all been acked)
+			if (!open || p.seqNum != expSeqNum) return;
+			if (finSent && !finAcked
+			    && (p.options & Packet.OPT_ACK) != 0)
+				finAcked(false);
+			peerFin = true;
+			sendControl((byte) 7, p.seqNum, finAcked ? Packet.OPT_DONE : 0);
+			lingerUntil = now + 2 * rtt.rto();
+		} else if (p.type == 7) {
+			// FIN-ACK
+			if (!finSent || p.seqNum != sendSeqNum) return;
+			if (!finAcked) finAcked(!ctlResent);
+			if ((p.options & Packet.OPT_DONE) != 0) peerAcked = true;
+		} else if (p.type == 10) {
+			// FORWARD; the peer has abandoned the packets before
+			// p.seqNum, which may be any distance ahead, since it
+			// abandons packets whether or not we have acked the
+			// ones before them; one that is behind is old
+			if (!open) return;
+			if (diff(p.seqNum, expSeqNum) < (1L << 31)) skipTo(p.seqNum);
+			sendCumAck();
+		}
+	}
+
+	/** Stop waiting for the packets before a sequence number; those
+	 *  already buffered are still delivered, the rest are skipped.
+	 *  @param seqNum is the first packet the peer has not abandoned
+	 */
+	private void skipTo(int seqNum) {
+		while (expSeqNum != seqNum) {
+			if (recvBuf.get(expSeqNum) == null) skipped++;
+			expSeqNum = incr(expSeqNum);
+		}
+		while (recvBuf.get(expSeqNum) != null)
+			expSeqNum = incr(expSeqNum);
+		rcvdAny = true;
+	}
+
+	/** Note that our FIN has been acked.
+	 *  @param sample is true if the time since it was sent is a
+	 *  round-trip time sample
+	 */
+	private void finAcked(boolean sample) {
+		if (sample) rtt.sample(now - ctlSentAt);
+		finAcked = true; ctlAgain = 0;
+		rtt.resume();
+	}
+
+	/** Get the options for our SYN or SYN-ACK. */
+	private int synOptions() {
+		return (selRepeat ? Packet.OPT_SR : 0) | (sack ? Packet.OPT_SACK : 0)
+		       | (fec != null ? Packet.OPT_FEC : 0);
+	}
+
+	/** Settle the connection's parameters from the peer's SYN or
+	 *  SYN-ACK: the smaller of the two window sizes, selective repeat
+	 *  only if both ends asked for it, selective acks only if both
+	 *  asked for them and go-back-N is used, and parity packets only
+	 *  if both asked for them.
+	 */
+	private void negotiate(Packet p) {
+		if (p.window > 0) wSize = Math.min(wSize, p.window);
+		selRepeat &= (p.options & Packet.OPT_SR) != 0;
+		sack &= !selRepeat && (p.options & Packet.OPT_SACK) != 0;
+		if (fec != null) fec.setEnabled((p.options & Packet.OPT_FEC) != 0);
+		rwnd = advertised = wSize;
+		peerIsn = p.seqNum;
+		recvBase = expSeqNum = peerIsn;
+		recvBuf.advance(peerIsn);
+	}
+
+	/** Send a control packet. SYN and SYN-ACK packets carry our
+	 *  window size, FIN and FIN-ACK packets our receive window.
+	 *  @param type is the packet type
+	 *  @param seqNum is its sequence number
+	 *  @param options are its option bits
+	 */
+	private void sendControl(byte type, int seqNum, int options) {
+		Packet p = pool.get();
+		p.type = type; p.seqNum = seqNum; p.options = options;
+		p.window = (type <= 5 ? wSize : rcvWindow());
+		sub.send(p); p.release();
+	}
+
+	/** Test if there is a new packet ready to send.
+	 *  Without coalescing, any queued message makes a packet. With
+	 *  it, the batch is sent once the next message will not fit in
+	 *  it, or once its oldest message has waited for the flush delay.
+	 */
+	private boolean packetReady() {
+		if (batch == null) return !fromSrc.isEmpty();
+		return !fromSrc.isEmpty() || now >= batchSince + flushDelay;
+	}
+
+	/** Deliver the messages in a data packet to the sink.
+	 *  @param p is a data or batch packet
+	 *  @return false if the sink does not have room for all of
+	 *  the packet's messages, in which case none are delivered
+	 */
+	private boolean deliver(Packet p) {
+		int n = p.messageCount();
+		if (n < 0) {
+			System.err.println("Rdt: malformed batch " + p);
+			return true;
+		}
+		if (toSnk.remainingCapacity() < n) return false;
+		if (p.type == 0) {
+			// hand the packet itself to the application
+			p.retain(); toSnk.offer(p);
+			recvWakeup.signal();
+			return true;
+		}
+		while (p.nextMessage()) {
+			Packet m = pool.get();
+			m.setPayload(p.payload, p.msgOffset, p.msgLength);
+			toSnk.offer(m);
+		}
+		recvWakeup.signal();
+		return true;
+	}
+
+	/** Process a data packet with go-back-N.
+	 *  Only the next expected packet is accepted; every arrival
+	 *  is answered with a cumulative ack for the last packet
+	 *  received in order.
+	 */
+	private void receiveGBN(Packet p) {
+		if (sack) { receiveSack(p); return; }
+		//check if the receive buffer is full, then update the receive buffer.
+		//send back an ack.
+
+		// hold at most 2*wSize-1 undelivered packets while the
+		// sink is falling behind
+		if(expSeqNum==p.seqNum && diff(expSeqNum, recvBase) < 2*wSize - 1){
+			recvBuf.put(p.seqNum,p);
+			rcvdAny = true;
+			expSeqNum = incr(expSeqNum);
+			ackInOrder();
+			return;
+		}
+		p.release();
+		if (rcvdAny) {
+			// out of order; ack the last in-order packet at once
+			sendCumAck();
+		}
+	}
+
+	/** Process a data packet with go-back-N and selective acks.
+	 *  Any packet in the receive window is buffered in recvBuf, as
+	 *  with selective repeat. A packet that arrives in order is acked
+	 *  as usual; any other arrival is answered at once with a
+	 *  cumulative ack, whose selective ack blocks tell the sender
+	 *  which later packets it need not resend.
+	 */
+	private void receiveSack(Packet p) {
+		int oldExp = expSeqNum;
+		int seqNum = p.seqNum;
+		if (diff(seqNum, expSeqNum) < wSize
+		    && diff(seqNum, recvBase) < 2*wSize - 1) {
+			if (recvBuf.get(seqNum) == null) recvBuf.put(seqNum, p);
+			else p.release();
+			while (recvBuf.get(expSeqNum) != null)
+				expSeqNum = incr(expSeqNum);
+			rcvdAny = true;
+		} else p.release();
+		if (seqNum == oldExp && diff(expSeqNum, oldExp) == 1)
+			ackInOrder();
+		else if (rcvdAny) sendCumAck();
+	}
+
+	/** Add selective ack blocks to an ack, for the first runs of
+	 *  packets buffered after expSeqNum.
+	 */
+	private void addSacks(Packet a) {
+		int hi = recvBuf.hi();
+		if (diff(hi, expSeqNum) > wSize) hi = expSeqNum + wSize;
+		int s = expSeqNum;
+		while (s != hi) {
+			if (recvBuf.get(s) == null) { s = incr(s); continue; }
+			int first = s;
+			while (s != hi && recvBuf.get(s) != null) s = incr(s);
+			if (!a.addSack(first, s)) break;
+		}
+	}
+
+	/** Process a data packet with selective repeat.
+	 *  Any packet in the receive window is buffered in recvBuf
+	 *  and acked individually; packets from the previous window
+	 *  are acked again, since our earlier ack may have been lost.
+	 */
+	private void receiveSR(Packet p) {
+		int oldExp = expSeqNum;
+		int seqNum = p.seqNum;
+		if (diff(seqNum, expSeqNum) < wSize) {
+			// in receive window; drop it if the sink has fallen
+			// so far behind that there is no room for it, so the
+			// sender will have to resend
+			if (diff(seqNum, recvBase) >= 2*wSize - 1) {
+				p.release(); return;
+			}
+			if (recvBuf.get(seqNum) == null) recvBuf.put(seqNum, p);
+			else p.release();
+			while (recvBuf.get(expSeqNum) != null)
+				expSeqNum = incr(expSeqNum);
+			rcvdAny = true;
+		} else p.release();
+		if (ackEvery > 1 && seqNum == oldExp && expSeqNum != oldExp) {
+			// in order; if it filled a gap, ack everything
+			// up to the new expSeqNum at once
+			if (diff(expSeqNum, oldExp) == 1) ackInOrder();
+			else sendCumAck();
+			return;
+		}
+		if (unacked > 0) sendCumAck();
+		sendAck((byte) 1, seqNum);
+	}
+
+	/** Count a packet that arrived in order, and ack it (along with
+	 *  any others not yet acked) if enough of them have arrived.
+	 *  Otherwise the ack is left for later, but no later than the
+	 *  ack delay after the first of them arrived.
+	 */
+	private void ackInOrder() {
+		unacked++;
+		if (unacked >= ackEvery) sendCumAck();
+		else if (unacked == 1) ackDue = now + ackDelay;
+	}
+
+	/** Ack the last packet received in order. With go-back-N, this
+	 *  is an ordinary (cumulative) ack; with selective repeat, it is
+	 *  a cumulative ack packet.
+	 */
+	private void sendCumAck() {
+		sendAck((byte) (selRepeat ? 3 : 1), drc(expSeqNum));
+		unacked = 0;
+	}
+
+	/** Send an ack packet.
+	 *  @param type is the packet type
+	 *  @param seqNum is the sequence number being acked
+	 */
+	private void sendAck(byte type, int seqNum) {
+		Packet ackSub = pool.get();
+		ackSub.type = type; ackSub.seqNum = seqNum;
+		ackSub.window = rcvWindow();
+		advertised = ackSub.window;
+		if (sack && type == 1) addSacks(ackSub);
+		sub.send(ackSub); ackSub.release();
+		acksSent++;
+	}
+
+	/** Process a cumulative ack with go-back-N. */
+	private void ackGBN(Packet p) {
+		if (sack) sackBlocks(p);
+		//receive an ack, check for duplicate, then update the sendBuffer.
+		int base =sendBase;
+		// after resending the window, the peer acks every copy it
+		// already had; those duplicates say nothing about new losses
+		if(p.seqNum == drc(base) && !recovering && !sackRecovery){
+			dupAcks++;
+			if(dupAcks==3){
+				cwnd.fastRetransmit((int) diff(resendNext, sendBase));
+				if (sack) {
+					// resend just the holes, as acks show them
+					sackRecovery = true; recoverUntil = sendSeqNum;
+					holeNext = sendBase; dupAcks = 0;
+				} else resendAll(); //resend all
+			}
+		}
+		if(diff(p.seqNum,sendBase)<diff(sendSeqNum,sendBase)){
+			//cumulative acks. Clear out all the packets in the buffer before the ack.
+			// measure the rtt, unless one of the acked packets was resent,
+			// since the ack may have been sent in response to the copy
+			// (or the acked packet was selectively acked before)
+			boolean resent = (sendBuf.get(p.seqNum) == null);
+			for (int curSeq = sendBase; curSeq != incr(p.seqNum);
+			     curSeq = incr(curSeq)) {
+				resent |= sendBuf.resent(curSeq);
+				if (sendBuf.get(curSeq) == null) sacked--;
+			}
+			if (!resent) rtt.sample(now - sendBuf.sentAt(p.seqNum));
+			//reset the sendbase and timer, passing any packets
+			//after the acked one that were selectively acked
+			int newBase = incr(p.seqNum);
+			while (newBase != sendSeqNum && sendBuf.get(newBase) == null) {
+				newBase = incr(newBase); sacked--;
+			}
+			int acked = (int) diff(newBase, sendBase);
+			if (diff(resendNext, sendBase) < acked)
+				resendNext = newBase;
+			sendBase= newBase;
+			sendBuf.advance(sendBase);
+			cwnd.ack(acked);
+			rtt.resume();
+			if (sackRecovery && diff(sendBase, recoverUntil)
+					    <= diff(sendSeqNum, recoverUntil))
+				sackRecovery = false; // all holes filled
+			if (diff(holeNext, sendBase) > diff(sendSeqNum, sendBase))
+				holeNext = sendBase;
+			if (diff(sackHigh, sendBase) > diff(sendSeqNum, sendBase))
+				sackHigh = sendBase;
+
+		    sendAgain= now+rtt.rto();
+		    dupAcks=0;
+		    recovering=false;
+		    if (sendBase == sendSeqNum){
+		    	ifTimerStopped=true;
+		    }
+		}
+	}
+
+	/** Release the packets that an ack selectively acks (see Packet),
+	 *  so they are not resent, and no longer count as in flight.
+	 */
+	private void sackBlocks(Packet p) {
+		long inFlight = diff(sendSeqNum, sendBase);
+		if (diff(sackHigh, sendBase) > inFlight) sackHigh = sendBase;
+		for (int i = 0; i < p.sackCount(); i++) {
+			int first = p.sackFirst(i), end = p.sackEnd(i);
+			if (diff(first, sendBase) >= inFlight
+			    || diff(end, first) > inFlight)
+				continue; // old, or not a block of ours
+			if (diff(end, sendBase) > inFlight) end = sendSeqNum;
+			for (int s = first; s != end; s = incr(s)) {
+				if (sendBuf.get(s) != null) {
+					sendBuf.remove(s); sacked++;
+				}
+			}
+			if (diff(end, sendBase) > diff(sackHigh, sendBase))
+				sackHigh = end;
+		}
+	}
+
+	/** Process an individual ack with selective repeat.
+	 *  The acked packet is removed from the send buffer, and
+	 *  the window slides past all packets that have been acked.
+	 *  An ack for a later packet while the packet at sendBase is
+	 *  still unacked counts as a duplicate ack for sendBase; after
+	 *  three of them, sendBase is resent without waiting for its timer.
+	 */
+	private void ackSR(Packet p) {
+		if (diff(p.seqNum, sendBase) >= diff(sendSeqNum, sendBase)
+		    || sendBuf.get(p.seqNum) == null)
+			return; // duplicate, or outside the window
+		if (!sendBuf.resent(p.seqNum))
+			rtt.sample(now - sendBuf.sentAt(p.seqNum));
+		sendBuf.remove(p.seqNum);
+		if (p.seqNum != sendBase) {
+			dupAcks++;
+			if (dupAcks == 3) {
+				cwnd.fastRetransmit((int) diff(sendSeqNum, sendBase));
+				sub.send(sendBuf.get(sendBase)); dataResent++;
+				sendBuf.setResent(sendBase, true);
+				sendBuf.setResendTime(sendBase, now + rtt.rto());
+			} else if (dupAcks > 3) cwnd.dupAck();
+			return;
+		}
+		int oldBase = sendBase;
+		while (sendBase != sendSeqNum && sendBuf.get(sendBase) == null)
+			sendBase = incr(sendBase);
+		sendBuf.advance(sendBase);
+		cwnd.ack((int) diff(sendBase, oldBase));
+		rtt.resume();
+		dupAcks = 0;
+		if (sendBase == sendSeqNum) ifTimerStopped = true;
+	}
+
+	/** Process a cumulative ack with selective repeat.
+	 *  Every packet up to and including the acked one is removed
+	 *  from the send buffer, and the window slides past them and
+	 *  past any later packets that have already been acked.
+	 */
+	private void cumAckSR(Packet p) {
+		if (sendBase == sendSeqNum || diff(p.seqNum, sendBase)
+					      >= diff(sendSeqNum, sendBase))
+			return; // old, or outside the window
+		// measure the rtt, unless one of the acked packets was resent
+		boolean resent = (sendBuf.get(p.seqNum) == null);
+		int oldBase = sendBase;
+		int end = incr(p.seqNum);
+		while (sendBase != end) {
+			if (sendBuf.get(sendBase) != null)
+				resent |= sendBuf.resent(sendBase);
+			sendBase = incr(sendBase);
+		}
+		if (!resent) rtt.sample(now - sendBuf.sentAt(p.seqNum));
+		while (sendBase != sendSeqNum && sendBuf.get(sendBase) == null)
+			sendBase = incr(sendBase);
+		sendBuf.advance(sendBase);
+		cwnd.ack((int) diff(sendBase, oldBase));
+		rtt.resume();
+		dupAcks = 0;
+		if (sendBase == sendSeqNum) ifTimerStopped = true;
+	}
+
+	/** Go back to the oldest unacked packet and restart the timer
+	 *  (go-back-N). run() then resends the unacked packets as the
+	 *  congestion window allows.
+	 */
+	private void resendAll() {
+		resendNext = sendBase;
+		sackRecovery = false;
+		//reset timer.
+		sendAgain= now+rtt.rto();
+		dupAcks=0;
+		recovering=true;
+	}
+
+	/** Resend the unacked packets whose timers have expired
+	 *  (selective repeat). Each packet has its own timer; sendAgain
+	 *  is kept at the earliest of them, so the window is only
+	 *  scanned when some packet actually needs to be resent.
+	 *  The timeout is backed off once per expiry, however many
+	 *  packets it affects.
+	 */
+	private void resendExpired() {
+		long next = 0;
+		boolean backedOff = false;
+		for (int index = sendBase; index != sendSeqNum;
+		     index = incr(index)) {
+			if (sendBuf.get(index) == null) continue;
+			if (sendBuf.resendTime(index) <= now) {
+				if (!sub.ready()) { next = now; break; }
+				if (!backedOff) {
+					rtt.backoff(); backedOff = true;
+					if (rwnd > 0) {
+						cwnd.timeout((int) diff(sendSeqNum, sendBase));
+						retries++;
+					} else probes++;
+				}
+				sub.send(sendBuf.get(index)); dataResent++;
+				sendBuf.setResent(index, true);
+				sendBuf.setResendTime(index, now + rtt.rto());
+				if (index == sendBase) dupAcks = 0;
+			}
+			if (next == 0 || sendBuf.resendTime(index) < next)
+				next = sendBuf.resendTime(index);
+		}
+		if (next != 0) sendAgain = next;
+	}
+
+	/** Coalesce messages into batch packets (see Packet): queued
+	 *  messages are packed into one batch until it is full, or until
+	 *  the oldest of them has waited for the delay. The receiver
+	 *  unpacks batches whether or not it coalesces itself. Should be
+	 *  called before start().
+	 *  @param delay is the longest time in seconds a message may be
+	 *  held waiting for others to fill its packet, or a negative
+	 *  value to send every message in a packet of its own
+	 */
+	public void setCoalescing(double delay) {
+		flushDelay = (delay < 0 ? -1 : (long) (delay * 1000000000));
+	}
+
+	/** Use selective acks with go-back-N, if the peer asks for them
+	 *  too. The receiver then buffers packets that arrive out of
+	 *  order, and reports runs of them in its acks (see Packet); the
+	 *  sender releases the packets they cover, and after a triple
+	 *  duplicate ack resends only the holes below the highest packet
+	 *  selectively acked. Should be called before start().
+	 *  @param sack is true to ask for selective acks
+	 */
+	public void setSack(boolean sack) { this.sack = sack; }
+
+	/** Protect data packets with forward error correction (see Fec),
+	 *  if the peer asks for it too. Batches are then limited to
+	 *  Fec.MAX_PROTECTED bytes. Should be called before start().
+	 *  @param k is the initial number of data packets per parity
+	 *  packet, which then adapts to the loss the peer sees; 0 (the
+	 *  default) for no forward error correction
+	 */
+	public void setFec(int k) {
+		if (k <= 0 || fec != null) return;
+		fec = new Fec(sub, k); sub = fec;
+		batchMax = Fec.MAX_PROTECTED;
+	}
+
+	/** Pace data packets (see Pacer). With go-back-N, resent packets
+	 *  are paced as well. Should be called before start().
+	 *  @param pace is true to pace them
+	 */
+	public void setPacing(boolean pace) {
+		pacer = (pace ? new Pacer() : null);
+	}
+
+	/** Delay acks for packets that arrive in order: they are acked
+	 *  together (with a cumulative ack, under selective repeat). Packets
+	 *  that arrive out of order are still acked at once, so the sender
+	 *  sees the duplicate acks it needs. Should be called before start().
+	 *  @param every is the number of in-order packets acked together;
+	 *  1 acks every packet at once (the default)
+	 *  @param delay is the longest time in seconds an in-order
+	 *  packet may go unacked
+	 */
+	public void setDelayedAcks(int every, double delay) {
+		ackEvery = Math.max(every, 1);
+		ackDelay = (long) (delay * 1000000000);
+	}
+
+	/** Get the number of packets that may be in flight.
+	 *  @return the smallest of the window size, the congestion window
+	 *  and the peer's advertised window (but at least one packet,
+	 *  to probe a zero window)
+	 */
+	private int window() {
+		return Math.min(Math.min(cwnd.window(), wSize), Math.max(rwnd, 1));
+	}
+
+	/** Get the window to advertise to the peer.
+	 *  @return the number of packets after the last in-order packet
+	 *  that recvBuf has room for, up to the window size
+	 */
+	private int rcvWindow() {
+		long free = 2L*wSize - 1 - diff(expSeqNum, recvBase);
+		return (int) Math.max(0, Math.min(wSize, free));
+	}
+
+	/** Write the congestion window's changes to a stream,
+	 *  one line per change (see CongestionWindow).
+	 *  @param trace is the stream, or null for no trace
+	 */
+	public void setCwndTrace(PrintStream trace) { cwnd.setTrace(trace); }
+
+	/** Write the pacing rate's changes to a stream (see Pacer).
+	 *  Only has an effect once pacing is on.
+	 *  @param trace is the stream, or null for no trace
+	 */
+	public void setPacingTrace(PrintStream trace) {
+		if (pacer != null) pacer.setTrace(trace);
+	}
+
+	/** Get the pacing rate.
+	 *  @return the rate in packets per second, or 0 if packets are
+	 *  not paced (yet)
+	 */
+	public double getPacingRate() {
+		return pacer == null ? 0 : pacer.rate();
+	}
+
+	/** Get the congestion window.
+	 *  @return the congestion window in packets
+	 */
+	public int getCwnd() { return cwnd.window(); }
+
+	/** Get the smoothed round-trip time.
+	 *  @return the round-trip time in seconds, or 0 if it has not
+	 *  been measured yet
+	 */
+	public double getRtt() { return rtt.srtt() / 1e9; }
+
+	/** Get the current retransmission timeout.
+	 *  @return the timeout in seconds
+	 */
+	public double getRto() { return rtt.rto() / 1e9; }
+
+	/** Get the number of data packets sent, not counting those sent
+	 *  again; exact once the Rdt has stopped.
+	 */
+	public long getDataSent() { return dataSent; }
+
+	/** Get the number of data packets sent again, after a timeout or
+	 *  a fast retransmit; exact once the Rdt has stopped.
+	 */
+	public long getDataResent() { return dataResent; }
+
+	/** Send a message to peer.
+	 *  @param buf is an array holding the message, which is copied,
+	 *  so buf may be reused as soon as send() returns
+	 *  @param off is the offset of the message in buf
+	 *  @param len is the length of the message, at most
+	 *  Packet.MAX_PAYLOAD bytes
+	 */
+	public void send(byte[] buf, int off, int len) {
+		send(buf, off, len, 0);
+	}
+
+	/** Send a message to peer, unless it expires first. Once its
+	 *  lifetime has passed, it is dropped if it has not been sent
+	 *  yet, and abandoned if it has not been acked (see abandon()),
+	 *  so it may never be delivered; the receiver then delivers the
+	 *  messages after it without waiting for it. A batch expires once
+	 *  all of its messages have.
+	 *  @param buf is an array holding the message, which is copied
+	 *  @param off is the offset of the message in buf
+	 *  @param len is the length of the message, at most
+	 *  Packet.MAX_PAYLOAD bytes
+	 *  @param lifetime is how long in seconds the message is worth
+	 *  delivering, from now; 0 for ever
+	 */
+	public void send(byte[] buf, int off, int len, double lifetime) {
+		Packet m = message(len);
+		m.setPayload(buf, off, len);
+		m.expiry = expiry(lifetime);
+		queue(m);
+	}
+
+	/** Send a message to peer.
+	 *  @param buf holds the message between its position and its
+	 *  limit; the position is advanced past it
+	 */
+	public void send(ByteBuffer buf) { send(buf, 0); }
+
+	/** Send a message to peer, unless it expires first (see the
+	 *  other send() with a lifetime).
+	 *  @param buf holds the message between its position and its
+	 *  limit; the position is advanced past it
+	 *  @param lifetime is how long in seconds the message is worth
+	 *  delivering, from now; 0 for ever
+	 */
+	public void send(ByteBuffer buf, double lifetime) {
+		Packet m = message(buf.remaining());
+		m.length = buf.remaining();
+		buf.get(m.payload, 0, m.length);
+		m.expiry = expiry(lifetime);
+		queue(m);
+	}
+
+	/** Send a message to peer, gathered from several buffers. Each
+	 *  buffer is copied straight into the packet, so a mapped file
+	 *  can be sent without copying it anywhere else first.
+	 *  @param bufs hold the parts of the message, each between its
+	 *  position and its limit; their positions are advanced past them
+	 */
+	public void send(ByteBuffer[] bufs) {
+		int len = 0;
+		for (ByteBuffer b : bufs) len += b.remaining();
+		Packet m = message(len);
+		for (ByteBuffer b : bufs) {
+			int n = b.remaining();
+			b.get(m.payload, m.length, n);
+			m.length += n;
+		}
+		queue(m);
+	}
+
+	/** Send a message to peer.
+	 *  @param message is a string to be sent to the peer; characters
+	 *  outside US-ASCII are sent as '?'
+	 */
+	public void send(String message) {
+		Packet m = message(message.length());
+		for (int i = 0; i < message.length(); i++) {
+			char c = message.charAt(i);
+			m.payload[i] = (byte) (c < 128 ? c : '?');
+		}
+		m.length = message.length();
+		queue(m);
+	}
+
+	/** Get a packet to hold an outgoing message.
+	 *  @param len is the length of the message
+	 */
+	private Packet message(int len) {
+		if (len > Packet.MAX_PAYLOAD) {
+			System.err.println("Rdt:send: message of " + len
+					   + " bytes is too long");
+			System.exit(1);
+		}
+		return pool.get();
+	}
+
+	/** Get the time at which a message sent now expires.
+	 *  @param lifetime is its lifetime in seconds, 0 (or less) for ever
+	 *  @return the time on the link's clock, or 0 for never
+	 */
+	private long expiry(double lifetime) {
+		if (lifetime <= 0) return 0;
+		return clock.nanoTime() + (long) (lifetime * 1000000000);
+	}
+
+	/** Queue a message for the run() thread, waiting for room
+	 *  in fromSrc if need be.
+	 */
+	private void queue(Packet m) {
+		while (true) {
+			sendWakeup.clear();
+			if (fromSrc.offer(m)) break;
+			sendWakeup.await(System.nanoTime() + IDLE_WAIT);
+		}
+		wakeup.signal();
+	}
+		
+	/** Test if Rdt is ready to send a message.
+	 *  @return true if Rdt is ready
+	 */
+	public boolean ready() { return fromSrc.remainingCapacity() > 0; }
+
+	/** Get an incoming message.
+	 *  @param buf is an array to copy the message into; if it is
+	 *  longer than the space from off to the end of buf, the rest
+	 *  of it is discarded
+	 *  @param off is the offset in buf to copy it to
+	 *  @return the length of the message
+	 */
+	public int receive(byte[] buf, int off) {
+		Packet m = take();
+		System.arraycopy(m.payload, 0, buf, off,
+				 Math.min(m.length, buf.length - off));
+		int len = m.length;
+		m.release();
+		return len;
+	}
+
+	/** Get an incoming message.
+	 *  @param buf is a buffer to put the message into, at its
+	 *  position; if it is longer than the space remaining in buf,
+	 *  the rest of it is discarded
+	 *  @return the length of the message
+	 */
+	public int receive(ByteBuffer buf) {
+		Packet m = take();
+		buf.put(m.payload, 0, Math.min(m.length, buf.remaining()));
+		int len = m.length;
+		m.release();
+		return len;
+	}
+
+	/** Get an incoming message, scattered over several buffers.
+	 *  Each buffer is filled in turn, from its position up to its
+	 *  limit, straight from the packet.
+	 *  @param bufs are the buffers; the positions of those filled
+	 *  are advanced, and whatever does not fit in them is discarded
+	 *  @return the length of the message
+	 */
+	public int receive(ByteBuffer[] bufs) {
+		Packet m = take();
+		int off = 0;
+		for (ByteBuffer b : bufs) {
+			int n = Math.min(m.length - off, b.remaining());
+			b.put(m.payload, off, n);
+			off += n;
+		}
+		int len = m.length;
+		m.release();
+		return len;
+	}
+
+	/** Get an incoming message.
+	 *  @return next message
+	 */
+	public String receive() {
+		Packet m = take();
+		String s = m.payloadString();
+		m.release();
+		return s;
+	}
+
+	/** Take the next message from toSnk, waiting for one if need be. */
+	private Packet take() {
+		Packet m;
+		while (true) {
+			recvWakeup.clear();
+			if ((m = toSnk.poll()) != null) break;
+			recvWakeup.await(System.nanoTime() + IDLE_WAIT);
+		}
+		wakeup.signal();	// toSnk has room again
+		return m;
+	}
+	
+	/** Test for the presence of an incoming message.
+	 *  @return true if there is an incoming message
+	 */
+	public boolean incoming() { return !toSnk.isEmpty(); }
+
+	/** Test if the peer has closed the connection, and every message
+	 *  it sent has been received by the application.
+	 */
+	public boolean eof() { return peerDone && toSnk.isEmpty(); }
+}
@@ -0,0 +1,295 @@
+/** Benchmark the goodput and latency of Rdt over a matrix of settings.
+ *  usage: RdtBench [ mode=list ] [ wSize=list ] [ timeout=list ]
+ *  		[ loss=list ] [ size=list ] [ fec=list ] [ pace=list ]
+ *  		[ lifetime=list ] [ delta=s ] [ runLength=s ]
+ *  		[ out=file ] [ verbose ]
+ *
+ *  Each run connects a pair of Rdt objects, each with a Substrate of
+ *  its own, over the loopback interface, all in this one process. The
+ *  client sends messages of a given size to the server for runLength
+ *  seconds, then closes the connection, and the server closes its end
+ *  once every message has arrived. A run is made for every combination
+ *  of the values listed for the mode, window size, timeout, loss
+ *  probability, message size, FEC group size, pacing and message
+ *  lifetime, and one line of CSV is written for each, with these
+ *  columns:
+ *
+ *  mode,wSize,timeout,loss,size,fec,pace,lifetime	the settings
+ *  		of the run
+ *  sent,delivered	messages sent by the client, and delivered to
+ *  		the server (these are equal, unless messages expired
+ *  		or the run is broken)
+ *  seconds	time from the first message sent to the last delivered
+ *  goodput	payload bytes delivered per second
+ *  dataPackets	data packets the client sent, not counting resends
+ *  resent	data packets the client sent again
+ *  retransRatio	resent / dataPackets
+ *  p50,p90,p99,max	percentiles of the latency of the messages, from
+ *  		the client's call of Rdt.send() to the server's receive(),
+ *  		in ms
+ *
+ *  Each message carries its number and the time it was sent, so it
+ *  must be at least 12 bytes long; the server checks that they arrive
+ *  in order (and, without a lifetime, that none are missing). The
+ *  first run also warms up the JIT compiler, so the matrix is best
+ *  started with a setting that is not of interest, or run twice.
+ *
+ *  mode	is gbn for go-back-N, sack for go-back-N with selective acks,
+ *  		sr for selective repeat; default gbn
+ *  wSize	is the window size in packets; default 64,256
+ *  timeout	is the initial retransmission timeout in seconds;
+ *  		default 0.02
+ *  loss	is the probability that each packet sent, at either end,
+ *  		is discarded; default 0,0.01,0.05
+ *  size	is the message size in bytes, from 12 to Packet.MAX_PAYLOAD;
+ *  		default 100,1391
+ *  fec		is the initial number of data packets per parity packet
+ *  		(see Fec), or 0 for no forward error correction; only
+ *  		messages of up to Fec.MAX_PROTECTED bytes are protected;
+ *  		default 0
+ *  pace	is 1 to pace the packets sent (see Pacer), 0 not to;
+ *  		default 0
+ *  lifetime	is the lifetime of each message in seconds (see
+ *  		Rdt.send()), or 0 for messages that never expire;
+ *  		default 0
+ *  delta	is the time between messages (in seconds); if 0, the
+ *  		client sends as fast as the Rdt accepts them; default 0
+ *  runLength	is the time the client sends for (in seconds); default 2
+ *  out		is the file the CSV goes to; default stdout
+ *  verbose	if present, the reports that the Rdt objects, substrates
+ *  		and so on print when they stop are not suppressed
+ *
+ *  Lists are comma separated; for example
+ *  	RdtBench mode=gbn,sr wSize=32,128,512 loss=0,0.02 out=bench.csv
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+public class RdtBench {
+	public static void main(String[] args) throws Exception {
+		String[] modes = { "gbn" };
+		int[] wSizes = { 64, 256 };
+		double[] timeouts = { 0.02 };
+		double[] losses = { 0, 0.01, 0.05 };
+		int[] sizes = { 100, Packet.MAX_PAYLOAD };
+		int[] fecs = { 0 };
+		int[] paces = { 0 };
+		double[] lifetimes = { 0 };
+		double delta = 0, runLength = 2;
+		String outFile = null;
+		boolean verbose = false;
+		for (String a : args) {
+			int i = a.indexOf('=');
+			String key = (i < 0 ? a : a.substring(0, i));
+			String[] v = (i < 0 ? new String[0]
+					    : a.substring(i+1).split(","));
+			if (key.equals("mode")) modes = v;
+			else if (key.equals("wSize"))
+				wSizes = ints(v, 1, Rdt.MAX_WINDOW);
+			else if (key.equals("timeout")) timeouts = doubles(v);
+			else if (key.equals("loss")) losses = doubles(v);
+			else if (key.equals("size"))
+				sizes = ints(v, 12, Packet.MAX_PAYLOAD);
+			else if (key.equals("fec")) fecs = ints(v, 0, Fec.MAX_GROUP);
+			else if (key.equals("pace")) paces = ints(v, 0, 1);
+			else if (key.equals("lifetime")) lifetimes = doubles(v);
+			else if (key.equals("delta") && v.length == 1)
+				delta = doubles(v)[0];
+			else if (key.equals("runLength") && v.length == 1)
+				runLength = doubles(v)[0];
+			else if (key.equals("out") && v.length == 1)
+				outFile = v[0];
+			else if (key.equals("verbose")) verbose = true;
+			else usage();
+		}
+		for (String m : modes)
+			if (!m.equals("gbn") && !m.equals("sack") && !m.equals("sr"))
+				usage();
+
+		PrintStream csv = (outFile == null ? System.out
+				   : new PrintStream(new FileOutputStream(outFile)));
+		PrintStream console = System.out;
+		if (!verbose) System.setOut(new PrintStream(
+				OutputStream.nullOutputStream()));
+		csv.println("mode,wSize,timeout,loss,size,fec,pace,lifetime,"
+			    + "sent,delivered,seconds,goodput,dataPackets,resent,retransRatio,"
+			    + "p50,p90,p99,max");
+		for (String mode : modes)
+		for (int wSize : wSizes)
+		for (double timeout : timeouts)
+		for (double loss : losses)
+		for (int size : sizes)
+		for (int fec : fecs)
+		for (int pace : paces)
+		for (double lifetime : lifetimes) {
+			String row = run(mode.equals("sr"), mode.equals("sack"),
+					 wSize, timeout, loss, size, fec, pace != 0,
+					 lifetime, delta, runLength);
+			csv.println(mode + "," + wSize + "," + timeout + ","
+				    + loss + "," + size + "," + fec + "," + pace
+				    + "," + lifetime + "," + row);
+			csv.flush();
+			if (outFile != null)
+				console.println(mode + " wSize " + wSize
+					+ " timeout " + timeout + " loss " + loss
+					+ " size " + size + " fec " + fec
+					+ " pace " + pace + " lifetime " + lifetime
+					+ ": " + row);
+		}
+		if (outFile != null) csv.close();
+		System.setOut(console);
+	}
+
+	private static void usage() {
+		System.err.println("usage: RdtBench [ mode=list ] [ wSize=list ] "
+			+ "[ timeout=list ] [ loss=list ] [ size=list ] [ fec=list ] "
+			+ "[ pace=list ] [ lifetime=list ] [ delta=s ] [ runLength=s ] [ out=file ] "
+			+ "[ verbose ]\n(sizes are from 12 to " + Packet.MAX_PAYLOAD
+			+ " bytes)");
+		System.exit(1);
+	}
+
+	/** Parse a list of integers, each from min to max, exiting with
+	 *  the usage message if any is not.
+	 */
+	private static int[] ints(String[] v, int min, int max) {
+		int[] x = new int[v.length];
+		try {
+			for (int i = 0; i < v.length; i++) {
+				x[i] = Integer.parseInt(v[i]);
+				if (x[i] < min || x[i] > max) usage();
+			}
+		} catch(NumberFormatException e) { usage(); }
+		if (x.length == 0) usage();
+		return x;
+	}
+
+	/** Parse a list of numbers, exiting with the usage message if any
+	 *  is not a number.
+	 */
+	private static double[] doubles(String[] v) {
+		double[] x = new double[v.length];
+		try {
+			for (int i = 0; i < v.length; i++)
+				x[i] = Double.parseDouble(v[i]);
+		} catch(NumberFormatException e) { usage(); }
+		if (x.length == 0) usage();
+		return x;
+	}
+
+	/** Results gathered by the server's sink thread. */
+	private static class Sink implements Runnable {
+		Rdt rdt;
+		boolean gaps;		// true if messages may be missing
+		long count = 0;		// messages delivered
+		int next = 0;		// number of the next message expected
+		long bytes = 0;		// payload bytes delivered
+		long first = 0;		// time the first message was sent
+		long last = 0;		// time the last one was delivered
+		long[] lat = new long[1 << 16];	// latency of each message
+
+		Sink(Rdt rdt, boolean gaps) { this.rdt = rdt; this.gaps = gaps; }
+
+		/** Receive messages until the client has closed the
+		 *  connection, then close it at this end too.
+		 */
+		public void run() {
+			ByteBuffer msg = ByteBuffer.allocate(Packet.MAX_PAYLOAD);
+			while (!rdt.eof()) {
+				if (!rdt.incoming()) {
+					LockSupport.parkNanos(10000);
+					continue;
+				}
+				msg.clear();
+				int len = rdt.receive(msg);
+				long now = System.nanoTime();
+				int k = msg.getInt(0);
+				if (k - next < 0 || (k != next && !gaps)) {
+					System.err.println("RdtBench: got message "
+						+ k + " when expecting " + next);
+					System.exit(1);
+				}
+				next = k + 1;
+				long sentAt = msg.getLong(4);
+				if (count == 0) first = sentAt;
+				if (count == lat.length)
+					lat = Arrays.copyOf(lat, 2 * lat.length);
+				lat[(int) count++] = now - sentAt;
+				bytes += len; last = now;
+			}
+			rdt.close();
+		}
+	}
+
+	/** Make one run.
+	 *  @return the results, as the CSV columns after the settings
+	 */
+	private static String run(boolean selRepeat, boolean sack, int wSize,
+				  double timeout, double loss, int size, int fec,
+				  boolean pace, double lifetime, double delta,
+				  double runLength)
+				  throws Exception {
+		InetAddress lo = InetAddress.getLoopbackAddress();
+		Substrate srvSub = new Substrate(lo, 0, null, loss, false);
+		Substrate cliSub = new Substrate(lo, 0,
+			new InetSocketAddress(lo, srvSub.getLocalPort()),
+			loss, false);
+		srvSub.start(); cliSub.start();
+		Rdt srv = new Rdt(wSize, timeout, srvSub, selRepeat);
+		Rdt cli = new Rdt(wSize, timeout, cliSub, selRepeat);
+		srv.setSack(sack); cli.setSack(sack);
+		srv.setFec(fec); cli.setFec(fec);
+		srv.setPacing(pace); cli.setPacing(pace);
+		srv.start(); cli.start();
+		Sink sink = new Sink(srv, lifetime > 0);
+		Thread sinkThread = new Thread(sink); sinkThread.start();
+
+		// send numbered, timestamped messages until runLength is up
+		ByteBuffer msg = ByteBuffer.allocate(size);
+		long gap = (long) (delta * 1e9);
+		long t0 = System.nanoTime();
+		long stop = t0 + (long) (runLength * 1e9), next = t0;
+		int sent = 0;
+		while (true) {
+			long now = System.nanoTime();
+			if (now >= stop) break;
+			if (now < next) {
+				LockSupport.parkNanos(Math.min(next - now, 1000000));
+				continue;
+			}
+			msg.clear();
+			msg.putInt(0, sent).putLong(4, now);
+			cli.send(msg, lifetime);
+			sent++; next += gap;
+		}
+		// closing waits for every message to be acked, and for the
+		// server to close its end once it has received them
+		cli.stop(); sinkThread.join(); srv.stop();
+		cliSub.stop(); srvSub.stop();
+
+		long n = sink.count;
+		long[] lat = Arrays.copyOf(sink.lat, (int) n);
+		Arrays.sort(lat);
+		double secs = (sink.last - sink.first) / 1e9;
+		long data = cli.getDataSent(), resent = cli.getDataResent();
+		return String.format(Locale.ROOT, "%d,%d,%.3f,%.0f,%d,%d,%.4f,%s,%s,%s,%s",
+			sent, n, secs, (secs > 0 ? sink.bytes / secs : 0),
+			data, resent, (data > 0 ? (double) resent / data : 0),
+			percentile(lat, 0.5), percentile(lat, 0.9),
+			percentile(lat, 0.99), percentile(lat, 1));
+	}
+
+	/** Get a percentile of a sorted array of times in ns.
+	 *  @return the percentile in ms, or an empty string if there
+	 *  are no times
+	 */
+	private static String percentile(long[] t, double q) {
+		if (t.length == 0) return "";
+		int i = (int) Math.min(t.length - 1, Math.ceil(q * t.length) - 1);
+		return String.format(Locale.ROOT, "%.3f", t[Math.max(i, 0)] / 1e6);
+	}
+}
@@ -16,20 +16,26 @@ public class Receiver implements Runnable {
 	private Sender sndr;
 
 	private DatagramSocket sock;
-	private ArrayBlockingQueue<Packet> rcvq;
+	private SpscQueue<Packet> rcvq;
 	private InetSocketAddress peerAdr;
+	private PacketPool pool;	// where received packets are taken from
 	private boolean debug;
+	private volatile Wakeup wakeup;	// signalled when rcvq gets a packet
+	private volatile boolean quit = false; // stop thread when true
 
 	Receiver(DatagramSocket sock, InetSocketAddress peerAdr,
-		 Sender sndr, boolean debug) {
+		 Sender sndr, PacketPool pool, boolean debug) {
 		this.sock = sock; this.peerAdr = peerAdr;
-		this.sndr = sndr; this.debug = debug;
+		this.sndr = sndr; this.pool = pool; this.debug = debug;
 
 		// initialize queue for received packets
 		// stores both the packet and socket address of the sender
-		rcvq = new ArrayBlockingQueue<Packet>(1000,true);
+		rcvq = new SpscQueue<Packet>(1000);
 	}
 
+	/** Set the wakeup signalled when a packet is added to rcvq. */
+	public void setWakeup(Wakeup wakeup) { this.wakeup = wakeup; }
+
 	/** Instantiate run() thread and start it running. */
 	public void start() {
 		myThread = new Thread(this); myThread.start();
@@ -38,10 +44,16 @@ public class Receiver implements Runnable {
 	/** Wait for thread to quit. */
 	public void join() throws Exception { myThread.join(); }
 
+	/** Signal run method to halt; it does so at its next socket
+	 *  timeout, or at once if the socket is closed.
+	 */
+	public void stop() { quit = true; }
+
 	/** Receive thread places incoming packet in a queue.
 	 *  This method is run by a separate thread. It simply receives
 	 *  packets from the datagram socket and places them in a queue.
 	 *  If the queue is full when a packet arrives, it is discarded.
+	 *  Runs until stopped.
 	 */
 	public void run() {
 		long t0 = System.nanoTime();
@@ -55,18 +67,19 @@ public class Receiver implements Runnable {
 		int rcvCount, rcvAck, discCount;
 		rcvCount = rcvAck = discCount = 0;
 
-		// run until nothing has happened for 5 seconds
-		while (eventTime == 0 || now < eventTime + 5000000000L) {
+		while (!quit) {
 			now = System.nanoTime() - t0;
 	                try {
 	                        sock.receive(dg);
 	                } catch(SocketTimeoutException e) {
 	                        continue; // check for termination, then retry
 	                } catch(Exception e) {
+				if (quit) break; // socket closed by stop()
 	                        System.err.println("Receiver: receive "
 						    + "exception: " + e);
 	                        System.exit(1);
 			}
+			if (quit) break; // socket closed by stop()
 			eventTime = now;
 			// set peerAdr if not yet initialized
 			// otherwise, that it's the same peer
@@ -74,13 +87,16 @@ public class Receiver implements Runnable {
 				peerAdr = (InetSocketAddress)
 						dg.getSocketAddress();
 				sndr.setPeerAdr(peerAdr);
-			} else if (!dg.getSocketAddress().equals(peerAdr)) {
+			} else if (dg.getPort() != peerAdr.getPort() ||
+				   !dg.getAddress().equals(peerAdr.getAddress())) {
+				// (compared piecewise, since getSocketAddress()
+				// allocates a new address every time)
 	                        System.err.println("Receiver: received "
 					+ "packet from unexpected sender: "
 					+ dg.getSocketAddress());
 	                        System.exit(1);
 			}
-			p = new Packet();
+			p = pool.get();
 			if (!p.unpack(dg.getData(), dg.getLength())) {
                         	System.err.println("Receiver: error while "
 						   + "unpacking packet");
@@ -92,9 +108,11 @@ public class Receiver implements Runnable {
 	                                + dg.getSocketAddress() + " " + p);
 	                        System.out.flush();
 	                }
-			if (p.type == 0) rcvCount++;
+			if (p.isData()) rcvCount++;
 			else rcvAck++;
-			if (!rcvq.offer(p)) discCount++; // discard if rcvq full
+			if (!rcvq.offer(p)) { // discard if rcvq full
+				discCount++; p.release();
+			} else if (wakeup != null) wakeup.signal();
 			if (firstEventTime == 0) firstEventTime = now;
 		}
 		System.out.println("Receiver: received " + rcvCount 
@@ -106,23 +124,21 @@ public class Receiver implements Runnable {
 	}
 
 	/** Receive a packet.
-	 *  @return the next packet that has been received on the socket;
-	 *  will block if no packets available
+	 *  Must only be called from one thread.
+	 *  @return the next packet that has been received on the socket,
+	 *  or null if there is none
 	 */
-	public Packet receive() {
-		Packet p = null;
-		try {
-			p = rcvq.take();
-		} catch(Exception e) {
-			System.err.println("Receiver:receive: exception " + e);
-			System.exit(1);
-		}
-		return p;
-	}
+	public Packet receive() { return rcvq.poll(); }
+
+	/** Receive all waiting packets, up to the length of an array.
+	 *  Must only be called from one thread.
+	 *  @param dst is the array to put them in
+	 *  @return the number of packets received
+	 */
+	public int receive(Packet[] dst) { return rcvq.drain(dst); }
 
-	/** Send a packet to a specified destination.
-	 *  @param p is packet to be sent
-	 *  @param dest is the socket address of the destination
+	/** Test for the presence of an incoming packet.
+	 *  @return true if there is a packet waiting to be received
 	 */
-	public boolean incoming() { return rcvq.size() > 0; }
+	public boolean incoming() { return !rcvq.isEmpty(); }
 }
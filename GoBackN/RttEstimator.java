@@ -0,0 +1,75 @@
+/** Round-trip time estimator.
+ *
+ *  Computes the retransmission timeout from measured round-trip
+ *  times, as TCP does (RFC 6298). Each sample R updates a smoothed
+ *  round-trip time SRTT and a mean deviation RTTVAR,
+ *
+ *	RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|
+ *	SRTT   = 7/8 SRTT + 1/8 R
+ *
+ *  and the timeout is RTO = SRTT + 4 RTTVAR, kept within
+ *  [MIN_RTO,MAX_RTO]. The first sample sets SRTT = R and
+ *  RTTVAR = R/2. Until then, the RTO is the initial value given
+ *  to the constructor.
+ *
+ *  Each time a timer expires, backoff() doubles the RTO. The backoff
+ *  is dropped by the next sample, or by resume() when an ack shows
+ *  that packets are getting through again; without that, a sender
+ *  whose every packet has been retransmitted would never get a
+ *  valid sample and would keep the inflated timeout. Callers must only
+ *  pass samples for packets that were not retransmitted, since an
+ *  ack for a retransmitted packet cannot be matched to the copy
+ *  that caused it (Karn's rule).
+ *
+ *  All times are in ns. The getters may be called from any thread.
+ */
+public class RttEstimator {
+	public static final long MIN_RTO = 10000000L;	   // 10 ms
+	public static final long MAX_RTO = 60000000000L;   // 60 s
+
+	private volatile long srtt = 0;		// smoothed rtt, 0 if no sample
+	private volatile long rttvar = 0;	// rtt mean deviation
+	private volatile long rto;		// timeout without backoff
+	private volatile int backoffs = 0;	// expiries since last ack
+
+	/** Initialize a new estimator.
+	 *  @param initRto is the timeout to use before the first sample
+	 */
+	RttEstimator(long initRto) { rto = clamp(initRto); }
+
+	private static long clamp(long x) {
+		return Math.max(MIN_RTO, Math.min(MAX_RTO, x));
+	}
+
+	/** Add a round-trip time sample.
+	 *  @param r is the time from sending a packet that was not
+	 *  retransmitted to receiving its ack
+	 */
+	public void sample(long r) {
+		if (srtt == 0) {
+			srtt = Math.max(r, 1); rttvar = r / 2;
+		} else {
+			rttvar = (3 * rttvar + Math.abs(srtt - r)) / 4;
+			srtt = (7 * srtt + r) / 8;
+		}
+		rto = clamp(srtt + 4 * rttvar);
+		backoffs = 0;
+	}
+
+	/** Double the timeout, after a timer expiry. */
+	public void backoff() {
+		if ((rto << backoffs) < MAX_RTO) backoffs++;
+	}
+
+	/** Drop the backoff, after an ack for new data. */
+	public void resume() { backoffs = 0; }
+
+	/** Get the current retransmission timeout. */
+	public long rto() { return clamp(rto << backoffs); }
+
+	/** Get the smoothed round-trip time, or 0 before the first sample. */
+	public long srtt() { return srtt; }
+
+	/** Get the round-trip time mean deviation. */
+	public long rttvar() { return rttvar; }
+}
@@ -3,31 +3,42 @@
  *  This class provides a send interface to a datagram socket.
  *  Specifically, it allows one to test to see if another packet
  *  can be sent, before attempting a potentially blocking send
- *  operation.
+ *  operation. Every packet goes through a Netem pipeline on its
+ *  way out, which may lose, duplicate or delay it; copies to be
+ *  sent later are held in a timing wheel until they are due.
  */  
 
 import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 public class Sender implements Runnable {
 	private DatagramSocket sock;
 	private InetSocketAddress peerAdr;
-	private double discProb;
+	private Netem netem;		// impairments applied to packets sent
 	private boolean debug;
 
-	private ArrayBlockingQueue<Packet> sendq;
+	private SpscQueue<Packet> sendq;
+	private Wakeup pending;		// signalled when sendq gets a packet
+	private volatile Wakeup wakeup;	// signalled when sendq has room
 	private Thread myThread;	// thread that executes run() method
+	private volatile boolean quit = false; // stop once sendq is empty
+
+	// packets are packed straight into the datagram's buffer
+	private byte[] buf = new byte[Packet.HEADER + Packet.MAX_PAYLOAD];
+	private DatagramPacket dg = new DatagramPacket(buf, buf.length);
 
 	Sender(DatagramSocket sock, InetSocketAddress peerAdr,
-		    double discProb, boolean debug) {
+		    Netem netem, boolean debug) {
 		this.sock = sock; this.peerAdr = peerAdr;
-		this.discProb = discProb; this.debug = debug;
+		this.netem = netem; this.debug = debug;
 
 		// initialize queue for received packets
 		// stores both the packet and socket address of the sender
-		sendq = new ArrayBlockingQueue<Packet>(1000,true);
+		sendq = new SpscQueue<Packet>(1000);
+		pending = new Wakeup();
 	}
 
 	/** Instantiate run() thread and start it running. */
@@ -38,33 +49,49 @@ public class Sender implements Runnable {
 	/** Wait for thread to quit. */
 	public void join() throws Exception { myThread.join(); }
 
+	/** Signal run method to halt, once every packet queued has
+	 *  been sent.
+	 */
+	public void stop() { quit = true; pending.signal(); }
+
+	/** Test if the Sender is still running. */
+	public boolean isAlive() { return myThread.isAlive(); }
+
+	/** Set the wakeup signalled when a packet leaves sendq. */
+	public void setWakeup(Wakeup wakeup) { this.wakeup = wakeup; }
+
 	public void setPeerAdr(InetSocketAddress peerAdr) {
 		this.peerAdr = peerAdr;
 	}
 
 	/** Send thread sends out-going packets to the network.
 	 *  This method is run by a separate thread. Whenever there
-	 *  is an outgoing packet to be sent, it sends it and waits
-	 *  for the next.
+	 *  is an outgoing packet to be sent, it passes it through the
+	 *  Netem, and sends the copies that come out, at once or once
+	 *  they are due, until it is stopped and every packet queued
+	 *  or delayed has been sent.
 	 */
 	public void run() {
 		long t0 = System.nanoTime();
 		long now, eventTime, firstEventTime;
 		now = eventTime = firstEventTime = 0;
 
-		byte[] buf = new byte[1]; // dummy buffer, not really used 
-                DatagramPacket dg = new DatagramPacket(buf,1);
+		Packet[] out = new Packet[64];	// packets taken from sendq
+		long[] times = new long[Netem.MAX_COPIES]; // times of copies
+		// copies delayed by the Netem; times are relative to t0
+		TimingWheel<Packet> wheel =
+			new TimingWheel<Packet>(100000, 1024, 0);
 
 		int sendCount, sendAck, discCount, discAck;
 		sendCount = sendAck = discCount = discAck = 0;;
 
-		// run until nothing has happened for 3 seconds
-		while (eventTime == 0 || now < eventTime + 3000000000L) {
+		while (true) {
 			now = System.nanoTime() - t0;
 			// idle until peerAdr is set
 			if (peerAdr == null) {
+				if (quit) break;
 				try {
-					Thread.sleep(100);
+					Thread.sleep(1);
 				} catch(Exception e) {
 					System.err.println("Sender:run: "
 						+ "sleep exception " + e);
@@ -72,49 +99,55 @@ public class Sender implements Runnable {
 				}
 				continue;
 			}
-			// check sendq for a packet, if none arrive in 100 ms,
-			// check termination condition before trying again
-			Packet p = null;
-			try {
-				p = sendq.poll(100,TimeUnit.MILLISECONDS);
-			} catch(Exception e) {
-				System.err.println("Sender:run: exception " +e);
-				System.exit(1);
-			}
-			if (p == null) continue; // check for termination
-			if (p.type == 0) sendCount++;
-			else sendAck++;
-			eventTime = now;
-			if (firstEventTime == 0) firstEventTime = now;
-			if (Math.random() < discProb) {
-				if (p.type == 0) discCount++;
-				else discAck++;
-				if (debug) {
-					System.out.println("discarding " + p);
-					System.out.flush();
+			// send the delayed copies that have come due
+			int m;
+			while ((m = wheel.expire(now, out)) > 0) {
+				for (int i = 0; i < m; i++) {
+					transmit(out[i]); out[i] = null;
 				}
-				continue;
 			}
-
-			// pack and send the packet
-			buf = p.pack();
-                	if (buf == null) {
-				System.err.println("Sender: packing error " +p);
-				System.exit(1);
+			// take every packet waiting in sendq; if there are
+			// none, quit if stopped and no copies are delayed, or
+			// else wait for up to 100 ms, or until the next delayed
+			// copy is due, before trying again
+			int n = sendq.drain(out);
+			if (n == 0) {
+				pending.clear();
+				n = sendq.drain(out);
+				if (n == 0) {
+					if (quit && wheel.size() == 0) break;
+					long wait = Math.min(100000000L,
+						wheel.nextDue(now) - now);
+					pending.await(System.nanoTime() + wait);
+					continue; // check for termination
+				}
 			}
-			dg.setData(buf); dg.setLength(buf.length);
-			dg.setSocketAddress(peerAdr);
-	                if (debug) {
-	                        System.out.println(sock.getLocalSocketAddress()
-	                                + " sending to " 
-	                                + dg.getSocketAddress() + " " + p);
-	                        System.out.flush();
-	                }
-                	try {
-				sock.send(dg);
-			} catch(Exception e) {
-				System.err.println("Sender: send error " + p);
-				System.exit(1);
+			Wakeup w = wakeup;
+			if (w != null) w.signal();
+			for (int i = 0; i < n; i++) {
+				Packet p = out[i]; out[i] = null;
+				if (p.isData()) sendCount++;
+				else sendAck++;
+				eventTime = now;
+				if (firstEventTime == 0) firstEventTime = now;
+				int k = netem.apply(now, Packet.HEADER + p.length,
+						    times);
+				if (k == 0) {
+					if (p.isData()) discCount++;
+					else discAck++;
+					if (debug) {
+						System.out.println("discarding " + p);
+						System.out.flush();
+					}
+					p.release();
+					continue;
+				}
+				for (int j = 0; j < k; j++) {
+					p.retain();
+					if (times[j] <= now) transmit(p);
+					else wheel.add(p, times[j]);
+				}
+				p.release();
 			}
 		}
 		System.out.println("  Sender: sent " + sendCount 
@@ -123,18 +156,44 @@ public class Sender implements Runnable {
 				+ " data packets, " + discAck + " acks"); 
 		System.out.println("          runLength " 
 			+ (((double) (eventTime - firstEventTime))/1000000000));
+		if (!netem.isEmpty())
+			System.out.println("   Netem: " + netem + "; lost "
+				+ netem.lost() + ", duplicated "
+				+ netem.duplicates());
 	}
 
-	/** Send a packet to a specified destination.
-	 *  @param p is packet to be sent
-	 */
-	public void send(Packet p) {
+	/** Pack a packet and send it to the peer, then release it. */
+	private void transmit(Packet p) {
+		int len = p.pack(buf);
+		if (len < 0) {
+			System.err.println("Sender: packing error " +p);
+			System.exit(1);
+		}
+		dg.setLength(len);
+		dg.setSocketAddress(peerAdr);
+		if (debug) {
+			System.out.println(sock.getLocalSocketAddress()
+				+ " sending to " 
+				+ dg.getSocketAddress() + " " + p);
+			System.out.flush();
+		}
 		try {
-			sendq.put(p);
+			sock.send(dg);
 		} catch(Exception e) {
-			System.err.println("Sender:send sendq exception " + e);
+			System.err.println("Sender: send error " + p);
 			System.exit(1);
 		}
+		p.release();
+	}
+
+	/** Send a packet to a specified destination.
+	 *  Must only be called from one thread. If sendq is full, waits
+	 *  for room, but callers should normally check ready() first.
+	 *  @param p is packet to be sent; it is released once sent
+	 */
+	public void send(Packet p) {
+		while (!sendq.offer(p)) LockSupport.parkNanos(10000);
+		pending.signal();
 	}
 
 	/** Return true if ready to accept another packet. */
@@ -0,0 +1,113 @@
+/** Simulated substrate.
+ *
+ *  A SimSubstrate stands in for a Substrate in a simulation (see
+ *  Simulator): instead of going out on a socket, each packet sent is
+ *  packed, passed through the substrate's Netem pipeline, and each
+ *  copy that comes out is unpacked into a packet of the peer's pool,
+ *  and handed to the simulator to arrive at the peer at the time the
+ *  pipeline gave it. As with a Receiver, arrivals that find 1000
+ *  packets already waiting are discarded.
+ *
+ *  The pipeline starts out empty, so by default packets arrive at
+ *  once, and never get lost; stages are added with impairments().
+ */
+
+import java.util.*;
+
+public class SimSubstrate implements Link {
+	private static final int QUEUE = 1000;	// most packets waiting
+
+	private Simulator sim;
+	private SimSubstrate peer;	// substrate at the other end
+	private boolean initiator;	// true if the client
+	private Netem netem;		// impairments applied to packets sent
+	private PacketPool pool = new PacketPool(8192);
+	private Wakeup wakeup = new Wakeup();
+	private ArrayDeque<Packet> rcvq = new ArrayDeque<Packet>();
+
+	// packets are packed and unpacked through one buffer
+	private byte[] buf = new byte[Packet.HEADER + Packet.MAX_PAYLOAD];
+	private long[] times = new long[Netem.MAX_COPIES];
+	private long sendCount = 0, rcvCount = 0, dropCount = 0;
+
+	/** Initialize a new simulated substrate.
+	 *  @param sim is the simulator it belongs to
+	 *  @param initiator is true if the Rdt using it opens the
+	 *  connection (see Link.initiator())
+	 */
+	SimSubstrate(Simulator sim, boolean initiator) {
+		this.sim = sim; this.initiator = initiator;
+		netem = new Netem(sim.random());
+	}
+
+	/** Connect two substrates to each other. */
+	static void connect(SimSubstrate a, SimSubstrate b) {
+		a.peer = b; b.peer = a;
+	}
+
+	/** Get the pipeline of impairments that packets sent go through. */
+	public Netem impairments() { return netem; }
+
+	/** Get the number of packets sent, received, and discarded on
+	 *  arrival because too many were waiting.
+	 */
+	public long sendCount() { return sendCount; }
+	public long rcvCount() { return rcvCount; }
+	public long dropCount() { return dropCount; }
+
+	public PacketPool getPool() { return pool; }
+
+	public Wakeup wakeup() { return wakeup; }
+
+	public Clock clock() { return sim; }
+
+	public Random random() { return sim.random(); }
+
+	public boolean isAlive() { return true; }
+
+	public boolean initiator() { return initiator; }
+
+	public boolean answersFin() { return false; }
+
+	/** Send a packet, which takes effect at once, so the caller
+	 *  keeps its reference.
+	 */
+	public void send(Packet p) {
+		sendCount++;
+		int len = p.pack(buf);
+		if (len < 0) {
+			System.err.println("SimSubstrate: packing error " + p);
+			System.exit(1);
+		}
+		int n = netem.apply(sim.nanoTime(), len, times);
+		for (int i = 0; i < n; i++) {
+			Packet q = peer.pool.get();
+			if (!q.unpack(buf, len)) {
+				System.err.println("SimSubstrate: error while "
+						   + "unpacking packet");
+				System.exit(1);
+			}
+			sim.arrive(times[i], peer, q);
+		}
+	}
+
+	/** Since packets are sent at once, the substrate is always ready. */
+	public boolean ready() { return true; }
+
+	/** Take in a packet that has arrived (see Simulator). */
+	void arrive(Packet p) {
+		rcvCount++;
+		if (rcvq.size() >= QUEUE) {
+			dropCount++; p.release(); return;
+		}
+		rcvq.add(p); wakeup.signal();
+	}
+
+	public int receive(Packet[] dst) {
+		int n = 0;
+		while (n < dst.length && !rcvq.isEmpty()) dst[n++] = rcvq.poll();
+		return n;
+	}
+
+	public boolean incoming() { return !rcvq.isEmpty(); }
+}
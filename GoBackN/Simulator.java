@@ -0,0 +1,121 @@
+/** Discrete event simulation of Rdt connections.
+ *
+ *  A Simulator runs Rdt objects and their SrcSnk objects in virtual
+ *  time, in one thread, over simulated substrates (see SimSubstrate),
+ *  instead of over sockets with threads of their own. The simulator is
+ *  the clock they all read the time from, and it is only advanced when
+ *  none of them has anything left to do at the current time, straight
+ *  to the next time that one of them does: the next packet arrival,
+ *  protocol timer, or payload to send. So a run takes only as much
+ *  processor time as the work done in it, however long it lasts in
+ *  virtual time.
+ *
+ *  Every random choice, of the impairments applied to packets and
+ *  of the initial sequence numbers, is made with the simulator's
+ *  random number generator, and ties between events due at the same
+ *  time are broken in the order they were scheduled, so a run with a
+ *  given seed is the same every time.
+ */
+
+import java.util.*;
+
+public class Simulator implements Clock {
+	/** Arrival of a packet at a substrate. */
+	private static class Event implements Comparable<Event> {
+		long time; long seq;	// when it is due, and tie breaker
+		SimSubstrate dst; Packet p;
+
+		public int compareTo(Event e) {
+			if (time != e.time) return Long.compare(time, e.time);
+			return Long.compare(seq, e.seq);
+		}
+	}
+
+	private long now = 0;		// virtual time in ns
+	private Random rand;		// for every random choice
+	private PriorityQueue<Event> events = new PriorityQueue<Event>();
+	private long seq = 0;		// events scheduled so far
+	private long steps = 0;		// times the clock has advanced
+
+	/** Initialize a new simulator, at time zero.
+	 *  @param seed is the seed for its random number generator
+	 */
+	Simulator(long seed) { rand = new Random(seed); }
+
+	/** Get the current virtual time, in ns. */
+	public long nanoTime() { return now; }
+
+	/** Get the simulator's random number generator. */
+	public Random random() { return rand; }
+
+	/** Get the number of events scheduled so far. */
+	public long eventCount() { return seq; }
+
+	/** Get the number of distinct times the simulation has visited. */
+	public long stepCount() { return steps; }
+
+	/** Schedule the arrival of a packet.
+	 *  @param time is when it arrives, no earlier than now
+	 *  @param dst is the substrate it arrives at
+	 *  @param p is the packet, which dst takes over
+	 */
+	void arrive(long time, SimSubstrate dst, Packet p) {
+		Event e = new Event();
+		e.time = Math.max(time, now); e.seq = seq++;
+		e.dst = dst; e.p = p;
+		events.add(e);
+	}
+
+	/** Run Rdt objects, each with a SrcSnk, until every Rdt has
+	 *  finished. Each Rdt is closed once its SrcSnk has sent its last
+	 *  payload. The Rdt objects must not have been started (see
+	 *  Rdt.start()), and their substrates must be SimSubstrates of
+	 *  this simulator.
+	 *  @param rdts are the Rdt objects
+	 *  @param apps are their SrcSnk objects, made with this
+	 *  simulator as their clock
+	 */
+	public void run(Rdt[] rdts, SrcSnk[] apps) {
+		int n = rdts.length;
+		boolean[] closed = new boolean[n], finished = new boolean[n];
+		int live = n;
+		for (SrcSnk a : apps) a.begin();
+		while (live > 0) {
+			// deliver the packets that have arrived
+			while (!events.isEmpty() && events.peek().time <= now) {
+				Event e = events.poll();
+				e.dst.arrive(e.p);
+			}
+			// let everyone do what there is to do, and find
+			// the earliest time that one of them has more
+			long next = Long.MAX_VALUE;
+			for (int i = 0; i < n; i++) {
+				if (finished[i]) continue;
+				while (apps[i].work()) {}
+				if (!closed[i] && apps[i].isSent()) {
+					rdts[i].close(); closed[i] = true;
+				}
+				long due = rdts[i].service();
+				if (due < 0) {
+					finished[i] = true; live--;
+					continue;
+				}
+				next = Math.min(next, due);
+				if (rdts[i].incoming()) next = now;
+				else next = Math.min(next, apps[i].nextWork());
+			}
+			if (live == 0) break;
+			// (including the packets they have just sent)
+			if (!events.isEmpty())
+				next = Math.min(next, events.peek().time);
+			// the clock always moves on, if only by a ns, since
+			// a timer that falls due exactly now fires only
+			// once it has passed
+			now = Math.max(next, now + 1);
+			steps++;
+		}
+		// free the packets still on their way
+		for (Event e : events) e.p.release();
+		events.clear();
+	}
+}
@@ -0,0 +1,154 @@
+/** Single-producer, single-consumer queue.
+ *
+ *  A bounded ring buffer for handing objects from one thread to
+ *  another, without locks. Exactly one thread may call the producer
+ *  methods (offer() and remainingCapacity()) and exactly one other
+ *  thread the consumer methods (poll(), peek() and drain()); isEmpty()
+ *  and size() may be called from either, and are exact only there.
+ *
+ *  The producer owns the tail index and the consumer the head index.
+ *  Each writes its own index with a release store after touching the
+ *  ring, and reads the other's with a volatile read, so an element is
+ *  always written before it can be seen and taken before its slot can
+ *  be reused. Each side also caches the last value it read of the
+ *  other's index, and only rereads it when the cached value says the
+ *  ring is full (or empty), so in the common case neither side touches
+ *  the other's cache line. The indexes are padded onto separate cache
+ *  lines (by the superclasses below) so the two threads do not
+ *  falsely share one.
+ *
+ *  drain() takes every element available, up to the size of the
+ *  array given, and publishes the new head once for all of them,
+ *  which is much cheaper than a poll() per element.
+ *
+ *  The queue never blocks; callers that need to wait use a Wakeup.
+ */
+
+import java.lang.invoke.*;
+
+public class SpscQueue<E> extends SpscConsumerFields {
+	private static final VarHandle HEAD, TAIL;
+	static {
+		try {
+			MethodHandles.Lookup l = MethodHandles.lookup();
+			HEAD = l.findVarHandle(SpscConsumerFields.class,
+					       "head", long.class);
+			TAIL = l.findVarHandle(SpscProducerFields.class,
+					       "tail", long.class);
+		} catch(Exception e) { throw new ExceptionInInitializerError(e); }
+	}
+
+	private long p10, p11, p12, p13, p14, p15, p16; // padding
+	private final Object[] ring;	// elements, null in free slots
+	private final int mask;		// ring length - 1
+
+	/** Initialize a new, empty queue.
+	 *  @param capacity is the minimum number of elements it can
+	 *  hold; it is rounded up to a power of two
+	 */
+	SpscQueue(int capacity) {
+		int n = 1;
+		while (n < capacity) n <<= 1;
+		ring = new Object[n]; mask = n - 1;
+	}
+
+	/** Add an element (producer only).
+	 *  @param e is the element, which must not be null
+	 *  @return false if the queue is full
+	 */
+	public boolean offer(E e) {
+		long t = tail;
+		if (t - headCache > mask) {
+			headCache = head;
+			if (t - headCache > mask) return false;
+		}
+		ring[(int) t & mask] = e;
+		TAIL.setRelease(this, t + 1);
+		return true;
+	}
+
+	/** Remove the element at the head (consumer only).
+	 *  @return the element, or null if the queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		long h = head;
+		if (h >= tailCache) {
+			tailCache = tail;
+			if (h >= tailCache) return null;
+		}
+		int i = (int) h & mask;
+		E e = (E) ring[i];
+		ring[i] = null;
+		HEAD.setRelease(this, h + 1);
+		return e;
+	}
+
+	/** Get the element at the head without removing it
+	 *  (consumer only).
+	 *  @return the element, or null if the queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E peek() {
+		long h = head;
+		if (h >= tailCache) {
+			tailCache = tail;
+			if (h >= tailCache) return null;
+		}
+		return (E) ring[(int) h & mask];
+	}
+
+	/** Remove as many elements as are available, up to the length
+	 *  of an array (consumer only).
+	 *  @param dst is the array to move them to, in order
+	 *  @return the number of elements moved
+	 */
+	@SuppressWarnings("unchecked")
+	public int drain(E[] dst) {
+		long h = head;
+		if (h + dst.length > tailCache) tailCache = tail;
+		int n = (int) Math.min(tailCache - h, dst.length);
+		for (int k = 0; k < n; k++) {
+			int i = (int) (h + k) & mask;
+			dst[k] = (E) ring[i]; ring[i] = null;
+		}
+		if (n > 0) HEAD.setRelease(this, h + n);
+		return n;
+	}
+
+	/** Test if the queue is empty. */
+	public boolean isEmpty() { return head >= tail; }
+
+	/** Get the number of elements in the queue. */
+	public int size() { return (int) Math.max(0, tail - head); }
+
+	/** Get the number of elements that can be added without the
+	 *  queue becoming full (producer only; never an overestimate).
+	 */
+	public int remainingCapacity() { return mask + 1 - (int) (tail - head); }
+
+	/** Get the number of elements the queue can hold. */
+	public int capacity() { return mask + 1; }
+}
+
+// Superclasses that lay out the producer's and consumer's indexes on
+// cache lines of their own. Fields of a superclass come before those
+// of its subclasses, so the padding cannot be reordered away.
+
+abstract class SpscPad0 {
+	long p00, p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class SpscProducerFields extends SpscPad0 {
+	volatile long tail = 0;	// index of the next slot to fill
+	long headCache = 0;	// last value of head read by the producer
+}
+
+abstract class SpscPad1 extends SpscProducerFields {
+	long p20, p21, p22, p23, p24, p25, p26, p27;
+}
+
+abstract class SpscConsumerFields extends SpscPad1 {
+	volatile long head = 0;	// index of the next slot to take
+	long tailCache = 0;	// last value of tail read by the consumer
+}
@@ -5,16 +5,27 @@
  *  sequence number that starts at 1 and is incremented for every
  *  payload sent. When payloads are received, we check the sequence
  *  number of the arriving payloads to make sure that we are getting
- *  the payloads in the proper sequence.
+ *  the payloads in the proper sequence; if the payloads are given a
+ *  lifetime (see setLifetime()), some may never arrive, so later
+ *  sequence numbers are accepted too. Payloads are built and
+ *  checked in reused byte arrays, so the test itself creates no
+ *  garbage.
  *
  *  When a new payload is generated, it is passed to an Rdt object,
  *  using its send method. Similarly, packets are received from the
  *  Rdt object using its receive method.
  *
  *  The thread is started using the start method (which calls the
- *  run method in a new thread of control). It can be stopped
- *  using the stop method; this causes the run method to terminate
- *  its main loop and print a short status report, then return.
+ *  run method in a new thread of control). The awaitSent method
+ *  waits until it has sent its last payload. It can be stopped
+ *  using the stop method; this causes the run method to receive any
+ *  payloads still waiting, terminate its main loop and print a short
+ *  status report, then return.
+ *
+ *  Instead of being started, a SrcSnk can be driven by a simulation
+ *  (see Simulator), which calls begin() once and then work() whenever
+ *  there may be something to do; the times are then read from the
+ *  simulation's clock.
  */
 
 import java.io.*;
@@ -28,10 +39,19 @@ public class SrcSnk implements Runnable {
 	private long delta;		// time between packets in ns
 	private long runLength;		// amount of time to run in ns
 	private Rdt rdt;		// reference to Rdt object
+	private Clock clock;		// clock the times are read from
+	private long t0;		// time when begin() was called
+	private long next;		// time to send the next payload
+	private long stopTime;		// time to stop sending
+	private byte[] msg = new byte[Packet.MAX_PAYLOAD];
+	private byte[] expected = new byte[Packet.MAX_PAYLOAD];
 
 	private int inCount = 0;	// count of received packets
+	private int nextIn = 0;		// sequence number expected next
+	private double lifetime = 0;	// lifetime of payloads sent, 0 for ever
 	private int outCount = 0;	// count of sent packets
-	private boolean quit;		// stop thread when true
+	private volatile boolean quit;	// stop thread when true
+	private volatile boolean sent;	// true once the last payload is sent
 
 	/** Initialize a new SrcSnk object
 	 *  @param delta is a float, representing the amount of time to wait
@@ -41,11 +61,25 @@ public class SrcSnk implements Runnable {
 	 *  @param rdt is a reference to a Rdt object
 	 */
 	SrcSnk(double delta, double runLength, Rdt rdt) {
+		this(delta, runLength, rdt, Clock.SYSTEM);
+	}
+
+	/** Initialize a new SrcSnk object, whose times are read from
+	 *  a given clock (which should be the one the Rdt reads too).
+	 */
+	SrcSnk(double delta, double runLength, Rdt rdt, Clock clock) {
 		this.delta = (long) (delta * 1000000000); // convert to ns
 		this.runLength = (long) (runLength * 1000000000);
-		this.rdt = rdt; this.quit = false;
+		this.rdt = rdt; this.clock = clock; this.quit = false;
+		this.sent = (this.delta <= 0);
 	}
 
+	/** Give every payload sent a lifetime (see Rdt.send()), after
+	 *  which it may be abandoned. Should be called before begin().
+	 *  @param lifetime is the lifetime in seconds, 0 for ever
+	 */
+	public void setLifetime(double lifetime) { this.lifetime = lifetime; }
+
 	/** Instantiate and start a thread to execute run(). */
 	public void start() {
 		myThread = new Thread(this); myThread.start();
@@ -57,6 +91,16 @@ public class SrcSnk implements Runnable {
 	/** wait for thread to terminate. */
 	public void join() throws Exception { myThread.join(); }
 
+	/** Wait until the run method has sent its last payload (or at
+	 *  once, if it sends none).
+	 */
+	public void awaitSent() throws Exception {
+		while (!sent) Thread.sleep(1);
+	}
+
+	/** Test if the last payload has been sent. */
+	public boolean isSent() { return sent; }
+
 	/** Run the SrcSnk thread.
 	 *  This method executes a loop that generates new outgoing
 	 *  payloads and receives incoming payloads. It sends packets
@@ -64,39 +108,15 @@ public class SrcSnk implements Runnable {
 	 *  method is called.
 	 */
 	public void run() {
-		long t0 = System.nanoTime();
-		long now = 0;
-		long next = 1000000000;
-		long stopTime = next + runLength;
-
 		int sleeptime; // time to sleep when nothing to do
 		if (delta > 0 && delta < 1000000) sleeptime = (int) delta;
 		else sleeptime = 999999;
 
-		String msg; inCount = outCount = 0;
+		begin();
 		int idleCount = 0;
-		while (!quit) {
-			now = System.nanoTime() - t0;
-			if (rdt.incoming()) {
-				msg = rdt.receive();
-				if (!msg.equals("testing " + inCount)) {
-                                        System.out.println("got: " + msg
-						+ "when expecting "
-                                                + "testing " + inCount);
-                                        System.exit(1);
-				}
-                                inCount++;
-				idleCount = 0;
-			} else if (now > next && now < stopTime &&
-			     	   rdt.ready() && delta > 0) {
-				// send an outgoing payload
-				msg = "testing " + outCount;
-				rdt.send(msg);
-				outCount++; next += delta;
-				idleCount = 0;
-			} else {
-				idleCount++;
-			}
+		while (!quit || rdt.incoming()) {
+			if (work()) idleCount = 0;
+			else idleCount++;
 			if (idleCount >= 10) {
 				try {
 					Thread.sleep(0L,sleeptime);
@@ -108,10 +128,106 @@ public class SrcSnk implements Runnable {
 				idleCount = 0;
 			}
 		}
+		report();
+	}
+
+	/** Start the clock: the first payload is sent a second from now,
+	 *  and the last before runLength has passed since then.
+	 */
+	void begin() {
+		t0 = clock.nanoTime();
+		next = 1000000000;
+		stopTime = next + runLength;
+		inCount = outCount = nextIn = 0;
+	}
+
+	/** Receive an incoming payload, or else send an outgoing one
+	 *  if one is due and the Rdt is ready for it.
+	 *  @return true if there was something to do
+	 */
+	boolean work() {
+		long now = clock.nanoTime() - t0;
+		if (now >= stopTime) sent = true;
+		if (rdt.incoming()) {
+			int len = rdt.receive(msg, 0);
+			// payloads that expired may be missing
+			int n = (lifetime > 0 ? Math.max(number(msg, len), nextIn)
+					      : nextIn);
+			int expLen = payload(expected, n);
+			if (!Arrays.equals(msg, 0, len,
+					   expected, 0, expLen)) {
+				System.out.println("got: "
+					+ new String(msg, 0, len)
+					+ "when expecting "
+					+ "testing " + nextIn
+					+ (lifetime > 0 ? " or later" : ""));
+				System.exit(1);
+			}
+			nextIn = n + 1; inCount++;
+			return true;
+		} else if (now > next && now < stopTime &&
+			   rdt.ready() && delta > 0) {
+			// send an outgoing payload
+			rdt.send(msg, 0, payload(msg, outCount), lifetime);
+			outCount++; next += delta;
+			return true;
+		}
+		return false;
+	}
+
+	/** Get the time (on the clock) at which work() next has a
+	 *  payload to send, or else at which the last has been sent;
+	 *  a payload that is due waits until the Rdt is ready, which
+	 *  only the Rdt's own work can change.
+	 *  @return the time, or Long.MAX_VALUE if all has been sent
+	 */
+	long nextWork() {
+		if (sent) return Long.MAX_VALUE;
+		long now = clock.nanoTime() - t0;
+		if (delta > 0 && next < now && rdt.ready()) return t0 + now;
+		if (delta > 0 && next >= now)
+			return t0 + Math.min(next + 1, stopTime);
+		return t0 + stopTime;
+	}
+
+	/** Print a short status report. */
+	void report() {
 		System.out.println("  SrcSnk: sent " + outCount
 					+ ", received " + inCount);
 		System.out.println("          runLength "
 					+ (((double) runLength)/1000000000));
 	}
+
+	private static final byte[] PREFIX = { 't','e','s','t','i','n','g',' ' };
+
+	/** Write the payload "testing n" into a buffer.
+	 *  @param buf is the buffer
+	 *  @param n is the payload's sequence number
+	 *  @return the length of the payload
+	 */
+	static int payload(byte[] buf, int n) {
+		System.arraycopy(PREFIX, 0, buf, 0, PREFIX.length);
+		int len = PREFIX.length + 1;
+		for (int x = n; x >= 10; x /= 10) len++;
+		for (int i = len; i > PREFIX.length; n /= 10)
+			buf[--i] = (byte) ('0' + n % 10);
+		return len;
+	}
+
+	/** Get the sequence number of a payload "testing n".
+	 *  @return n, or -1 if the payload does not have that form
+	 */
+	static int number(byte[] buf, int len) {
+		if (len <= PREFIX.length || len > PREFIX.length + 9
+		    || !Arrays.equals(buf, 0, PREFIX.length,
+				      PREFIX, 0, PREFIX.length))
+			return -1;
+		int n = 0;
+		for (int i = PREFIX.length; i < len; i++) {
+			if (buf[i] < '0' || buf[i] > '9') return -1;
+			n = 10 * n + (buf[i] - '0');
+		}
+		return n;
+	}
 }
 
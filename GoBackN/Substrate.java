@@ -3,14 +3,16 @@ import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
 
-public class Substrate {
+public class Substrate implements Link {
 	private DatagramSocket sock;
 	private InetSocketAddress peerAdr;
-	private double discProb;
+	private Netem netem;		// impairments applied to packets sent
 	private boolean debug;
 
 	private Sender sndr;
 	private Receiver rcvr;
+	private PacketPool pool;	// packets shared with the Rdt
+	private Wakeup wakeup;		// for the Rdt using the substrate
 	
 	/** Initialize a new Substrate object.
 	 *  @param myIp is the IP address to bind to the socket
@@ -18,7 +20,8 @@ public class Substrate {
 	 *  @param peerAdr is the IP address/port pair for the peer host
 	 *  (may be null, if this object is being used in a server)
 	 *  @param discProb is a discard probability used to randomly discard
-	 *  packets received from the Rdt object
+	 *  packets received from the Rdt object; further impairments can
+	 *  be added with impairments()
 	 *  @param debug is a flag; if it is 1, each packet sent and received
 	 *  is printed out
 	 */
@@ -26,8 +29,10 @@ public class Substrate {
 		  double discProb, boolean debug) {
 		// initialize instance variables
 		this.peerAdr = peerAdr;
-		this.discProb = discProb;
 		this.debug = debug;
+		netem = new Netem(new Random());
+		if (discProb > 0)
+			netem.add(new Netem.Loss(discProb, netem.random()));
 
 		// open and configure socket with timeout
 		sock = null;
@@ -40,20 +45,75 @@ public class Substrate {
 			System.exit(1);
 		}
 
-		sndr = new Sender(sock,peerAdr,discProb,debug);
-		rcvr = new Receiver(sock,peerAdr,sndr,debug);
+		pool = new PacketPool(8192);
+		sndr = new Sender(sock,peerAdr,netem,debug);
+		rcvr = new Receiver(sock,peerAdr,sndr,pool,debug);
+		wakeup = new Wakeup();
+		sndr.setWakeup(wakeup); rcvr.setWakeup(wakeup);
 	}
 
+	/** Get the wakeup for a thread to be woken when packets arrive
+	 *  or space becomes available for sending.
+	 *  @return a wakeup signalled after every arrival and departure
+	 */
+	public Wakeup wakeup() { return wakeup; }
+
+	/** Get the pool that received packets are taken from.
+	 *  Packets to be sent should be taken from it too, so that
+	 *  they are reused once released.
+	 */
+	public PacketPool getPool() { return pool; }
+
+	/** Get the port number bound to the socket. */
+	public int getLocalPort() { return sock.getLocalPort(); }
+
+	/** Get the pipeline of impairments that packets sent go through.
+	 *  Stages may be added to it before the Substrate is started.
+	 */
+	public Netem impairments() { return netem; }
+
 	/** Start Substrate running. */
 	public void start() { sndr.start(); rcvr.start(); }
 
 	/** Wait for Substrate to stop. */
 	public void join() throws Exception { sndr.join(); rcvr.join(); }
 
+	/** Stop the Substrate, once the packets already queued have been
+	 *  sent, and wait for its threads to quit. The socket is closed,
+	 *  so the receive thread need not wait for its timeout.
+	 */
+	public void stop() throws Exception {
+		sndr.stop(); sndr.join();
+		rcvr.stop(); sock.close(); rcvr.join();
+	}
+
+	public Clock clock() { return Clock.SYSTEM; }
+
+	public Random random() { return ThreadLocalRandom.current(); }
+
+	/** Test if the Substrate can still send packets.
+	 *  @return false once the Substrate has stopped sending
+	 */
+	public boolean isAlive() { return sndr.isAlive(); }
+
+	/** Test if this end opens the connection: a client, which knows
+	 *  its peer from the start, does.
+	 */
+	public boolean initiator() { return peerAdr != null; }
+
+	/** Test if FINs are answered once the Rdt has finished; they are
+	 *  not, since the application stops the substrate then.
+	 */
+	public boolean answersFin() { return false; }
+
 	/** Send a packet.
+	 *  The send side and the receive side of the substrate are each
+	 *  meant for one thread (the same one, or not).
+	 *  The substrate keeps its own reference to p until it has been
+	 *  sent, so the caller may release p at any time.
 	 *  @param p is a packet to be sent
 	 */
-	public void send(Packet p) { sndr.send(p); }
+	public void send(Packet p) { p.retain(); sndr.send(p); }
 		
 	/** Test if substrate is ready to send more packets.
 	 *  @return true if substrate is ready
@@ -61,9 +121,18 @@ public class Substrate {
 	public boolean ready() { return sndr.ready(); }
 
 	/** Retrieve the next packet from the substrate.
-	 *  @return the next incoming packet
+	 *  @return the next incoming packet, which the caller must
+	 *  release when done with it, or null if there is none
 	 */
 	public Packet receive() { return rcvr.receive(); }
+
+	/** Retrieve all waiting packets from the substrate, up to the
+	 *  length of an array.
+	 *  @param dst is the array to put them in; the caller must
+	 *  release each packet when done with it
+	 *  @return the number of packets retrieved
+	 */
+	public int receive(Packet[] dst) { return rcvr.receive(dst); }
 	
 	/** Test for the presence of incoming packets.
 	 *  @return true if there are packets available to be received.
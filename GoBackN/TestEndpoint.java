@@ -0,0 +1,157 @@
+/** Test many Rdt connections over one Endpoint.
+ *  usage: TestEndpoint myIp myPort wSize timeout [ sr ] [ loops=n ]
+ *  		sessions discProb delta runLength [ peerIp peerPort ]
+ *
+ *  A pair of TestEndpoint processes can be used to test the Endpoint
+ *  class. One is used as a server, the other as a client; the server
+ *  should be started first. The client opens sessions connections
+ *  to the server, and sends payloads on each of them; the server
+ *  accepts the connections and checks that the payloads of each
+ *  arrive in order. A single application thread drives all of the
+ *  connections at each end. Once it has sent its payloads, the
+ *  client closes its connections, and the server closes each one
+ *  as soon as the client has closed it.
+ *
+ *  myIp	is the IP address to be bound to this program's socket
+ *  myPort	is the port number to be bound to this program's socket;
+ *  		when starting a client, this can be set to zero
+ *  wSize	is the window size to be used by the protocol (in packets)
+ *  timeout	is the initial time that the protocol waits before
+ *  		re-sending a packet (in seconds)
+ *  sr		if the sr argument is present, the protocol uses selective
+ *  		repeat instead of go-back-N, if the peer does too
+ *  loops	is the number of event loops (default: one per processor)
+ *  sessions	is the number of connections the client opens (the server
+ *  		ignores it)
+ *  discProb	is the probability that a packet sent gets discarded
+ *  delta	is the time between payloads sent on each connection
+ *  		(in seconds)
+ *  runLength	is the time the client sends payloads for (in seconds);
+ *  		the server runs until every connection has been closed
+ *  peerIp	is the IP address of the peer host - only required for client
+ *  peerPort	is the port number of the peer host - only required for client
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+public class TestEndpoint {
+	/** Per-connection state of the test. */
+	private static class Session {
+		Rdt rdt;
+		int inCount = 0;	// payloads received
+		int outCount = 0;	// payloads sent
+		long next = 0;		// time to send the next payload
+		boolean closed = false;	// true once closed by the test
+		Session(Rdt rdt) { this.rdt = rdt; }
+	}
+
+	public static void main(String[] args) throws Exception {
+		// process command line arguments
+		if (args.length < 8)  {
+			System.out.println("usage: TestEndpoint myIp myPort " +
+				"wSize timeout [ sr ] [ loops=n ] sessions " +
+				"discProb delta runLength [ peerIp peerPort ]");
+			System.exit(1);
+		}
+		InetAddress myIp = InetAddress.getByName(args[0]);
+		int myPort = Integer.parseInt(args[1]);
+		int wSize = Integer.parseInt(args[2]);
+		double timeout = Double.parseDouble(args[3]);
+
+		int nextArg = 4;
+		boolean selRepeat = false;
+		if (args[nextArg].equals("sr")) {
+			selRepeat = true; nextArg++;
+		}
+		int loopCount = Runtime.getRuntime().availableProcessors();
+		if (args[nextArg].startsWith("loops=")) {
+			loopCount = Integer.parseInt(args[nextArg].substring(6));
+			nextArg++;
+		}
+		int sessions = Integer.parseInt(args[nextArg++]);
+		double discProb = Double.parseDouble(args[nextArg++]);
+		long delta = (long) (Double.parseDouble(args[nextArg++]) * 1e9);
+		long runLength = (long) (Double.parseDouble(args[nextArg++]) * 1e9);
+		InetSocketAddress peerAdr = null;
+		if (args.length > nextArg+1)
+			peerAdr = new InetSocketAddress(args[nextArg],
+					Integer.parseInt(args[nextArg+1]));
+
+		Endpoint ep = new Endpoint(myIp, myPort, loopCount, wSize,
+					   timeout, selRepeat, discProb);
+		ep.start();
+		ArrayList<Session> ss = new ArrayList<Session>();
+		if (peerAdr != null) {
+			// spread the sessions' payloads over each interval
+			for (int i = 0; i < sessions; i++) {
+				Session s = new Session(ep.connect(peerAdr));
+				s.next = delta * i / sessions;
+				ss.add(s);
+			}
+		}
+
+		byte[] msg = new byte[Packet.MAX_PAYLOAD];
+		byte[] expected = new byte[Packet.MAX_PAYLOAD];
+		long t0 = System.nanoTime();
+		long maxOpen = 0, closed = 0;
+		long inTotal = 0, outTotal = 0;
+		while (true) {
+			long now = System.nanoTime() - t0;
+			boolean busy = false;
+			while (ep.connecting()) {
+				ss.add(new Session(ep.accept()));
+				maxOpen = Math.max(maxOpen, ss.size());
+			}
+			for (Session s : ss) {
+				while (s.rdt.incoming()) {
+					int len = s.rdt.receive(msg, 0);
+					int expLen = SrcSnk.payload(expected,
+								    s.inCount);
+					if (!Arrays.equals(msg, 0, len,
+							   expected, 0, expLen)) {
+						System.out.println("got: "
+							+ new String(msg, 0, len)
+							+ " when expecting "
+							+ "testing " + s.inCount);
+						System.exit(1);
+					}
+					s.inCount++; inTotal++;
+					busy = true;
+				}
+				// the client closes its connections once it is
+				// done sending, the server once the client has
+				if (!s.closed && (peerAdr != null ? now >= runLength
+							       : s.rdt.eof())) {
+					s.rdt.close(); s.closed = true;
+					closed++; busy = true;
+				}
+				if (peerAdr != null && now < runLength
+				    && now >= s.next && s.rdt.ready()) {
+					s.rdt.send(msg, 0,
+						   SrcSnk.payload(msg, s.outCount));
+					s.outCount++; outTotal++;
+					s.next = now + delta;
+					busy = true;
+				}
+			}
+			if (ss.size() > 0 && closed == ss.size()) break;
+			if (!busy) Thread.sleep(1);
+		}
+		maxOpen = Math.max(maxOpen, ss.size());
+		// wait for every connection to be closed at both ends
+		for (Session s : ss) s.rdt.stop();
+		double secs = (System.nanoTime() - t0) / 1e9;
+		ep.close();
+		System.out.println("TestEndpoint: " + maxOpen + " connections, "
+				   + loopCount + " event loops");
+		System.out.println("          sent " + outTotal
+				   + " payloads, received " + inTotal);
+		System.out.println("          packets sent " + ep.sendCount()
+				   + ", discarded " + ep.discCount()
+				   + ", received " + ep.rcvCount()
+				   + ", dropped " + ep.dropCount());
+		System.out.printf("          runLength %.3f\n", secs);
+	}
+}
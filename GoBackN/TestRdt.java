@@ -1,6 +1,7 @@
 /** Test reliable data transport protocol.
- *  usage: TestRdt myIp myPort wSize timeout [ debug ]
- *  		[ discProb delta runLength ] [ peerIp peerPort  ]
+ *  usage: TestRdt myIp myPort wSize timeout [ debug ] [ sr ] [ sack ]
+ *  		[ fec[=k] ] [ pace ] [ cwnd ] [ batch[=delay] ]
+ *  		[ delack[=n[:delay]] ] [ netem=spec ] [ discProb delta runLength ] [ peerIp peerPort  ]
  *  
  *  A pair of TestRdt processes can be used to test the Rdt class.
  *  One is used as a server, the other as a client. The server should
@@ -10,11 +11,35 @@
  *  myPort	is the port number to be bound to this program's socket;
  *  		when starting a client, this can be set to zero
  *  wSize	is the window size to be used by the protocol (in packets);
- *	        should be the same at both ends
+ *	        the smaller of the two ends' sizes is used
  *  timeout	is the time that the protocol waits before re-sending a packet
  *		(expressed as a floating point value in seconds)
  *  debug	if the debug argument is present and equal to the string
  *  		"debug", the program prints every packet sent or received
+ *  sr		if the sr argument is present, the protocol uses selective
+ *  		repeat instead of go-back-N, if the peer does too
+ *  sack	if the sack argument is present, go-back-N acks carry
+ *  		selective ack blocks, if the peer asks for them too
+ *  fec		if the fec argument is present, every k data packets
+ *  		(default 8 at first, then adapting to the loss) are followed
+ *  		by a parity packet, if the peer asks for them too (see Fec)
+ *  pace	if the pace argument is present, data packets are spread
+ *  		out at about the window per round-trip time (see Pacer)
+ *  cwnd	if the cwnd argument is present, every change of the
+ *  		congestion window is written to the file cwnd.<port>,
+ *  		where port is the port bound to this program's socket;
+ *  		with pace, every change of the pacing rate is written to
+ *  		the file pace.<port> too
+ *  batch	if the batch argument is present, messages are coalesced
+ *  		into packets of up to 1400 bytes; a message is held for
+ *  		at most delay seconds (default 0.001) waiting for others
+ *  delack	if the delack argument is present, packets that arrive in
+ *  		order are acked together, every n packets (default 2) or
+ *  		after delay seconds (default 0.002), whichever is sooner
+ *  netem	if the netem argument is present, the packets this process
+ *  		sends go through the impairments in spec, after any
+ *  		discards; see Netem for its form, for example
+ *  		netem=ge:0.01:0.3,delay:0.01:0.002,rate:1250000:15000
  *  discProb	is the probability that a generated packet gets discarded,
  *  		allowing us to exercise the protocol's ability to recover;
  *  		default value is 0
@@ -23,7 +48,9 @@
  *  		if zero, no packets are sent; default is 0
  *  runLength	is the duration of the run (expressed as a floating point value
  *  		n seconds); if it is zero, the process runs until it is killed;
- *  		default is zero
+ *  		default is zero; otherwise, once its payloads are sent, the
+ *  		process closes the connection, and exits as soon as the peer
+ *  		has closed its end too
  *  peerIp	is the IP address of the peer host - only required for client
  *  peerPort	is the IP address of the peer host - only required for client
  */
@@ -38,7 +65,10 @@ public class TestRdt {
 		// process command line arguments
 		if (args.length < 5)  {
 			System.out.println("usage: TestRdt myIp myPort " +
-				"wSize timeout [ debug ] " +
+				"wSize timeout [ debug ] [ sr ] [ sack ] [ fec[=k] ] " +
+				"[ pace ] [ cwnd ] " +
+				"[ batch[=delay] ] [ delack[=n[:delay]] ] " +
+				"[ netem=spec ] " +
 				"[ discProb delta runLength ] " +
 				"[ peerIp peerPort ]");
 			System.exit(1);
@@ -52,6 +82,53 @@ public class TestRdt {
 		if (args.length > nextArg && args[nextArg].equals("debug")) {
 			debug = true; nextArg++;
 		}
+		boolean selRepeat = false;
+		if (args.length > nextArg && args[nextArg].equals("sr")) {
+			selRepeat = true; nextArg++;
+		}
+		boolean sack = false;
+		if (args.length > nextArg && args[nextArg].equals("sack")) {
+			sack = true; nextArg++;
+		}
+		int fecGroup = 0;
+		if (args.length > nextArg && args[nextArg].startsWith("fec")) {
+			fecGroup = 8;
+			if (args[nextArg].startsWith("fec="))
+				fecGroup = Integer.parseInt(args[nextArg].substring(4));
+			nextArg++;
+		}
+		boolean pace = false;
+		if (args.length > nextArg && args[nextArg].equals("pace")) {
+			pace = true; nextArg++;
+		}
+		boolean cwndTrace = false;
+		if (args.length > nextArg && args[nextArg].equals("cwnd")) {
+			cwndTrace = true; nextArg++;
+		}
+		double flushDelay = -1;
+		if (args.length > nextArg && args[nextArg].startsWith("batch")) {
+			flushDelay = 0.001;
+			if (args[nextArg].startsWith("batch="))
+				flushDelay = Double.parseDouble(
+						args[nextArg].substring(6));
+			nextArg++;
+		}
+		int ackEvery = 1; double ackDelay = 0;
+		if (args.length > nextArg && args[nextArg].startsWith("delack")) {
+			ackEvery = 2; ackDelay = 0.002;
+			if (args[nextArg].startsWith("delack=")) {
+				String[] v = args[nextArg].substring(7).split(":");
+				ackEvery = Integer.parseInt(v[0]);
+				if (v.length > 1)
+					ackDelay = Double.parseDouble(v[1]);
+			}
+			nextArg++;
+		}
+		String netemSpec = null;
+		if (args.length > nextArg && args[nextArg].startsWith("netem=")) {
+			netemSpec = args[nextArg].substring(6);
+			nextArg++;
+		}
 		double discProb = 0;
 		if (args.length > nextArg) 
 			discProb = Double.parseDouble(args[nextArg++]);
@@ -71,16 +148,39 @@ public class TestRdt {
 			// instantiate components and start their threads
 			Substrate sub = new Substrate(myIp,myPort,peerAdr,
 						      discProb,debug);
+			if (netemSpec != null)
+				sub.impairments().parse(netemSpec);
 			sub.start();
-			Rdt rdt = new Rdt(wSize,timeout,sub);
+			Rdt rdt = new Rdt(wSize,timeout,sub,selRepeat);
+			rdt.setSack(sack);
+			rdt.setFec(fecGroup);
+			rdt.setPacing(pace);
+			rdt.setCoalescing(flushDelay);
+			rdt.setDelayedAcks(ackEvery,ackDelay);
+			PrintStream trace = null, paceTrace = null;
+			if (cwndTrace) {
+				trace = new PrintStream(new BufferedOutputStream(
+					new FileOutputStream("cwnd." +
+							     sub.getLocalPort())));
+				rdt.setCwndTrace(trace);
+			}
+			if (cwndTrace && pace) {
+				paceTrace = new PrintStream(new BufferedOutputStream(
+					new FileOutputStream("pace." +
+							     sub.getLocalPort())));
+				rdt.setPacingTrace(paceTrace);
+			}
 			rdt.start();
-			// delay sending of packets by server, to give client
-			// a chance to send the first packet
-			if (peerAdr == null) Thread.sleep(2000);
 			SrcSnk ss = new SrcSnk(delta,runLength,rdt);
 			ss.start();
-			// wait for substrate to quit, then stop others
-			sub.join(); rdt.stop(); ss.stop();
+			if (runLength == 0) sub.join(); // run until killed
+			// once the last payload is sent, close the connection,
+			// which waits for the peer to close its end, then stop
+			// the substrate and the sink
+			ss.awaitSent(); rdt.stop(); sub.stop();
+			ss.stop(); ss.join();
+			if (trace != null) trace.close();
+			if (paceTrace != null) paceTrace.close();
 		} catch(Exception e) {
 			System.out.println("TestRdt: exception " + e);
 			System.exit(1);
@@ -0,0 +1,159 @@
+/** Test the Rdt class in a simulation.
+ *  usage: TestSim wSize timeout [ sr ] [ sack ] [ fec[=k] ] [ pace ]
+ *  		[ batch[=delay] ] [ delack[=n[:delay]] ] [ lifetime=s ]
+ *  		[ seed=n ] [ netem=spec ] discProb delta runLength
+ *
+ *  Runs a client and a server Rdt, each with a SrcSnk, over a pair of
+ *  simulated substrates, in virtual time (see Simulator), as a pair of
+ *  TestRdt processes would over real sockets. Both ends send payloads
+ *  for runLength seconds of virtual time, then close the connection,
+ *  and the simulation ends once both ends have finished. The reports
+ *  of both ends are printed, then the virtual time the run lasted, and
+ *  the processor time it took. Runs with the same arguments and seed
+ *  are the same every time.
+ *
+ *  wSize, timeout, sr, sack, fec, pace, batch, delack, delta and runLength
+ *  are as for TestRdt.
+ *  lifetime	is the lifetime of every payload in seconds (see
+ *  		Rdt.send()), after which it may be abandoned; default 0,
+ *  		for ever. Payloads may then go missing, but those that
+ *  		arrive must still be in order. For instance, in
+ *  		TestSim 16 0.1 sack lifetime=0.01 seed=1
+ *  			netem=ge:0.01:0.1,delay:0.005 0 0.0002 2
+ *  		bursts of loss leave the receiver many windows behind the
+ *  		packets the sender abandons, often in SACK recovery.
+ *  seed	is the seed of the simulation's random number generator;
+ *  		default 1
+ *  netem	is the impairments (see Netem) that the packets sent at
+ *  		each end go through; default delay:0.01, for a round trip
+ *  		time of 20 ms
+ *  discProb	is the probability that a packet sent gets discarded,
+ *  		before the impairments in netem
+ */
+
+import java.lang.management.*;
+
+public class TestSim {
+	public static void main(String[] args) throws Exception {
+		// process command line arguments
+		if (args.length < 5)  {
+			System.out.println("usage: TestSim wSize timeout [ sr ] [ sack ] [ fec[=k] ] [ pace ] " +
+				"[ batch[=delay] ] [ delack[=n[:delay]] ] " +
+				"[ lifetime=s ] [ seed=n ] [ netem=spec ] discProb delta runLength");
+			System.exit(1);
+		}
+		int wSize = Integer.parseInt(args[0]);
+		double timeout = Double.parseDouble(args[1]);
+
+		int nextArg = 2;
+		boolean selRepeat = false;
+		if (args.length > nextArg && args[nextArg].equals("sr")) {
+			selRepeat = true; nextArg++;
+		}
+		boolean sack = false;
+		if (args.length > nextArg && args[nextArg].equals("sack")) {
+			sack = true; nextArg++;
+		}
+		int fecGroup = 0;
+		if (args.length > nextArg && args[nextArg].startsWith("fec")) {
+			fecGroup = 8;
+			if (args[nextArg].startsWith("fec="))
+				fecGroup = Integer.parseInt(args[nextArg].substring(4));
+			nextArg++;
+		}
+		boolean pace = false;
+		if (args.length > nextArg && args[nextArg].equals("pace")) {
+			pace = true; nextArg++;
+		}
+		double flushDelay = -1;
+		if (args.length > nextArg && args[nextArg].startsWith("batch")) {
+			flushDelay = 0.001;
+			if (args[nextArg].startsWith("batch="))
+				flushDelay = Double.parseDouble(
+						args[nextArg].substring(6));
+			nextArg++;
+		}
+		int ackEvery = 1; double ackDelay = 0;
+		if (args.length > nextArg && args[nextArg].startsWith("delack")) {
+			ackEvery = 2; ackDelay = 0.002;
+			if (args[nextArg].startsWith("delack=")) {
+				String[] v = args[nextArg].substring(7).split(":");
+				ackEvery = Integer.parseInt(v[0]);
+				if (v.length > 1)
+					ackDelay = Double.parseDouble(v[1]);
+			}
+			nextArg++;
+		}
+		double lifetime = 0;
+		if (args.length > nextArg && args[nextArg].startsWith("lifetime=")) {
+			lifetime = Double.parseDouble(args[nextArg].substring(9));
+			nextArg++;
+		}
+		long seed = 1;
+		if (args.length > nextArg && args[nextArg].startsWith("seed=")) {
+			seed = Long.parseLong(args[nextArg].substring(5));
+			nextArg++;
+		}
+		String netemSpec = "delay:0.01";
+		if (args.length > nextArg && args[nextArg].startsWith("netem=")) {
+			netemSpec = args[nextArg].substring(6);
+			nextArg++;
+		}
+		if (args.length < nextArg + 3) {
+			System.out.println("TestSim: discProb, delta and "
+					   + "runLength are required");
+			System.exit(1);
+		}
+		double discProb = Double.parseDouble(args[nextArg++]);
+		double delta = Double.parseDouble(args[nextArg++]);
+		double runLength = Double.parseDouble(args[nextArg++]);
+
+		Simulator sim = new Simulator(seed);
+		SimSubstrate[] subs = { new SimSubstrate(sim, true),
+					new SimSubstrate(sim, false) };
+		SimSubstrate.connect(subs[0], subs[1]);
+		Rdt[] rdts = new Rdt[2];
+		SrcSnk[] apps = new SrcSnk[2];
+		for (int i = 0; i < 2; i++) {
+			Netem netem = subs[i].impairments();
+			if (discProb > 0)
+				netem.add(new Netem.Loss(discProb, netem.random()));
+			try {
+				netem.parse(netemSpec);
+			} catch(IllegalArgumentException e) {
+				System.out.println("TestSim: " + e.getMessage());
+				System.exit(1);
+			}
+			rdts[i] = new Rdt(wSize, timeout, subs[i], selRepeat);
+			rdts[i].setSack(sack);
+			rdts[i].setFec(fecGroup);
+			rdts[i].setPacing(pace);
+			rdts[i].setCoalescing(flushDelay);
+			rdts[i].setDelayedAcks(ackEvery, ackDelay);
+			apps[i] = new SrcSnk(delta, runLength, rdts[i], sim);
+			apps[i].setLifetime(lifetime);
+		}
+
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		long cpu0 = mx.getCurrentThreadCpuTime();
+		sim.run(rdts, apps);
+		double cpu = (mx.getCurrentThreadCpuTime() - cpu0) / 1e9;
+
+		for (int i = 0; i < 2; i++) {
+			System.out.println(i == 0 ? "client:" : "server:");
+			rdts[i].report();
+			System.out.println("   Netem: " + subs[i].impairments()
+				+ "; lost " + subs[i].impairments().lost()
+				+ ", duplicated "
+				+ subs[i].impairments().duplicates());
+			System.out.println("  SimSub: sent " + subs[i].sendCount()
+				+ " packets, received " + subs[i].rcvCount()
+				+ ", discarded " + subs[i].dropCount());
+			apps[i].report();
+		}
+		System.out.printf("TestSim: seed %d, %.3f s simulated in " +
+			"%.3f s of cpu, %d packet arrivals, %d steps\n",
+			seed, sim.nanoTime() / 1e9, cpu, sim.eventCount(),
+			sim.stepCount());
+	}
+}
@@ -0,0 +1,124 @@
+/** Hashed timing wheel.
+ *
+ *  Holds items until a given time. Time is divided into ticks, and
+ *  the wheel has a ring of slots, one per tick; an item is kept in
+ *  the slot of the tick it is due in, along with the number of turns
+ *  of the wheel still to go before then, so times any distance ahead
+ *  can be held in a wheel of any size. Adding an item takes constant
+ *  time, and so does taking each item that has come due; only the
+ *  slots of the ticks that have passed are looked at.
+ *
+ *  Items due in the same slot are taken in the order they were added,
+ *  so items added in order of their due times also come out in that
+ *  order. An item is kept in the slot of the first tick that starts
+ *  at or after its due time, so none comes out before its time, and
+ *  none more than a tick after it. Times are in ns, from any fixed
+ *  origin, as long as they are not negative.
+ *
+ *  The entries that hold the items are reused, so once the wheel has
+ *  grown to the most items it ever holds, it allocates nothing. A
+ *  wheel must only be used by one thread.
+ */
+public class TimingWheel<E> {
+	/** Entry for an item in a slot's list. */
+	private static class Entry<E> {
+		E item; long turns; Entry<E> next;
+	}
+
+	private long tick;		// length of a tick in ns
+	private Entry<E>[] head, tail;	// list of entries in each slot
+	private int mask;		// number of slots - 1
+	private long cur;		// tick taken from last (see expire())
+	private int size = 0;		// number of items held
+	private Entry<E> free = null;	// entries for reuse
+
+	/** Initialize a new, empty wheel.
+	 *  @param tick is the length of a tick, in ns
+	 *  @param slots is the number of slots, which is rounded up to a
+	 *  power of two; the wheel turns once every slots ticks
+	 *  @param now is the current time, in ns
+	 */
+	@SuppressWarnings("unchecked")
+	TimingWheel(long tick, int slots, long now) {
+		this.tick = Math.max(tick, 1);
+		int n = Integer.highestOneBit(Math.max(slots - 1, 1)) << 1;
+		head = (Entry<E>[]) new Entry<?>[n];
+		tail = (Entry<E>[]) new Entry<?>[n];
+		mask = n - 1;
+		cur = now / this.tick;
+	}
+
+	/** Get the number of items held. */
+	public int size() { return size; }
+
+	/** Add an item.
+	 *  @param e is the item
+	 *  @param due is the time it is due, in ns; an item due before
+	 *  the last tick taken comes out with the next one
+	 */
+	public void add(E e, long due) {
+		long t = Math.max((due + tick - 1) / tick, cur + 1);
+		Entry<E> x = free;
+		if (x != null) free = x.next;
+		else x = new Entry<E>();
+		x.item = e; x.turns = (t - cur - 1) / (mask + 1); x.next = null;
+		int i = (int) (t & mask);
+		if (head[i] == null) head[i] = x;
+		else tail[i].next = x;
+		tail[i] = x;
+		size++;
+	}
+
+	/** Take the items that have come due, up to the length of an array.
+	 *  @param now is the current time, in ns
+	 *  @param dst is the array to put them in
+	 *  @return the number of items taken; if dst was filled, there
+	 *  may be more
+	 */
+	public int expire(long now, E[] dst) {
+		int n = 0;
+		long last = now / tick;
+		while (cur < last && n < dst.length) {
+			int i = (int) ((cur + 1) & mask);
+			Entry<E> prev = null, x = head[i];
+			while (x != null && n < dst.length) {
+				Entry<E> next = x.next;
+				if (x.turns > 0) {
+					// due on a later turn of the wheel
+					x.turns--; prev = x;
+				} else {
+					dst[n++] = x.item; size--;
+					if (prev == null) head[i] = next;
+					else prev.next = next;
+					if (tail[i] == x) tail[i] = prev;
+					x.item = null; x.next = free; free = x;
+				}
+				x = next;
+			}
+			if (x != null) {
+				// dst is full; undo the turns counted in this
+				// slot, so it is looked at again next time
+				for (Entry<E> y = head[i]; y != x; y = y.next)
+					y.turns++;
+				break;
+			}
+			cur++;
+		}
+		return n;
+	}
+
+	/** Get the earliest time at which an item may come due.
+	 *  @param now is the current time, in ns
+	 *  @return the start of the first tick not yet taken whose slot
+	 *  holds an item, or Long.MAX_VALUE if the wheel is empty; the item
+	 *  may be due on a later turn, in which case the wheel need
+	 *  only be looked at again then
+	 */
+	public long nextDue(long now) {
+		if (size == 0) return Long.MAX_VALUE;
+		for (long t = cur + 1; t <= cur + mask + 1; t++)
+			if (head[(int) (t & mask)] != null)
+				return Math.max(t * tick, now);
+		return now;
+	}
+}
@@ -0,0 +1,43 @@
+/** Wakeup signal for a thread that waits for work.
+ *
+ *  A consumer thread calls clear() before it checks its inputs,
+ *  and await() if it finds nothing to do. Producers call signal()
+ *  after making new work available. The consumer parks in await()
+ *  until it is signalled or a deadline passes.
+ *
+ *  A signal that arrives between clear() and await() is not lost:
+ *  the producer always sets the signalled flag, and only unparks the
+ *  consumer if it is waiting, so signalling an idle consumer is cheap
+ *  and signalling a busy one costs no system call at all.
+ */
+
+import java.util.concurrent.locks.LockSupport;
+
+public class Wakeup {
+	private volatile Thread waiter;		// thread waiting in await()
+	private volatile boolean waiting = false;
+	private volatile boolean signalled = false;
+
+	/** Forget earlier signals; call before checking for work. */
+	public void clear() { signalled = false; }
+
+	/** Wait for a signal.
+	 *  @param deadline is the System.nanoTime() value at which to
+	 *  stop waiting, even if no signal has arrived
+	 */
+	public void await(long deadline) {
+		waiter = Thread.currentThread();
+		waiting = true;
+		if (!signalled) {
+			long delay = deadline - System.nanoTime();
+			if (delay > 0) LockSupport.parkNanos(this, delay);
+		}
+		waiting = false;
+	}
+
+	/** Signal that there is new work for the waiting thread. */
+	public void signal() {
+		signalled = true;
+		if (waiting) LockSupport.unpark(waiter);
+	}
+}
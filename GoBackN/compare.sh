@@ -0,0 +1,46 @@
+#!/bin/sh
+# Compare the goodput of go-back-N and selective repeat across loss rates.
+#
+# usage: compare.sh [ wSize timeout delta runLength [ options ] ]
+#
+# For each discard probability, runs a TestRdt server and client on the
+# loopback interface, once with go-back-N and once with selective repeat,
+# and prints one line per run with the number of payloads delivered to
+# each side, the goodput in payloads per second, and the number of data
+# packets and acks the substrates sent (including retransmissions).
+# Any options (such as "batch" or "delack=4") are passed to both
+# TestRdt processes, after the mode.
+
+wSize=${1:-200}
+timeout=${2:-0.02}
+delta=${3:-0.0001}
+runLength=${4:-2}
+opts=$5
+port=31500
+
+dir=`dirname "$0"`
+classes=`mktemp -d`
+javac -d "$classes" "$dir"/*.java || exit 1
+
+echo "mode loss delivered goodput dataPackets acks"
+for loss in 0 0.01 0.05 0.1 0.2; do
+	for mode in gbn sr; do
+		flag=""
+		if [ $mode = sr ]; then flag=sr; fi
+		java -cp "$classes" TestRdt 127.0.0.1 $port $wSize $timeout \
+			$flag $opts $loss $delta $runLength > "$classes/server.out" &
+		sleep 1
+		java -cp "$classes" TestRdt 127.0.0.1 0 $wSize $timeout \
+			$flag $opts $loss $delta $runLength 127.0.0.1 $port \
+			> "$classes/client.out"
+		wait
+		cat "$classes/server.out" "$classes/client.out" | awk \
+		    -v mode=$mode -v loss=$loss -v len=$runLength '
+			/SrcSnk:/ { gsub(",", ""); rcvd += $5 }
+			/Sender:/ { data += $3; acks += $6 }
+			END { printf "%s %s %d %.1f %d %d\n", mode, loss, rcvd,
+				rcvd / len, data, acks }'
+		port=`expr $port + 1`
+	done
+done
+rm -rf "$classes"
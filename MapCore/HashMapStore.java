@@ -0,0 +1,23 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * MapStore that keeps its pairs in a HashMap.
+ */
+public class HashMapStore implements MapStore {
+    private final Map<String, String> map = new HashMap<String, String>();
+
+    public String get(String aKey) { return map.get(aKey); }
+
+    public String put(String aKey, String aValue) { return map.put(aKey, aValue); }
+
+    public String remove(String aKey) { return map.remove(aKey); }
+
+    public void clear() { map.clear(); }
+
+    public int size() { return map.size(); }
+
+    public Iterable<Map.Entry<String, String>> entries() { return map.entrySet(); }
+
+    public MapStore create() { return new HashMapStore(); }
+}
@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.net.Socket;
+
+/*
+ * Closes client connections that have been idle for too long.
+ *
+ * Connections are kept in a hashed timing wheel: an array of slots, each
+ * holding a doubly linked list of the connections whose idle deadline
+ * falls into that slot. A thread advances the wheel by one slot per tick.
+ *
+ * Recording activity on a connection only stores the current time in the
+ * connection's entry, so it costs O(1) and takes no lock. When the wheel
+ * reaches an entry, the entry is either expired, in which case its socket
+ * is closed, or it has seen activity since it was scheduled, in which case
+ * it is moved to the slot of its new deadline. Adding and removing an
+ * entry are O(1) as well.
+ */
+public class IdleReaper implements Runnable {
+    private final long tickNs;      // time covered by one slot
+    private final long timeoutNs;   // idle time after which we close
+    private final Entry[] wheel;    // list heads, one per slot
+    private long curTick;           // index of next tick to process
+    private final long t0 = System.nanoTime();
+    private Thread myThread;
+
+    /** A connection tracked by the wheel. */
+    public static class Entry {
+        private final Socket sock;
+        private volatile long lastActive;   // time of last activity
+        private long rounds;                // full turns left before expiry
+        private int slot = -1;              // slot index, -1 if not queued
+        private Entry prev, next;
+
+        private Entry(Socket aSock, long aNow) { sock = aSock; lastActive = aNow; }
+    }
+
+    /** Initialize a new IdleReaper.
+     *  @param aTimeoutMs is the idle time after which a connection is
+     *  closed
+     *  @param aTickMs is the resolution of the wheel
+     */
+    public IdleReaper(long aTimeoutMs, long aTickMs) {
+        timeoutNs = aTimeoutMs * 1000000L;
+        tickNs = Math.max(aTickMs, 1) * 1000000L;
+        wheel = new Entry[(int) Math.min(1024, timeoutNs / tickNs + 1)];
+    }
+
+    /** Instantiate run() thread and start it running. */
+    public void start() {
+        myThread = new Thread(this); myThread.setDaemon(true); myThread.start();
+    }
+
+    private long now() { return System.nanoTime() - t0; }
+
+    /** Start tracking a connection.
+     *  @param aSock is the connection's socket, which is closed once it
+     *  has been idle for the timeout period
+     *  @return an entry to be passed to touch() and remove()
+     */
+    public synchronized Entry add(Socket aSock) {
+        Entry myEntry = new Entry(aSock, now());
+        schedule(myEntry);
+        return myEntry;
+    }
+
+    /** Record activity on a connection. */
+    public void touch(Entry aEntry) { aEntry.lastActive = now(); }
+
+    /** Stop tracking a connection. */
+    public synchronized void remove(Entry aEntry) { unlink(aEntry); }
+
+    /** Advance the wheel once per tick, closing expired connections. */
+    public void run() {
+        while (true)
+        {
+            long myDelay = (curTick + 1) * tickNs - now();
+            if (myDelay > 0)
+            {
+                try
+                {
+                    Thread.sleep(myDelay / 1000000L, (int) (myDelay % 1000000L));
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+            expire();
+        }
+    }
+
+    /** Process the slot for the current tick. */
+    private synchronized void expire() {
+        int mySlot = (int) (curTick % wheel.length);
+        curTick++;
+        Entry myEntry = wheel[mySlot];
+        while (myEntry != null)
+        {
+            Entry myNext = myEntry.next;
+            if (myEntry.rounds > 0)
+            {
+                myEntry.rounds--;
+            }
+            else
+            {
+                unlink(myEntry);
+                if (now() - myEntry.lastActive >= timeoutNs)
+                {
+                    try { myEntry.sock.close(); } catch (IOException e) { }
+                }
+                else
+                {
+                    schedule(myEntry);
+                }
+            }
+            myEntry = myNext;
+        }
+    }
+
+    /** Insert an entry into the slot of its current deadline. */
+    private void schedule(Entry aEntry) {
+        long myTick = (aEntry.lastActive + timeoutNs) / tickNs;
+        if (myTick < curTick) myTick = curTick;
+        long myTicks = myTick - curTick;
+        aEntry.rounds = myTicks / wheel.length;
+        aEntry.slot = (int) (myTick % wheel.length);
+        aEntry.prev = null;
+        aEntry.next = wheel[aEntry.slot];
+        if (aEntry.next != null) aEntry.next.prev = aEntry;
+        wheel[aEntry.slot] = aEntry;
+    }
+
+    private void unlink(Entry aEntry) {
+        if (aEntry.slot < 0) return;
+        if (aEntry.prev != null) aEntry.prev.next = aEntry.next;
+        else wheel[aEntry.slot] = aEntry.next;
+        if (aEntry.next != null) aEntry.next.prev = aEntry.prev;
+        aEntry.prev = aEntry.next = null;
+        aEntry.slot = -1;
+    }
+}
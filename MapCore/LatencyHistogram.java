@@ -0,0 +1,79 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Histogram of latencies measured in nanoseconds.
+ *
+ * Buckets are log-linear: each power of two is split into 8 equal
+ * sub-buckets, so any recorded value is reported with an error of at
+ * most 12.5%, using a fixed array of 512 counters for the full range
+ * of a long.
+ *
+ * A histogram is meant to be written by a single thread. Counters are
+ * updated with lazySet, which makes recording a plain increment while
+ * still letting other threads read the counts at any time, for
+ * instance to merge them into a summary.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /** Map a value to its bucket index. */
+    private static int bucket(long aValue) {
+        if (aValue < SUB_BUCKETS) return (int) Math.max(aValue, 0);
+        int myExp = 63 - Long.numberOfLeadingZeros(aValue);
+        return myExp * SUB_BUCKETS
+                + (int) ((aValue >>> (myExp - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /** Map a bucket index to the largest value that falls into it. */
+    private static long bucketMax(int aBucket) {
+        if (aBucket < SUB_BUCKETS) return aBucket;
+        int myExp = aBucket / SUB_BUCKETS;
+        long mySub = aBucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + mySub + 1) << (myExp - SUB_BITS)) - 1;
+    }
+
+    /** Record a value; only to be called by the owning thread. */
+    public void record(long aValue) {
+        int myBucket = bucket(aValue);
+        counts.lazySet(myBucket, counts.get(myBucket) + 1);
+    }
+
+    /** Add the counts of another histogram to this one. */
+    public synchronized void add(LatencyHistogram aOther) {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            long myCount = aOther.counts.get(i);
+            if (myCount != 0) counts.addAndGet(i, myCount);
+        }
+    }
+
+    /** Get the number of recorded values. */
+    public long count() {
+        long myCount = 0;
+        for (int i = 0; i < BUCKETS; i++) myCount += counts.get(i);
+        return myCount;
+    }
+
+    /** Get an upper bound on a percentile of the recorded values.
+     *  @param aPercent is the percentile, in [0,100]
+     *  @return the upper end of the bucket containing the percentile,
+     *  or 0 if the histogram is empty
+     */
+    public long percentile(double aPercent) {
+        long myCount = count();
+        if (myCount == 0) return 0;
+        long myRank = (long) Math.ceil(myCount * aPercent / 100);
+        if (myRank < 1) myRank = 1;
+        long mySeen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            mySeen += counts.get(i);
+            if (mySeen >= myRank) return bucketMax(i);
+        }
+        return bucketMax(BUCKETS - 1);
+    }
+}
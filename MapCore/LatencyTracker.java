@@ -0,0 +1,113 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Per-command latency statistics for a server.
+ *
+ * Every thread that records latencies gets its own set of histograms
+ * (one per command) through a ThreadLocal, so recording never contends
+ * with other threads. The per-thread histograms are merged only when a
+ * summary is requested. When a thread is done, retire() folds its
+ * histograms into a shared set, so statistics of closed connections are
+ * kept without keeping their recorders alive.
+ *
+ * Commands that take longer than a threshold are also entered in a
+ * SlowLog.
+ */
+public class LatencyTracker {
+    private final String[] commands;        // names of tracked commands
+    private final LatencyHistogram[] retired;
+    private final List<LatencyHistogram[]> live =
+            new ArrayList<LatencyHistogram[]>();
+    private final ThreadLocal<LatencyHistogram[]> local =
+            new ThreadLocal<LatencyHistogram[]>();
+    private final SlowLog slowLog;
+    private final long slowNs;              // slow log threshold
+
+    /** Initialize a new tracker.
+     *  @param aCommands is the list of command names to be tracked;
+     *  the last one is used for any command not in the list
+     *  @param aSlowLog is the log for slow commands
+     *  @param aSlowNs is the latency above which a command is logged
+     */
+    public LatencyTracker(String[] aCommands, SlowLog aSlowLog, long aSlowNs) {
+        commands = aCommands; slowLog = aSlowLog; slowNs = aSlowNs;
+        retired = newSet();
+    }
+
+    private LatencyHistogram[] newSet() {
+        LatencyHistogram[] mySet = new LatencyHistogram[commands.length];
+        for (int i = 0; i < mySet.length; i++)
+        {
+            mySet[i] = new LatencyHistogram();
+        }
+        return mySet;
+    }
+
+    /** Get the SlowLog that slow commands are entered in. */
+    public SlowLog slowLog() { return slowLog; }
+
+    /** Record the latency of a command.
+     *  @param aCmd is the name of the command
+     *  @param aLine is the full request, for the slow log
+     *  @param aLatencyNs is the time from parsing the request to
+     *  flushing the reply
+     */
+    public void record(String aCmd, String aLine, long aLatencyNs) {
+        LatencyHistogram[] mySet = local.get();
+        if (mySet == null)
+        {
+            mySet = newSet();
+            local.set(mySet);
+            synchronized (live) { live.add(mySet); }
+        }
+        int i = 0;
+        while (i < commands.length - 1 && !commands[i].equals(aCmd)) i++;
+        mySet[i].record(aLatencyNs);
+        if (aLatencyNs >= slowNs) slowLog.add(aLine, aLatencyNs);
+    }
+
+    /** Fold the calling thread's histograms into the retired set. */
+    public void retire() {
+        LatencyHistogram[] mySet = local.get();
+        if (mySet == null) return;
+        local.remove();
+        synchronized (live)
+        {
+            live.remove(mySet);
+            for (int i = 0; i < mySet.length; i++) retired[i].add(mySet[i]);
+        }
+    }
+
+    /** Summarize the latencies recorded by all threads.
+     *  @return a single line with an entry per command that has been
+     *  seen, giving its count and latency percentiles in microseconds;
+     *  entries are separated by "::"
+     */
+    public String summary() {
+        LatencyHistogram[] myMerged = newSet();
+        synchronized (live)
+        {
+            for (int i = 0; i < myMerged.length; i++)
+            {
+                myMerged[i].add(retired[i]);
+                for (LatencyHistogram[] mySet : live) myMerged[i].add(mySet[i]);
+            }
+        }
+        StringBuilder mySb = new StringBuilder();
+        for (int i = 0; i < myMerged.length; i++)
+        {
+            LatencyHistogram myHist = myMerged[i];
+            if (myHist.count() == 0) continue;
+            if (mySb.length() > 0) mySb.append("::");
+            mySb.append(commands[i])
+                .append(" count=").append(myHist.count())
+                .append(" p50=").append(myHist.percentile(50) / 1000)
+                .append("us p99=").append(myHist.percentile(99) / 1000)
+                .append("us p999=").append(myHist.percentile(99.9) / 1000)
+                .append("us max=").append(myHist.percentile(100) / 1000)
+                .append("us");
+        }
+        return mySb.toString();
+    }
+}
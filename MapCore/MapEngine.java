@@ -0,0 +1,504 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Storage-and-command engine shared by the map servers.
+ *
+ * A MapEngine executes the text commands of the map server protocol on
+ * MapStores, independently of the transport the commands arrive on.
+ * A transport (TcpTransport, UdpTransport) reads a request, passes it
+ * to execute() and sends back the reply; several transports may share
+ * one engine, so that the same data can be served over TCP and UDP.
+ *
+ * Commands are ASCII strings with ":" separated fields:
+ *
+ * get:key          replies ok:value, or no match
+ * put:key:value    replies ok for a new key, updated:key otherwise
+ * remove:key       replies ok, or no match
+ * get all          replies key1:value1::key2:value2...
+ * stats            replies ok: followed by per-command latencies
+ * slowlog          replies ok: followed by the slowest recent commands
+ * nsstats          replies ok: followed by the usage of each namespace
+ * nsconfig:ns:maxBytes:opsPerSec
+ *                  sets the memory quota and rate limit of namespace ns
+ *                  (0 means no limit); replies ok, or error:not permitted
+ *                  unless the server allows it (see setRemoteConfig())
+ * promote          makes a replica writable (see ReplicaLink)
+ *
+ * Anything else is answered with error:unrecognizable input:command.
+ *
+ * The get, put, remove and get all commands may be prefixed with a
+ * namespace name and a "/", as in
+ *
+ * shop/put:foo:bar
+ *
+ * Each namespace is an isolated keyspace with its own store, quota,
+ * rate limit and statistics (see Namespace); commands without a prefix
+ * use the default namespace, whose name is empty. Namespaces are created
+ * on first use, with the limits set by setNamespaceDefaults() (the
+ * default namespace starts out unlimited), and their limits are changed
+ * by the server with setNamespaceLimits(). Clients may only change them
+ * with nsconfig if the server trusts them to, since one tenant could
+ * otherwise throttle another. Only well-formed get, get all, put and
+ * remove commands count against the rate limit. A command refused by a
+ * namespace's limits is answered with
+ *
+ * error:rate limit exceeded
+ *
+ * or
+ *
+ * error:quota exceeded
+ *
+ * Commands on a namespace are serialized by the namespace's lock, so
+ * commands on different namespaces run in parallel. When the engine has
+ * a ReplicationLog, every successful put and remove is appended to it
+ * while that lock is held, so the log order matches the order in which
+ * the changes were applied. Replication snapshots and batches take the
+ * write side of a read-write lock that commands hold for reading, so
+ * they see and make consistent changes across all namespaces.
+ */
+public class MapEngine {
+    private static final String GET_OPERATION = "get";
+    private static final String GET_ALL_OPERATION = "get all";
+    private static final String PUT_OPERATION = "put";
+    private static final String REMOVE_OPERATION = "remove";
+    private static final String PROMOTE_OPERATION = "promote";
+    private static final String STATS_OPERATION = "stats";
+    private static final String SLOWLOG_OPERATION = "slowlog";
+    private static final String NSSTATS_OPERATION = "nsstats";
+    private static final String NSCONFIG_OPERATION = "nsconfig";
+    private static final String OK_MSG = "ok:";
+    private static final String OK_MSG_END = "ok";
+    private static final String UPDATE_MSG = "updated:";
+    private static final String NO_MATCH_MSG = "no match";
+    private static final String ERROR_MSG = "error:unrecognizable input:";
+    private static final String READ_ONLY_MSG = "error:read only replica";
+    private static final String RATE_MSG = "error:rate limit exceeded";
+    private static final String QUOTA_MSG = "error:quota exceeded";
+    private static final String NS_LIMIT_MSG = "error:too many namespaces";
+    private static final String NOT_PERMITTED_MSG = "error:not permitted";
+    private static final String COLON = ":";
+    private static final char NS_SEPARATOR = '/';
+    private static final int SLOWLOG_CAPACITY = 128;
+    private static final int MAX_NAMESPACES = 1024;
+
+    private final MapStore store;           // store of default namespace
+    private final LatencyTracker tracker;
+    private final Map<String, Namespace> namespaces =
+            new ConcurrentHashMap<String, Namespace>();
+    private final ReentrantReadWriteLock cutLock =
+            new ReentrantReadWriteLock();
+    private long defaultMaxBytes = 0;       // limits for new namespaces
+    private long defaultOpsPerSec = 0;
+    private volatile boolean remoteConfig = false; // true to allow nsconfig
+    private ReplicationLog log;             // null unless primary
+    private volatile ReplicaLink link;      // null unless replica
+    private final Object promoteLock = new Object();
+
+    /** Initialize a new engine.
+     *  @param aStore is the store holding the pairs of the default
+     *  namespace; other namespaces get stores created by aStore.create()
+     *  @param aSlowNs is the latency at which commands are entered
+     *  in the slow log
+     */
+    public MapEngine(MapStore aStore, long aSlowNs) {
+        store = aStore;
+        tracker = new LatencyTracker(new String[] { GET_OPERATION,
+                GET_ALL_OPERATION, PUT_OPERATION, REMOVE_OPERATION,
+                STATS_OPERATION, SLOWLOG_OPERATION, "other" },
+                new SlowLog(SLOWLOG_CAPACITY), aSlowNs);
+        namespaces.put("", new Namespace("", aStore, 0, 0));
+    }
+
+    /** Make this engine a replication primary.
+     *  @param aLog is the log that puts and removes are appended to
+     */
+    public void setLog(ReplicationLog aLog) { log = aLog; }
+
+    /** Make this engine a read-only replica.
+     *  @param aLink is the link that keeps the engine's store in step
+     *  with the primary
+     */
+    public void setReplicaLink(ReplicaLink aLink) { link = aLink; }
+
+    /** Set the limits given to namespaces when they are created.
+     *  @param aMaxBytes is the memory quota, or 0 for none
+     *  @param aOpsPerSec is the rate limit, or 0 for none
+     */
+    public synchronized void setNamespaceDefaults(long aMaxBytes,
+                                                  long aOpsPerSec) {
+        defaultMaxBytes = aMaxBytes; defaultOpsPerSec = aOpsPerSec;
+    }
+
+    /** Set the limits of a namespace, creating it if necessary.
+     *  @param aName is the name of the namespace, empty for the default
+     *  @param aMaxBytes is the memory quota, or 0 for none
+     *  @param aOpsPerSec is the rate limit, or 0 for none
+     *  @return false if the namespace does not exist and there are too
+     *  many namespaces to create it
+     */
+    public boolean setNamespaceLimits(String aName, long aMaxBytes,
+                                      long aOpsPerSec) {
+        Namespace myNs = namespace(aName);
+        if (myNs == null) return false;
+        myNs.setLimits(aMaxBytes, aOpsPerSec);
+        return true;
+    }
+
+    /** Allow or refuse the nsconfig command. It is refused by default,
+     *  since it lets any client change the limits of any namespace.
+     *  @param aAllowed is true to allow it
+     */
+    public void setRemoteConfig(boolean aAllowed) { remoteConfig = aAllowed; }
+
+    /** Execute a command.
+     *  @param aData is the command, as received from the client
+     *  @return the reply to be sent to the client
+     */
+    public String execute(String aData) {
+        if (aData.equals(STATS_OPERATION)) return OK_MSG + tracker.summary();
+        if (aData.equals(SLOWLOG_OPERATION))
+            return OK_MSG + tracker.slowLog().list();
+        if (aData.equals(NSSTATS_OPERATION)) return OK_MSG + nsStats();
+        if (aData.startsWith(NSCONFIG_OPERATION + COLON)) return configure(aData);
+        if (aData.equals(PROMOTE_OPERATION) && link != null) return promote();
+        int mySlash = prefixEnd(aData);
+        String myName = mySlash < 0 ? "" : aData.substring(0, mySlash);
+        String[] myPayload = aData.substring(mySlash + 1).split(COLON);
+        //only a well-formed data command may create a namespace
+        boolean myValid = wellFormed(myPayload[0], myPayload.length);
+        Namespace myNs = myValid ? namespace(myName) : namespaces.get(myName);
+        if (myNs == null) return myValid ? NS_LIMIT_MSG : ERROR_MSG + aData;
+        cutLock.readLock().lock();
+        try
+        {
+            synchronized (myNs)
+            {
+                return analyzeInput(myNs, myPayload, myValid, aData);
+            }
+        }
+        finally
+        {
+            cutLock.readLock().unlock();
+        }
+    }
+
+    /** Record the latency of a command executed by the calling thread.
+     *  @param aData is the command
+     *  @param aLatencyNs is the time from receiving the command to
+     *  sending its reply
+     */
+    public void record(String aData, long aLatencyNs) {
+        int myStart = prefixEnd(aData) + 1;
+        int myColon = aData.indexOf(COLON, myStart);
+        tracker.record(aData.substring(myStart,
+                                       myColon < 0 ? aData.length() : myColon),
+                       aData, aLatencyNs);
+    }
+
+    /** Fold the latencies recorded by the calling thread into the
+     *  engine's totals; called by a transport thread before it exits.
+     */
+    public void retire() { tracker.retire(); }
+
+    /** Copy all namespaces, for a replication snapshot.
+     *  @param aCopy is a list that a put command is added to for every
+     *  stored pair, with a namespace prefix where needed
+     *  @return the log offset at which the copy was taken
+     */
+    public long snapshot(List<String> aCopy) {
+        cutLock.writeLock().lock();
+        try
+        {
+            for (Namespace myNs : namespaces.values())
+            {
+                String myPrefix = myNs.name.length() == 0 ? ""
+                                  : myNs.name + NS_SEPARATOR;
+                for (Map.Entry<String, String> myPair : myNs.store.entries())
+                {
+                    aCopy.add(myPrefix + PUT_OPERATION + COLON
+                              + myPair.getKey() + COLON + myPair.getValue());
+                }
+            }
+            return log.nextOffset();
+        }
+        finally
+        {
+            cutLock.writeLock().unlock();
+        }
+    }
+
+    /** Replace the contents of all namespaces, from a replication
+     *  snapshot.
+     *  @param aCopy is a list of put commands, as made by snapshot()
+     */
+    public void load(List<String> aCopy) {
+        cutLock.writeLock().lock();
+        try
+        {
+            for (Namespace myNs : namespaces.values())
+            {
+                myNs.store.clear();
+                myNs.bytes = 0;
+            }
+            for (String myEntry : aCopy) apply(myEntry);
+        }
+        finally
+        {
+            cutLock.writeLock().unlock();
+        }
+    }
+
+    /** Apply a batch of replicated put and remove commands atomically.
+     *  The primary has already checked them against its limits, so
+     *  they are applied without checking quotas or rate limits.
+     */
+    public void apply(String[] aEntries) {
+        cutLock.writeLock().lock();
+        try
+        {
+            for (String myEntry : aEntries) apply(myEntry);
+        }
+        finally
+        {
+            cutLock.writeLock().unlock();
+        }
+    }
+
+    //apply a single replicated command; caller holds the write lock
+    private void apply(String aEntry) {
+        int mySlash = prefixEnd(aEntry);
+        Namespace myNs = namespace(mySlash < 0 ? "" : aEntry.substring(0, mySlash));
+        if (myNs == null) return;
+        String[] myPayload = aEntry.substring(mySlash + 1).split(COLON);
+        if (myPayload[0].equals(PUT_OPERATION) && myPayload.length == 3)
+        {
+            put(myNs, myPayload[1], myPayload[2]);
+        }
+        else if (myPayload[0].equals(REMOVE_OPERATION)
+                 && myPayload.length == 2)
+        {
+            remove(myNs, myPayload[1]);
+        }
+    }
+
+    //find the "/" ending a namespace prefix, or return -1 if there is none
+    private static int prefixEnd(String aData) {
+        int mySlash = aData.indexOf(NS_SEPARATOR);
+        if (mySlash <= 0) return -1;
+        int myColon = aData.indexOf(COLON);
+        return myColon < 0 || mySlash < myColon ? mySlash : -1;
+    }
+
+    //find a namespace, creating it if necessary; null if there are too many
+    private Namespace namespace(String aName) {
+        Namespace myNs = namespaces.get(aName);
+        if (myNs != null) return myNs;
+        synchronized (this)
+        {
+            myNs = namespaces.get(aName);
+            if (myNs == null && namespaces.size() < MAX_NAMESPACES)
+            {
+                myNs = new Namespace(aName, store.create(),
+                                     defaultMaxBytes, defaultOpsPerSec);
+                namespaces.put(aName, myNs);
+            }
+        }
+        return myNs;
+    }
+
+    //handle an nsconfig command
+    private String configure(String aData) {
+        if (!remoteConfig) return NOT_PERMITTED_MSG;
+        String[] myPayload = aData.split(COLON, -1);
+        if (myPayload.length != 4) return ERROR_MSG + aData;
+        long myMaxBytes, myOpsPerSec;
+        try
+        {
+            myMaxBytes = Long.parseLong(myPayload[2]);
+            myOpsPerSec = Long.parseLong(myPayload[3]);
+        }
+        catch (NumberFormatException e)
+        {
+            return ERROR_MSG + aData;
+        }
+        if (!setNamespaceLimits(myPayload[1], myMaxBytes, myOpsPerSec))
+            return NS_LIMIT_MSG;
+        return OK_MSG_END;
+    }
+
+    //describe the usage of all namespaces; the read lock keeps replicated
+    //writes, which change the stores under the write lock alone, out
+    private String nsStats() {
+        StringBuilder mySb = new StringBuilder();
+        cutLock.readLock().lock();
+        try
+        {
+            for (Namespace myNs : namespaces.values())
+            {
+                if (mySb.length() > 0) mySb.append(COLON).append(COLON);
+                mySb.append(myNs.stats());
+            }
+        }
+        finally
+        {
+            cutLock.readLock().unlock();
+        }
+        return mySb.toString();
+    }
+
+    //disconnect from the primary and start accepting writes
+    private String promote() {
+        synchronized (promoteLock)
+        {
+            ReplicaLink myLink = link;
+            if (myLink != null)
+            {
+                try
+                {
+                    myLink.stop();
+                }
+                catch (Exception e)
+                {
+                    return "error:" + e;
+                }
+                link = null;
+            }
+        }
+        return OK_MSG_END;
+    }
+
+    //store a pair, keeping track of the namespace's memory use
+    private String put(Namespace aNs, String aKey, String aValue) {
+        String myOld = aNs.store.put(aKey, aValue);
+        aNs.bytes += myOld == null ? aKey.length() + aValue.length()
+                                   : aValue.length() - myOld.length();
+        return myOld;
+    }
+
+    //remove a pair, keeping track of the namespace's memory use
+    private String remove(Namespace aNs, String aKey) {
+        String myOld = aNs.store.remove(aKey);
+        if (myOld != null) aNs.bytes -= aKey.length() + myOld.length();
+        return myOld;
+    }
+
+    //check that a command is a data operation with the right number of fields
+    private static boolean wellFormed(String aCmd, int aFields) {
+        return (aCmd.equals(GET_OPERATION) && aFields == 2)
+               || (aCmd.equals(GET_ALL_OPERATION) && aFields == 1)
+               || (aCmd.equals(PUT_OPERATION) && aFields == 3)
+               || (aCmd.equals(REMOVE_OPERATION) && aFields == 2);
+    }
+
+    //helper method to analyze and execute the command received from the client
+    //aPayload is the command without its namespace prefix, split into
+    //fields, aValid whether it is well-formed, and aData the full command
+    //successful puts and removes are appended to the log, if there is one
+    //only well-formed commands are charged to the namespace's rate limit
+    private String analyzeInput(Namespace aNs, String[] aPayload,
+                                boolean aValid, String aData){
+        String myOutData;
+        String myCmd = aPayload[0];
+        if (aValid)
+        {
+            if (!aNs.admit()) return RATE_MSG;
+            aNs.ops++;
+        }
+        //four operations
+        if (myCmd.equals(GET_OPERATION))
+        {
+            if (aPayload.length == 2)
+            {
+                String myValue = aNs.store.get(aPayload[1]);
+                if (myValue != null)
+                {
+                    myOutData = OK_MSG + myValue;
+                }
+                else
+                {
+                    myOutData = NO_MATCH_MSG;
+                }
+            }
+            else
+            {
+                myOutData = ERROR_MSG + aData;
+            }
+        }
+        else if (myCmd.equals(GET_ALL_OPERATION))
+        {
+            if (aPayload.length == 1)
+            {
+                StringBuilder mySb = new StringBuilder("");
+                for (Map.Entry<String, String> myPair : aNs.store.entries())
+                {
+                    if (mySb.length() > 0) mySb.append(COLON).append(COLON);
+                    mySb.append(myPair.getKey()).append(COLON).append(myPair.getValue());
+                }
+                myOutData = mySb.toString();
+            }
+            else
+            {
+                myOutData = ERROR_MSG + aData;
+            }
+        }
+        else if (link != null && (myCmd.equals(PUT_OPERATION)
+                                  || myCmd.equals(REMOVE_OPERATION)))
+        {
+            myOutData = READ_ONLY_MSG;
+        }
+        else if (myCmd.equals(PUT_OPERATION))
+        {
+            if (aPayload.length == 3)
+            {
+                if (!aNs.fits(aPayload[1], aPayload[2]))
+                {
+                    myOutData = QUOTA_MSG;
+                }
+                else
+                {
+                    if (put(aNs, aPayload[1], aPayload[2]) != null)
+                    {
+                        myOutData = UPDATE_MSG + aPayload[1];
+                    }
+                    else
+                    {
+                        myOutData = OK_MSG_END;
+                    }
+                    if (log != null) log.append(aData);
+                }
+            }
+            else
+            {
+                myOutData = ERROR_MSG + aData;
+            }
+        }
+        else if (myCmd.equals(REMOVE_OPERATION))
+        {
+            if (aPayload.length == 2)
+            {
+                if (remove(aNs, aPayload[1]) != null)
+                {
+                    myOutData = OK_MSG_END;
+                    if (log != null) log.append(aData);
+                }
+                else
+                {
+                    myOutData = NO_MATCH_MSG;
+                }
+            }
+            else
+            {
+                myOutData = ERROR_MSG + aData;
+            }
+        }
+        else
+        {
+            myOutData = ERROR_MSG + aData;
+        }
+        return myOutData;
+    }
+}
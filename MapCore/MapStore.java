@@ -0,0 +1,34 @@
+import java.util.Map;
+
+/*
+ * Storage for the (key,value) strings of a map server.
+ *
+ * A MapStore need not be thread-safe; the MapEngine that owns it
+ * serializes all access to it.
+ */
+public interface MapStore {
+    /** Get the value stored for a key, or null if there is none. */
+    String get(String aKey);
+
+    /** Store a (key,value) pair.
+     *  @return the value previously stored for the key, or null
+     */
+    String put(String aKey, String aValue);
+
+    /** Remove the pair with a key.
+     *  @return the value that was stored for the key, or null
+     */
+    String remove(String aKey);
+
+    /** Remove all pairs. */
+    void clear();
+
+    /** Get the number of stored pairs. */
+    int size();
+
+    /** Get all stored pairs, for iteration. */
+    Iterable<Map.Entry<String, String>> entries();
+
+    /** Create a new, empty store of the same kind. */
+    MapStore create();
+}
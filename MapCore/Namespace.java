@@ -0,0 +1,83 @@
+/*
+ * An isolated keyspace of a MapEngine.
+ *
+ * Each namespace has its own MapStore, a memory quota and an operation
+ * rate limit. Memory use is accounted as the total length of the keys
+ * and values in the store. A put that would take a namespace over its
+ * quota is refused; nothing is ever evicted to make room, so one
+ * namespace cannot push out another's data.
+ *
+ * The rate limit is a token bucket that refills at opsPerSec tokens per
+ * second and holds at most one second's worth of tokens; each well-formed
+ * data command takes one token, and those that find the bucket empty are
+ * refused.
+ *
+ * A namespace's fields are guarded by its own lock, so commands on
+ * different namespaces do not wait for each other.
+ */
+public class Namespace {
+    final String name;
+    final MapStore store;
+    long maxBytes;          // memory quota, 0 for none
+    long opsPerSec;         // rate limit, 0 for none
+    long bytes = 0;         // memory in use
+    long ops = 0;           // commands executed
+    long limited = 0;       // commands refused by the rate limit
+    long overQuota = 0;     // puts refused by the memory quota
+    private double tokens;  // tokens in the bucket
+    private long lastRefill = System.nanoTime();
+
+    /** Initialize a new namespace.
+     *  @param aName is the name of the namespace
+     *  @param aStore is an empty store for the namespace's pairs
+     *  @param aMaxBytes is the memory quota, or 0 for none
+     *  @param aOpsPerSec is the rate limit, or 0 for none
+     */
+    Namespace(String aName, MapStore aStore, long aMaxBytes, long aOpsPerSec) {
+        name = aName; store = aStore;
+        setLimits(aMaxBytes, aOpsPerSec);
+    }
+
+    /** Change the quota and rate limit. */
+    synchronized void setLimits(long aMaxBytes, long aOpsPerSec) {
+        maxBytes = aMaxBytes; opsPerSec = aOpsPerSec;
+        tokens = aOpsPerSec;
+    }
+
+    /** Take a token for a command from the bucket.
+     *  @return false if the command exceeds the rate limit
+     */
+    boolean admit() {
+        if (opsPerSec <= 0) return true;
+        long myNow = System.nanoTime();
+        tokens = Math.min(opsPerSec,
+                tokens + (myNow - lastRefill) * opsPerSec / 1e9);
+        lastRefill = myNow;
+        if (tokens < 1) { limited++; return false; }
+        tokens--;
+        return true;
+    }
+
+    /** Check that a put fits in the quota.
+     *  @param aKey is the key being stored
+     *  @param aValue is the new value
+     *  @return false if storing the pair exceeds the quota
+     */
+    boolean fits(String aKey, String aValue) {
+        if (maxBytes <= 0) return true;
+        String myOld = store.get(aKey);
+        long myDelta = myOld == null ? aKey.length() + aValue.length()
+                                     : aValue.length() - myOld.length();
+        if (bytes + myDelta <= maxBytes) return true;
+        overQuota++;
+        return false;
+    }
+
+    /** Describe the namespace's usage, for the nsstats command. */
+    synchronized String stats() {
+        return "ns=" + name + " keys=" + store.size()
+                + " bytes=" + bytes + "/" + maxBytes
+                + " rate=" + opsPerSec + " ops=" + ops
+                + " limited=" + limited + " overquota=" + overQuota;
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.*;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Replica side of map server replication.
+ *
+ * A ReplicaLink keeps a connection to the replication port of a primary
+ * map server and applies the log it receives to the local MapEngine (see
+ * ReplicationPrimary for the protocol). Each batch is applied while
+ * holding the engine's lock, so clients of the replica never see a
+ * partially applied batch.
+ *
+ * The link remembers the replication id and offset of the last entry it
+ * applied. When the connection is lost, it reconnects and asks the
+ * primary to continue from that offset; the primary falls back to a
+ * full snapshot if the entries are no longer in its log. A snapshot may
+ * also arrive in place of a batch, if the replica falls so far behind
+ * that the primary's log has overwritten the entries it needs; it is
+ * applied on the same connection.
+ */
+public class ReplicaLink implements Runnable {
+    private static final int READ_TIMEOUT_MS = 5000;
+    private static final long MIN_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 5000;
+    private static final String COLON = ":";
+
+    private final InetSocketAddress primaryAdr;
+    private final MapEngine engine;
+    private long replId = 0;       // id of the primary's log
+    private long offset = 0;       // next log entry needed
+    private long backoff = MIN_BACKOFF_MS; // delay before reconnecting
+    private long connects = 0;     // connections made to the primary
+    private volatile boolean quit = false;
+    private Socket sock;
+    private Thread myThread;
+
+    /** Initialize a new ReplicaLink.
+     *  @param aPrimaryAdr is the address of the primary's replication port
+     *  @param aEngine is the replica's engine
+     */
+    public ReplicaLink(InetSocketAddress aPrimaryAdr, MapEngine aEngine) {
+        primaryAdr = aPrimaryAdr; engine = aEngine;
+    }
+
+    /** Instantiate run() thread and start it running. */
+    public void start() {
+        myThread = new Thread(this); myThread.setDaemon(true); myThread.start();
+    }
+
+    /** Disconnect from the primary and stop applying its log. */
+    public void stop() throws Exception {
+        quit = true;
+        Socket mySock = sock;
+        if (mySock != null) mySock.close();
+        myThread.join();
+    }
+
+    /** Get the offset of the next log entry this replica needs. */
+    public synchronized long offset() { return offset; }
+
+    /** Get the number of times the link has connected to the primary. */
+    public synchronized long connects() { return connects; }
+
+    /** Connect to the primary and apply its log, reconnecting with
+     *  exponential backoff whenever the connection is lost.
+     */
+    public void run() {
+        while (!quit)
+        {
+            try
+            {
+                sock = new Socket();
+                sock.connect(primaryAdr, READ_TIMEOUT_MS);
+                synchronized (this) { connects++; }
+                sock.setSoTimeout(READ_TIMEOUT_MS);
+                sock.setTcpNoDelay(true);
+                follow(new BufferedReader(new InputStreamReader(
+                                sock.getInputStream(), "US-ASCII")),
+                       new BufferedWriter(new OutputStreamWriter(
+                                sock.getOutputStream(), "US-ASCII")));
+            }
+            catch (IOException e)
+            {
+                if (!quit) System.out.println("replica link to " + primaryAdr
+                        + " lost: " + e);
+            }
+            try { sock.close(); } catch (IOException e) { }
+            if (quit) break;
+            try { Thread.sleep(backoff); } catch (InterruptedException e) { }
+            backoff = Math.min(2 * backoff, MAX_BACKOFF_MS);
+        }
+    }
+
+    /** Synchronize with the primary, then apply batches (and any
+     *  snapshots sent in their place) until the connection fails.
+     */
+    private void follow(BufferedReader aIn, BufferedWriter aOut)
+            throws IOException {
+        writeLine(aOut, "sync" + COLON + replId + COLON + offset());
+        aOut.flush();
+        String[] myHdr = readLine(aIn).split(COLON);
+        if (myHdr.length == 3 && myHdr[0].equals("continue"))
+        {
+            if (Long.parseLong(myHdr[2]) != offset())
+            {
+                throw new IOException("primary continued at wrong offset");
+            }
+        }
+        else
+        {
+            applySnapshot(aIn, aOut, myHdr);
+        }
+        System.out.println("replica synchronized with " + primaryAdr
+                + " at offset " + offset());
+        backoff = MIN_BACKOFF_MS;
+        while (true)
+        {
+            String[] myBatch = readLine(aIn).split(COLON);
+            if (myBatch[0].equals("snapshot"))
+            {
+                // we fell behind the primary's log
+                applySnapshot(aIn, aOut, myBatch);
+                continue;
+            }
+            if (myBatch.length != 3 || !myBatch[0].equals("batch")
+                    || Long.parseLong(myBatch[1]) != offset())
+            {
+                throw new IOException("unexpected batch header");
+            }
+            int myCount = Integer.parseInt(myBatch[2]);
+            String[] myEntries = new String[myCount];
+            for (int i = 0; i < myCount; i++)
+            {
+                myEntries[i] = readLine(aIn);
+            }
+            engine.apply(myEntries);
+            synchronized (this) { offset += myCount; }
+            writeLine(aOut, "ack" + COLON + offset());
+            aOut.flush();
+        }
+    }
+
+    /** Replace the contents of the engine with a snapshot. */
+    private void applySnapshot(BufferedReader aIn, BufferedWriter aOut,
+                               String[] aHdr) throws IOException {
+        if (aHdr.length != 4 || !aHdr[0].equals("snapshot"))
+        {
+            throw new IOException("unexpected sync reply");
+        }
+        long myReplId = Long.parseLong(aHdr[1]);
+        long myOffset = Long.parseLong(aHdr[2]);
+        int myCount = Integer.parseInt(aHdr[3]);
+        List<String> myCopy = new ArrayList<String>(myCount);
+        for (int i = 0; i < myCount; i++)
+        {
+            myCopy.add(readLine(aIn));
+        }
+        engine.load(myCopy);
+        synchronized (this) { replId = myReplId; offset = myOffset; }
+        writeLine(aOut, "ack" + COLON + myOffset);
+        aOut.flush();
+    }
+
+    private static String readLine(BufferedReader aIn) throws IOException {
+        String myLine = aIn.readLine();
+        if (myLine == null) throw new EOFException();
+        return myLine;
+    }
+
+    private static void writeLine(BufferedWriter aOut, String aLine)
+            throws IOException {
+        aOut.write(aLine); aOut.newLine();
+    }
+}
@@ -0,0 +1,80 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Ordered log of the mutations (put and remove commands) applied by a
+ * primary TcpMapServer.
+ *
+ * Every logged command gets a 64 bit offset; the first command has
+ * offset 0. Only the most recent entries are retained, in a ring of
+ * fixed capacity, so a replica that asks for an offset that has been
+ * overwritten has to be resynchronized from a full snapshot instead.
+ *
+ * Each log also carries a random replication id. Offsets are only
+ * meaningful together with the id of the log that produced them, so a
+ * replica that reconnects to a restarted primary (with a new, empty
+ * log) is detected and resynchronized from a snapshot.
+ */
+public class ReplicationLog {
+    private final String[] entries;    // ring of logged commands
+    private final long replId;         // id of this log
+    private long startOffset = 0;      // offset of oldest retained entry
+    private long nextOffset = 0;       // offset of next entry to be logged
+
+    /** Initialize a new, empty log.
+     *  @param aCapacity is the number of entries retained for
+     *  incremental resynchronization
+     */
+    public ReplicationLog(int aCapacity) {
+        entries = new String[aCapacity];
+        replId = new Random().nextLong() & Long.MAX_VALUE;
+    }
+
+    /** Get the replication id of this log. */
+    public long replId() { return replId; }
+
+    /** Get the offset that the next logged entry will have. */
+    public synchronized long nextOffset() { return nextOffset; }
+
+    /** Append a command to the log and wake up waiting readers.
+     *  @param aEntry is a put or remove command, in the same format
+     *  that clients use to send it
+     */
+    public synchronized void append(String aEntry) {
+        entries[(int) (nextOffset % entries.length)] = aEntry;
+        nextOffset++;
+        if (nextOffset - startOffset > entries.length) startOffset++;
+        notifyAll();
+    }
+
+    /** Test if a replica can continue incrementally from an offset.
+     *  @param aReplId is the replication id known to the replica
+     *  @param aOffset is the offset of the next entry the replica needs
+     *  @return true if all entries from aOffset on are still retained
+     */
+    public synchronized boolean canContinue(long aReplId, long aOffset) {
+        return aReplId == replId
+                && aOffset >= startOffset && aOffset <= nextOffset;
+    }
+
+    /** Read a batch of entries, waiting for new ones if necessary.
+     *  @param aOffset is the offset of the first entry to return
+     *  @param aMax is the maximum number of entries to return
+     *  @param aWaitMs is the maximum time to wait for a new entry
+     *  @return the entries starting at aOffset (possibly none, if the
+     *  wait timed out), or null if aOffset is no longer retained
+     */
+    public synchronized List<String> read(long aOffset, int aMax, long aWaitMs)
+            throws InterruptedException {
+        if (aOffset == nextOffset && aWaitMs > 0) wait(aWaitMs);
+        if (aOffset < startOffset || aOffset > nextOffset) return null;
+        int myCount = (int) Math.min(aMax, nextOffset - aOffset);
+        List<String> myBatch = new ArrayList<String>(myCount);
+        for (long i = aOffset; i < aOffset + myCount; i++)
+        {
+            myBatch.add(entries[(int) (i % entries.length)]);
+        }
+        return myBatch;
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.*;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Primary side of map server replication.
+ *
+ * The primary listens on a separate replication port. Each replica that
+ * connects is served by its own thread, which streams the primary's
+ * ReplicationLog to it over the TCP connection.
+ *
+ * All messages are lines of ASCII text with ":" separated fields, like
+ * the client protocol. A replica opens with
+ *
+ * sync:replId:offset
+ *
+ * where replId and offset identify the next log entry it needs (a new
+ * replica sends 0 for both). If the entries are still in the log, the
+ * primary answers
+ *
+ * continue:replId:offset
+ *
+ * otherwise it sends a full snapshot of the map, taken at log offset
+ * "offset", as
+ *
+ * snapshot:replId:offset:n
+ *
+ * followed by n lines of the form put:key:value, each prefixed with its
+ * namespace unless it is in the default namespace. After that the
+ * primary sends the log in batches
+ *
+ * batch:offset:n
+ *
+ * followed by n put or remove commands, starting at log offset
+ * "offset". As entries accumulate while the primary waits for an
+ * acknowledgment, batches grow with the write rate. The replica
+ * acknowledges each snapshot and batch once it has been applied with
+ *
+ * ack:offset
+ *
+ * where offset is the next entry it needs. When there is nothing to
+ * send, the primary sends an empty batch once a second, which serves as
+ * a heartbeat for both sides. If a replica falls so far behind that the
+ * entries it needs have been overwritten, the primary sends a snapshot
+ * in place of the next batch, and carries on from the snapshot's offset.
+ */
+public class ReplicationPrimary implements Runnable {
+    private static final int MAX_BATCH = 512;
+    private static final long HEARTBEAT_MS = 1000;
+    private static final int ACK_TIMEOUT_MS = 5000;
+    private static final String COLON = ":";
+
+    private final int replPort;
+    private final MapEngine engine;
+    private final ReplicationLog log;
+    private Thread myThread;
+
+    /** Initialize a new ReplicationPrimary.
+     *  @param aReplPort is the port that replicas connect to
+     *  @param aEngine is the primary's engine
+     *  @param aLog is the log of mutations applied by aEngine
+     */
+    public ReplicationPrimary(int aReplPort, MapEngine aEngine,
+                              ReplicationLog aLog) {
+        replPort = aReplPort; engine = aEngine; log = aLog;
+    }
+
+    /** Instantiate run() thread and start it running. */
+    public void start() {
+        myThread = new Thread(this); myThread.setDaemon(true); myThread.start();
+    }
+
+    /** Accept replica connections and start a feed thread for each. */
+    public void run() {
+        try
+        {
+            ServerSocket myListenSocket = new ServerSocket(replPort);
+            while (true)
+            {
+                Socket myReplicaSock = myListenSocket.accept();
+                Thread myFeed = new Thread(new Feed(myReplicaSock));
+                myFeed.setDaemon(true);
+                myFeed.start();
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("ReplicationPrimary: " + e);
+        }
+    }
+
+    /** Streams the log to a single replica. */
+    private class Feed implements Runnable {
+        private final Socket sock;
+        private BufferedReader in;
+        private BufferedWriter out;
+
+        Feed(Socket aSock) { sock = aSock; }
+
+        public void run() {
+            SocketAddress myPeer = sock.getRemoteSocketAddress();
+            try
+            {
+                sock.setSoTimeout(ACK_TIMEOUT_MS);
+                sock.setTcpNoDelay(true);
+                in = new BufferedReader(new InputStreamReader(
+                        sock.getInputStream(), "US-ASCII"));
+                out = new BufferedWriter(new OutputStreamWriter(
+                        sock.getOutputStream(), "US-ASCII"));
+                String[] mySync = readLine().split(COLON);
+                if (mySync.length != 3 || !mySync[0].equals("sync"))
+                {
+                    throw new IOException("bad sync request");
+                }
+                long myOffset = Long.parseLong(mySync[2]);
+                if (log.canContinue(Long.parseLong(mySync[1]), myOffset))
+                {
+                    writeLine("continue" + COLON + log.replId() + COLON + myOffset);
+                    out.flush();
+                }
+                else
+                {
+                    myOffset = sendSnapshot();
+                }
+                System.out.println("replica " + myPeer + " syncing from " + myOffset);
+                while (true)
+                {
+                    List<String> myBatch = log.read(myOffset, MAX_BATCH, HEARTBEAT_MS);
+                    if (myBatch == null)
+                    {
+                        // replica fell behind the retained part of the log
+                        myOffset = sendSnapshot();
+                        continue;
+                    }
+                    writeLine("batch" + COLON + myOffset + COLON + myBatch.size());
+                    for (String myEntry : myBatch)
+                    {
+                        writeLine(myEntry);
+                    }
+                    out.flush();
+                    myOffset += myBatch.size();
+                    awaitAck(myOffset);
+                }
+            }
+            catch (Exception e)
+            {
+                System.out.println("replica " + myPeer + " disconnected: " + e);
+            }
+            try { sock.close(); } catch (IOException e) { }
+        }
+
+        /** Send a consistent snapshot of the map and wait for its ack.
+         *  @return the log offset at which the snapshot was taken
+         */
+        private long sendSnapshot() throws IOException {
+            List<String> myCopy = new ArrayList<String>();
+            long myOffset = engine.snapshot(myCopy);
+            writeLine("snapshot" + COLON + log.replId() + COLON + myOffset
+                    + COLON + myCopy.size());
+            for (String myEntry : myCopy)
+            {
+                writeLine(myEntry);
+            }
+            out.flush();
+            awaitAck(myOffset);
+            return myOffset;
+        }
+
+        private void awaitAck(long aOffset) throws IOException {
+            String myAck = readLine();
+            if (!myAck.equals("ack" + COLON + aOffset))
+            {
+                throw new IOException("unexpected reply " + myAck);
+            }
+        }
+
+        private String readLine() throws IOException {
+            String myLine = in.readLine();
+            if (myLine == null) throw new EOFException();
+            return myLine;
+        }
+
+        private void writeLine(String aLine) throws IOException {
+            out.write(aLine); out.newLine();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Bounded log of slow commands.
+ *
+ * Entries are kept in a ring of fixed capacity; once it is full, each new
+ * entry replaces the oldest one. Every entry gets a sequence number, so a
+ * client polling the log can tell how many entries it missed.
+ */
+public class SlowLog {
+    private static final int MAX_CMD_LENGTH = 64;
+
+    private final String[] cmds;    // ring of logged commands
+    private final long[] latencies; // their latencies in ns
+    private final long[] times;     // their wall clock times in ms
+    private long nextId = 0;        // sequence number of next entry
+
+    /** Initialize a new SlowLog.
+     *  @param aCapacity is the number of entries retained
+     */
+    public SlowLog(int aCapacity) {
+        cmds = new String[aCapacity];
+        latencies = new long[aCapacity];
+        times = new long[aCapacity];
+    }
+
+    /** Add an entry, replacing the oldest one if the log is full.
+     *  @param aCmd is the command; long commands are truncated
+     *  @param aLatencyNs is the latency of the command
+     */
+    public synchronized void add(String aCmd, long aLatencyNs) {
+        int i = (int) (nextId % cmds.length);
+        cmds[i] = aCmd.length() > MAX_CMD_LENGTH
+                ? aCmd.substring(0, MAX_CMD_LENGTH) : aCmd;
+        latencies[i] = aLatencyNs;
+        times[i] = System.currentTimeMillis();
+        nextId++;
+    }
+
+    /** List the retained entries, newest first.
+     *  @return a single line with one entry per slow command, in the
+     *  format "#id latency=us at=ms command", separated by "::"
+     */
+    public synchronized String list() {
+        StringBuilder mySb = new StringBuilder();
+        long myOldest = Math.max(0, nextId - cmds.length);
+        for (long myId = nextId - 1; myId >= myOldest; myId--)
+        {
+            int i = (int) (myId % cmds.length);
+            if (mySb.length() > 0) mySb.append("::");
+            mySb.append('#').append(myId)
+                .append(" latency=").append(latencies[i] / 1000)
+                .append("us at=").append(times[i])
+                .append(' ').append(cmds[i]);
+        }
+        return mySb.toString();
+    }
+}
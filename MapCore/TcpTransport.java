@@ -0,0 +1,158 @@
+import java.io.*;
+import java.net.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * TCP transport for a MapEngine.
+ *
+ * Clients send one command per line and receive one reply line per
+ * command; an empty line or end of stream closes the connection.
+ *
+ * Each client connection is served by its own thread. A connection on
+ * which no command arrives for the idle timeout is closed by an
+ * IdleReaper. At most maxConns connections are served at a time, and
+ * at most maxConnsPerIp of them may come from the same client address;
+ * further connections receive
+ *
+ * error:too many connections
+ *
+ * and are closed right away.
+ *
+ * The latency of each command is measured from the time its request
+ * line has been read to the time the reply has been flushed.
+ */
+public class TcpTransport implements Runnable {
+    private static final String BUSY_MSG = "error:too many connections";
+
+    private final ServerSocket listenSock;
+    private final MapEngine engine;
+    private final IdleReaper reaper;        // null if no idle timeout
+    private final int maxConns;
+    private final int maxConnsPerIp;
+    private int connCount = 0;              // open client connections
+    private final Map<InetAddress, Integer> connsPerIp =
+            new HashMap<InetAddress, Integer>();
+    private Thread myThread;
+
+    /** Initialize a new TcpTransport.
+     *  @param aListenSock is a bound socket to accept clients on
+     *  @param aEngine is the engine that executes client commands
+     *  @param aIdleMs is the idle time after which a connection is
+     *  closed, or 0 to keep idle connections open
+     *  @param aMaxConns is the maximum number of open connections
+     *  @param aMaxConnsPerIp is the maximum number of open connections
+     *  from one client address
+     */
+    public TcpTransport(ServerSocket aListenSock, MapEngine aEngine,
+                        long aIdleMs, int aMaxConns, int aMaxConnsPerIp) {
+        listenSock = aListenSock; engine = aEngine;
+        maxConns = aMaxConns; maxConnsPerIp = aMaxConnsPerIp;
+        if (aIdleMs > 0)
+        {
+            reaper = new IdleReaper(aIdleMs, Math.max(aIdleMs / 100, 10));
+            reaper.start();
+        }
+        else
+        {
+            reaper = null;
+        }
+    }
+
+    /** Instantiate run() thread and start it running. */
+    public void start() {
+        myThread = new Thread(this); myThread.start();
+    }
+
+    /** Accept client connections and start a handler thread for each. */
+    public void run() {
+        //wait for client connecting to the server
+        while (true)
+        {
+            // wait for incoming connection request and
+            // create new socket and thread to handle it
+            Socket connSock;
+            try
+            {
+                connSock = listenSock.accept();
+            }
+            catch (IOException e)
+            {
+                System.err.println("TcpTransport: accept exception " + e);
+                return;
+            }
+            if (!admit(connSock.getInetAddress()))
+            {
+                try
+                {
+                    connSock.getOutputStream().write(
+                            (BUSY_MSG + "\n").getBytes("US-ASCII"));
+                    connSock.close();
+                }
+                catch (IOException e) { }
+                continue;
+            }
+            Thread myHandler = new Thread(new Handler(connSock));
+            myHandler.setDaemon(true);
+            myHandler.start();
+        }
+    }
+
+    //check the connection caps and count a new connection from aAddr
+    private synchronized boolean admit(InetAddress aAddr) {
+        Integer myIpCount = connsPerIp.get(aAddr);
+        if (myIpCount == null) myIpCount = 0;
+        if (connCount >= maxConns || myIpCount >= maxConnsPerIp) return false;
+        connCount++;
+        connsPerIp.put(aAddr, myIpCount + 1);
+        return true;
+    }
+
+    //forget a closed connection from aAddr
+    private synchronized void release(InetAddress aAddr) {
+        connCount--;
+        int myIpCount = connsPerIp.get(aAddr) - 1;
+        if (myIpCount == 0) connsPerIp.remove(aAddr);
+        else connsPerIp.put(aAddr, myIpCount);
+    }
+
+    //serves the requests of a single client connection
+    private class Handler implements Runnable {
+        private final Socket connSock;
+
+        Handler(Socket aSock) { connSock = aSock; }
+
+        public void run() {
+            IdleReaper.Entry myIdle = reaper != null ? reaper.add(connSock) : null;
+            try
+            {
+                // create buffered versions of socket's in/out streams
+                BufferedReader in = new BufferedReader(new InputStreamReader(
+                        connSock.getInputStream(), "US-ASCII"));
+                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                        connSock.getOutputStream(), "US-ASCII"));
+                while (true) {
+                    String myInData = in.readLine();
+
+                    if (myInData == null || myInData.length() == 0) break;
+                    long myParseTime = System.nanoTime();
+                    if (myIdle != null) reaper.touch(myIdle);
+                    String myOutData = engine.execute(myInData);
+
+                    out.write(myOutData);
+                    out.newLine();
+                    out.flush();
+                    engine.record(myInData, System.nanoTime() - myParseTime);
+                }
+            }
+            catch (Exception e)
+            {
+                // connection reset, or closed by the idle reaper
+            }
+            if (myIdle != null) reaper.remove(myIdle);
+            engine.retire();
+            try { connSock.close(); } catch (IOException e) { }
+            release(connSock.getInetAddress());
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Test the limits of MapEngine namespaces.
+ *
+ * usage: TestNamespaces
+ *
+ * Checks that clients cannot change namespace limits with nsconfig
+ * unless the server allows it, that limits set by the server hold, and
+ * that only well-formed data commands count against a namespace's rate
+ * limit or create a namespace. Exits with status 1 at the first check
+ * that fails.
+ */
+public class TestNamespaces {
+    public static void main(String[] args) {
+        MapEngine myEngine = new MapEngine(new HashMapStore(), Long.MAX_VALUE);
+
+        // garbage does not create namespaces
+        for (int i = 0; i < 2000; i++)
+        {
+            expect(myEngine, "x" + i + "/y", "error:unrecognizable input:x" + i + "/y");
+            expect(myEngine, "junk" + i + "/bogus", "error:unrecognizable input:junk" + i + "/bogus");
+            expect(myEngine, "junk" + i + "/get", "error:unrecognizable input:junk" + i + "/get");
+        }
+        check(!myEngine.execute("nsstats").contains("ns=x0 "), "garbage created x0");
+        check(!myEngine.execute("nsstats").contains("ns=junk"), "garbage created junk");
+        expect(myEngine, "new/put:k:v", "ok");
+
+        // nsconfig is refused, for the default namespace and others alike
+        expect(myEngine, "nsconfig::0:1", "error:not permitted");
+        expect(myEngine, "nsconfig:shop:0:1", "error:not permitted");
+        for (int i = 0; i < 10; i++)
+        {
+            expect(myEngine, "shop/put:k" + i + ":v", "ok");
+            expect(myEngine, "put:k" + i + ":v", "ok");
+        }
+
+        // limits set by the server hold
+        check(myEngine.setNamespaceLimits("shop", 0, 2), "setNamespaceLimits");
+        // malformed and unknown commands are not charged
+        for (int i = 0; i < 10; i++)
+        {
+            expect(myEngine, "shop/get", "error:unrecognizable input:shop/get");
+            expect(myEngine, "shop/bogus:x", "error:unrecognizable input:shop/bogus:x");
+        }
+        expect(myEngine, "shop/get:k0", "ok:v");
+        expect(myEngine, "shop/get:k1", "ok:v");
+        expect(myEngine, "shop/get:k2", "error:rate limit exceeded");
+        // other namespaces are not affected
+        expect(myEngine, "get:k2", "ok:v");
+
+        // once allowed, nsconfig changes limits
+        myEngine.setRemoteConfig(true);
+        expect(myEngine, "nsconfig:shop:0:0", "ok");
+        expect(myEngine, "shop/get:k2", "ok:v");
+        System.out.println("TestNamespaces: ok");
+    }
+
+    //execute a command and check its reply
+    private static void expect(MapEngine aEngine, String aCmd, String aReply) {
+        String myReply = aEngine.execute(aCmd);
+        check(myReply.equals(aReply), aCmd + " got " + myReply
+              + " instead of " + aReply);
+    }
+
+    private static void check(boolean aOk, String aMsg) {
+        if (aOk) return;
+        System.out.println("TestNamespaces: " + aMsg);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,91 @@
+import java.net.*;
+
+/*
+ * Test the resynchronization of a replica that falls behind the log.
+ *
+ * usage: TestReplication
+ *
+ * Runs a primary with a short ReplicationLog and a replica whose store
+ * is slow to apply puts, in this one process, over the loopback
+ * interface. Once the replica is attached, the primary applies far more
+ * puts than its log retains, so the replica's next batch is no longer
+ * in the log and the primary sends a snapshot in its place. The test
+ * checks that the replica ends up with every pair, at the primary's log
+ * offset, without having to reconnect, and exits with status 1 if not.
+ */
+public class TestReplication {
+    private static final int LOG_CAPACITY = 8;
+    private static final int PUTS = 100;
+    private static final long PUT_DELAY_MS = 5;
+    private static final long WAIT_MS = 20000;
+
+    /** A HashMapStore that takes a while over every put. */
+    private static class SlowStore extends HashMapStore {
+        public String put(String aKey, String aValue) {
+            try { Thread.sleep(PUT_DELAY_MS); } catch (InterruptedException e) { }
+            return super.put(aKey, aValue);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ServerSocket myProbe = new ServerSocket(0);
+        int myReplPort = myProbe.getLocalPort();
+        myProbe.close();
+
+        MapEngine myPrimary = new MapEngine(new HashMapStore(), Long.MAX_VALUE);
+        ReplicationLog myLog = new ReplicationLog(LOG_CAPACITY);
+        myPrimary.setLog(myLog);
+        new ReplicationPrimary(myReplPort, myPrimary, myLog).start();
+
+        MapEngine myReplica = new MapEngine(new SlowStore(), Long.MAX_VALUE);
+        ReplicaLink myLink = new ReplicaLink(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), myReplPort), myReplica);
+        myReplica.setReplicaLink(myLink);
+        myLink.start();
+
+        // attach the replica, then overrun the log while it applies
+        myPrimary.execute("put:first:0");
+        await(myReplica, "first", "0");
+        for (int i = 0; i < PUTS; i++)
+        {
+            myPrimary.execute("put:k" + i + ":v" + i);
+        }
+        await(myReplica, "k" + (PUTS - 1), "v" + (PUTS - 1));
+        long myDeadline = System.currentTimeMillis() + WAIT_MS;
+        while (myLink.offset() != myLog.nextOffset()
+               && System.currentTimeMillis() < myDeadline)
+        {
+            Thread.sleep(10);
+        }
+
+        for (int i = 0; i < PUTS; i++)
+        {
+            check(myReplica.execute("get:k" + i).equals("ok:v" + i),
+                  "replica is missing k" + i);
+        }
+        check(myLink.offset() == myLog.nextOffset(), "replica at offset "
+              + myLink.offset() + ", primary at " + myLog.nextOffset());
+        check(myLink.connects() == 1, "replica reconnected "
+              + (myLink.connects() - 1) + " times");
+        myLink.stop();
+        System.out.println("TestReplication: ok");
+    }
+
+    //wait for a pair to reach the replica
+    private static void await(MapEngine aReplica, String aKey, String aValue)
+            throws InterruptedException {
+        long myDeadline = System.currentTimeMillis() + WAIT_MS;
+        while (!aReplica.execute("get:" + aKey).equals("ok:" + aValue))
+        {
+            check(System.currentTimeMillis() < myDeadline,
+                  "timed out waiting for " + aKey);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void check(boolean aOk, String aMsg) {
+        if (aOk) return;
+        System.out.println("TestReplication: " + aMsg);
+        System.exit(1);
+    }
+}
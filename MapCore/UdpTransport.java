@@ -0,0 +1,70 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+
+/*
+ * UDP transport for a MapEngine.
+ *
+ * Each datagram carries one command; the reply is sent in a datagram to
+ * the address and port the command came from. A single thread serves
+ * all clients, reusing one receive buffer.
+ *
+ * The latency of each command is measured from the time its datagram
+ * has been received to the time the reply has been sent.
+ */
+public class UdpTransport implements Runnable {
+    private static final int BUFFER_LENGTH = 1024;
+
+    private final DatagramSocket sock;
+    private final MapEngine engine;
+    private final boolean debug;
+    private Thread myThread;
+
+    /** Initialize a new UdpTransport.
+     *  @param aSock is a bound socket to receive commands on
+     *  @param aEngine is the engine that executes the commands
+     *  @param aDebug is true if each command should be printed
+     */
+    public UdpTransport(DatagramSocket aSock, MapEngine aEngine,
+                        boolean aDebug) {
+        sock = aSock; engine = aEngine; debug = aDebug;
+    }
+
+    /** Instantiate run() thread and start it running. */
+    public void start() {
+        myThread = new Thread(this); myThread.start();
+    }
+
+    /** Receive commands and send back their replies. */
+    public void run() {
+        byte[] myInBuf = new byte[BUFFER_LENGTH];
+        DatagramPacket myInPkt =
+                new DatagramPacket(myInBuf, myInBuf.length);
+        DatagramPacket myOutPkt = new DatagramPacket(myInBuf, 0);
+        while (true)
+        {
+            try
+            {
+                //receive data packet from client
+                myInPkt.setLength(myInBuf.length);
+                sock.receive(myInPkt);
+                long myRecvTime = System.nanoTime();
+                String myInData = new String(myInBuf, 0, myInPkt.getLength(),
+                                             "US-ASCII").trim();
+                if (debug) System.out.println("From Client: " + myInData);
+                String mySendData = engine.execute(myInData);
+
+                //send responding packet to client
+                byte[] myOutBuf = mySendData.getBytes("US-ASCII");
+                myOutPkt.setData(myOutBuf);
+                myOutPkt.setSocketAddress(myInPkt.getSocketAddress());
+                sock.send(myOutPkt);
+                engine.record(myInData, System.nanoTime() - myRecvTime);
+            }
+            catch (Exception e)
+            {
+                System.err.println("UdpTransport: " + e);
+                if (sock.isClosed()) return;
+            }
+        }
+    }
+}
@@ -1,7 +1,6 @@
-import java.io.*;
 import java.net.*;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 /*
  * Name: Xintong Wang
@@ -11,11 +10,74 @@ import java.util.Map;
  * This module implements a simple TcpMapServer that stores (key,value)
  * strings.
  *
- * usage: MapServer [ portNumber ]
+ * usage: TcpMapServer [ bindAddr [ portNumber
+ *                      [ primary replPort | replica primaryHost replPort ] ] ]
+ *                      [ idle=seconds ] [ maxconn=n ] [ maxperip=n ]
+ *                      [ slowlog=ms ] [ udp=port ]
+ *                      [ nsbytes=n ] [ nsrate=n ]
+ *                      [ nslimit=ns:maxBytes:opsPerSec ... ] [ nsadmin=1 ]
  *
- * There is a single optional command line argument that is the
- * number of the port that the server listens on. The port number
- * defaults to 30123.
+ * The command engine, storage, replication and connection handling
+ * live in ../MapCore and are shared with the UDP MapServer; compile with
+ *
+ * javac -sourcepath ../MapCore *.java
+ *
+ * The optional command line arguments are the address the server binds
+ * to and the number of the port that the server listens on. The port
+ * number defaults to 30123.
+ *
+ * The remaining arguments select a replication role. A primary also
+ * listens on replPort and streams every put and remove it applies to
+ * the replicas connected there (see ReplicationPrimary). A replica
+ * connects to the replication port of a primary, keeps its map in step
+ * with the primary's and serves get and get all requests; put and remove
+ * requests are answered with
+ *
+ * error:read only replica
+ *
+ * Sending the command "promote" to a replica disconnects it from its
+ * primary and makes it accept writes, so that it can take over if the
+ * primary fails.
+ *
+ * Each client connection is served by its own thread. A connection on
+ * which no command arrives for idle seconds (default 300, 0 disables the
+ * check) is closed by an IdleReaper. At most maxconn connections
+ * (default 1000) are served at a time, and at most maxperip of them
+ * (default 100) may come from the same client address; further
+ * connections receive
+ *
+ * error:too many connections
+ *
+ * and are closed right away.
+ *
+ * The server measures the latency of every command, from the time the
+ * request has been read to the time the reply has been flushed. The
+ * command "stats" returns, for each kind of command, its count and
+ * latency percentiles in microseconds
+ *
+ * ok:get count=n p50=us p99=us p999=us max=us::put count=n ...
+ *
+ * Commands that take at least slowlog milliseconds (default 10) are
+ * recorded in a slow log of the last 128 such commands, which the
+ * command "slowlog" returns, newest first, as
+ *
+ * ok:#id latency=us at=ms command::#id latency=us at=ms command...
+ *
+ * If udp=port is given, the same map is also served over UDP on that
+ * port, using the protocol of the UDP MapServer.
+ *
+ * Several applications can share a server by prefixing their commands
+ * with a namespace, as in shop/get:foo. Each namespace has its own
+ * keyspace; named namespaces are created on first use with a memory
+ * quota of nsbytes bytes of keys and values and a rate limit of nsrate
+ * commands per second (0, the default, means no limit). Each
+ * nslimit=ns:maxBytes:opsPerSec option sets the limits of namespace ns
+ * (an empty ns is the default namespace) at startup. The command
+ * nsconfig:ns:maxBytes:opsPerSec, which changes the limits of any
+ * namespace, is refused unless nsadmin=1 is given, so that only a server
+ * whose clients are all trusted lets them change each other's limits.
+ * The command nsstats reports the usage of every namespace (see
+ * MapEngine).
  *
  * The server expects to receive TCP packets that store and retrieve
  * (key,value) pairs, where both the key and the value are strings.
@@ -70,137 +132,100 @@ import java.util.Map;
  */
 public class TcpMapServer {
     private static final int DEFAULT_PORT = 30123;
-    private static final String GET_OPERATION = "get";
-    private static final String GET_ALL_OPERATION = "get all";
-    private static final String PUT_OPERATION = "put";
-    private static final String REMOVE_OPERATION = "remove";
-    private static final String OK_MSG = "ok:";
-    private static final String OK_MSG_END = "ok";
-    private static final String UPDATE_MSG = "updated:";
-    private static final String NO_MATCH_MSG = "no match";
-    private static final String ERROR_MSG = "error:unrecognizable input:";
-    private static final String COLON = ":";
+    private static final String PRIMARY_ROLE = "primary";
+    private static final String REPLICA_ROLE = "replica";
+    private static final int LOG_CAPACITY = 100000;
+    private static final String IDLE_OPTION = "idle";
+    private static final String MAX_CONNS_OPTION = "maxconn";
+    private static final String MAX_CONNS_PER_IP_OPTION = "maxperip";
+    private static final String SLOWLOG_OPTION = "slowlog";
+    private static final String UDP_OPTION = "udp";
+    private static final String NS_BYTES_OPTION = "nsbytes";
+    private static final String NS_RATE_OPTION = "nsrate";
+    private static final String NS_LIMIT_OPTION = "nslimit";
+    private static final String NS_ADMIN_OPTION = "nsadmin";
+    private static final long DEFAULT_IDLE_MS = 300000;
+    private static final int DEFAULT_MAX_CONNS = 1000;
+    private static final int DEFAULT_MAX_CONNS_PER_IP = 100;
+    private static final double DEFAULT_SLOW_MS = 10;
 
     public static void main(String[] args) throws Exception {
-        Map<String, String> myMap = new HashMap<String, String>();
+        //separate name=value options from positional arguments
+        List<String> myArgs = new ArrayList<String>();
+        long myIdleMs = DEFAULT_IDLE_MS;
+        int myMaxConns = DEFAULT_MAX_CONNS;
+        int myMaxConnsPerIp = DEFAULT_MAX_CONNS_PER_IP;
+        double mySlowMs = DEFAULT_SLOW_MS;
+        int myUdpPort = 0;
+        long myNsBytes = 0;
+        long myNsRate = 0;
+        List<String> myNsLimits = new ArrayList<String>();
+        boolean myNsAdmin = false;
+        for (String myArg : args)
+        {
+            String[] myOpt = myArg.split("=");
+            if (myOpt.length != 2) myArgs.add(myArg);
+            else if (myOpt[0].equals(IDLE_OPTION))
+                myIdleMs = (long) (Double.parseDouble(myOpt[1]) * 1000);
+            else if (myOpt[0].equals(MAX_CONNS_OPTION))
+                myMaxConns = Integer.parseInt(myOpt[1]);
+            else if (myOpt[0].equals(MAX_CONNS_PER_IP_OPTION))
+                myMaxConnsPerIp = Integer.parseInt(myOpt[1]);
+            else if (myOpt[0].equals(SLOWLOG_OPTION))
+                mySlowMs = Double.parseDouble(myOpt[1]);
+            else if (myOpt[0].equals(UDP_OPTION))
+                myUdpPort = Integer.parseInt(myOpt[1]);
+            else if (myOpt[0].equals(NS_BYTES_OPTION))
+                myNsBytes = Long.parseLong(myOpt[1]);
+            else if (myOpt[0].equals(NS_RATE_OPTION))
+                myNsRate = Long.parseLong(myOpt[1]);
+            else if (myOpt[0].equals(NS_LIMIT_OPTION))
+                myNsLimits.add(myOpt[1]);
+            else if (myOpt[0].equals(NS_ADMIN_OPTION))
+                myNsAdmin = Integer.parseInt(myOpt[1]) != 0;
+            else throw new Exception("unknown option " + myArg);
+        }
+        MapEngine myEngine = new MapEngine(new HashMapStore(),
+                                           (long) (mySlowMs * 1000000));
+        myEngine.setNamespaceDefaults(myNsBytes, myNsRate);
+        for (String myLimit : myNsLimits)
+        {
+            String[] myFields = myLimit.split(":", -1);
+            if (myFields.length != 3)
+                throw new Exception("bad option " + NS_LIMIT_OPTION + "=" + myLimit);
+            myEngine.setNamespaceLimits(myFields[0], Long.parseLong(myFields[1]),
+                                        Long.parseLong(myFields[2]));
+        }
+        myEngine.setRemoteConfig(myNsAdmin);
         //initiate the server socket
         InetAddress myBindAddr  =
-                args.length > 0 ? InetAddress.getByName(args[0]) : null;
+                myArgs.size() > 0 ? InetAddress.getByName(myArgs.get(0)) : null;
         int myPort =
-                args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+                myArgs.size() > 1 ? Integer.parseInt(myArgs.get(1)) : DEFAULT_PORT;
         //create and bind listening socket
         ServerSocket myListenSocket = new ServerSocket(myPort, 0, myBindAddr);
-        //wait for client connecting to the server
-        while (true)
+        //start replication, if a role was given
+        if (myArgs.size() > 3 && myArgs.get(2).equals(PRIMARY_ROLE))
         {
-            // wait for incoming connection request and
-            // create new socket to handle it
-            Socket connSock = myListenSocket.accept();
-            // create buffered versions of socket's in/out streams
-            BufferedReader in = new BufferedReader(new InputStreamReader(
-                    connSock.getInputStream(), "US-ASCII"));
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
-                    connSock.getOutputStream(), "US-ASCII"));
-            while (true) {
-                String myInData = in.readLine();
-
-                if (myInData == null || myInData.length() == 0) break;
-                String myOutData = analyzeInput(myMap, myInData);
-
-                out.write(myOutData);
-                out.newLine();
-                out.flush();
-            }
-            connSock.close();
+            ReplicationLog myLog = new ReplicationLog(LOG_CAPACITY);
+            myEngine.setLog(myLog);
+            new ReplicationPrimary(Integer.parseInt(myArgs.get(3)), myEngine,
+                                   myLog).start();
         }
-    }
-
-    //helper method to analyze and execute the command received from the client
-    private static String analyzeInput(Map<String, String> aMap, String aData){
-        String[] myPayload = aData.split(COLON);
-        String myOutData;
-        String myCmd = myPayload[0];
-        //four operations
-        if (myCmd.equals(GET_OPERATION))
+        else if (myArgs.size() > 4 && myArgs.get(2).equals(REPLICA_ROLE))
         {
-            if (myPayload.length == 2)
-            {
-                if (aMap.get(myPayload[1]) != null)
-                {
-                    myOutData = OK_MSG + aMap.get(myPayload[1]);
-                }
-                else
-                {
-                    myOutData = NO_MATCH_MSG;
-                }
-            }
-            else
-            {
-                myOutData = ERROR_MSG + aData;
-            }
+            ReplicaLink myLink = new ReplicaLink(new InetSocketAddress(
+                    myArgs.get(3), Integer.parseInt(myArgs.get(4))), myEngine);
+            myEngine.setReplicaLink(myLink);
+            myLink.start();
         }
-        else if (myCmd.equals(GET_ALL_OPERATION))
+        //serve the same engine over UDP, if requested
+        if (myUdpPort != 0)
         {
-            if (myPayload.length == 1)
-            {
-                StringBuilder mySb = new StringBuilder("");
-                for (String s: aMap.keySet())
-                {
-                    mySb.append(s).append(COLON).append(aMap.get(s)).append(COLON).append(COLON);
-                }
-                mySb.deleteCharAt(mySb.length() - 1);
-                mySb.deleteCharAt(mySb.length() - 1);
-                myOutData = mySb.toString();
-            }
-            else
-            {
-                myOutData = ERROR_MSG + aData;
-            }
+            new UdpTransport(new DatagramSocket(myUdpPort, myBindAddr),
+                             myEngine, false).start();
         }
-        else if (myCmd.equals(PUT_OPERATION))
-        {
-            if (myPayload.length == 3)
-            {
-                if (aMap.containsKey(myPayload[1]))
-                {
-                    aMap.put(myPayload[1], myPayload[2]);
-                    myOutData = UPDATE_MSG + myPayload[1];
-                }
-                else
-                {
-                    aMap.put(myPayload[1], myPayload[2]);
-                    myOutData = OK_MSG_END;
-                }
-
-            }
-            else
-            {
-                myOutData = ERROR_MSG + aData;
-            }
-        }
-        else if (myCmd.equals(REMOVE_OPERATION))
-        {
-            if (myPayload.length == 2)
-            {
-                if (aMap.remove(myPayload[1]) != null)
-                {
-                    myOutData = OK_MSG_END;
-                }
-                else
-                {
-                    myOutData = NO_MATCH_MSG;
-                }
-            }
-            else
-            {
-                myOutData = ERROR_MSG + aData;
-            }
-        }
-        else
-        {
-            myOutData = ERROR_MSG + aData;
-        }
-        return myOutData;
+        new TcpTransport(myListenSocket, myEngine, myIdleMs, myMaxConns,
+                         myMaxConnsPerIp).run();
     }
 }
-